@@ -14,6 +14,8 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.Toolbar;
 import android.util.Log;
 import android.view.Menu;
@@ -22,12 +24,24 @@ import android.view.View;
 import android.widget.Button;
 import android.widget.TextView;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.util.List;
 
+import tonyg.example.com.blechatcore.log.ChatHistory;
+import tonyg.example.com.blechatcore.log.ChatLog;
+import tonyg.example.com.blechatui.FrameDispatcher;
+import tonyg.example.com.blechatui.MessageListAdapter;
+import tonyg.example.com.blechatui.callbacks.FrameDispatcherCallback;
 import tonyg.example.com.bleechoclient.ble.BleCommManager;
 import tonyg.example.com.bleechoclient.ble.EchoServer;
+import tonyg.example.com.bleechoclient.ble.ServerSelector;
 import tonyg.example.com.bleechoclient.ble.callbacks.BleScanCallbackv21;
-import tonyg.example.com.bleechoclient.ble.callbacks.EchoServerCallback;
+import tonyg.example.com.bleechoclient.ble.callbacks.EchoServerRawCallback;
+import tonyg.example.com.bleechoclient.utilities.EventTrace;
+import tonyg.example.com.bleechoclient.utilities.Metrics;
 import tonyg.example.com.exampleblescan.R;
 import tonyg.example.com.bleechoclient.ble.callbacks.BleScanCallbackv18;
 
@@ -41,15 +55,33 @@ public class MainActivity extends AppCompatActivity {
     /** Constants **/
     private static final String TAG = MainActivity.class.getSimpleName();
     private final static int REQUEST_ENABLE_BT = 1;
+    private static final long SERVER_SELECTION_TIME_MS = 1000; // compare servers for 1 second before connecting
+    private static final String CHAT_LOG_DIRECTORY = "chatlog";
+
+    /** UI events, posted from Bluetooth threads and handled once per frame **/
+    private static final int EVENT_CONNECTION_CHANGED = 1;
+    private static final int EVENT_MESSAGE_SENT = 1 << 1;
+    private static final int EVENT_MESSAGE_RECEIVED = 1 << 2;
 
     /** Bluetooth Stuff **/
     private BleCommManager mBleCommManager;
     private EchoServer mEchoServer;
     private boolean mIsConnecting = false;
+    private boolean mIsSelectingServer = false;
+    private final ServerSelector mServerSelector = new ServerSelector(EchoServer.SERVICE_UUID);
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean mIsConnected = false; // as last reported by the EchoServer
+
+    /** Chat history **/
+    private ChatLog mChatLog;
+    private byte[] mMessageBytes = new byte[256]; // received messages are copied here on their way to the log
+    private final MessageListAdapter mMessageListAdapter = new MessageListAdapter();
 
     /** UI Stuff **/
+    private FrameDispatcher mFrameDispatcher;
     private MenuItem mProgressSpinner;
-    private TextView mResponseText, mSendText, mDeviceNameTV, mDeviceAddressTV;
+    private TextView mSendText, mDeviceNameTV, mDeviceAddressTV;
+    private RecyclerView mResponseList;
     private Button mSendButton;
 
     @Override
@@ -64,8 +96,17 @@ public class MainActivity extends AppCompatActivity {
         IntentFilter filter = new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED);
         registerReceiver(mBleBroadcastReceiver, filter);
 
+        // keep every message received, so the conversation can be scrolled back through
+        try {
+            mChatLog = new ChatLog(new File(getFilesDir(), CHAT_LOG_DIRECTORY), ChatLog.DEFAULT_SEGMENT_LENGTH, ChatLog.DEFAULT_MAX_SEGMENTS);
+        } catch (Exception e) {
+            Log.d(TAG, "Could not open the chat log: " + e.getMessage());
+        }
+
         loadUI();
 
+        mFrameDispatcher = new FrameDispatcher(mFrameDispatcherCallback);
+        mFrameDispatcher.setRefreshRate(getWindowManager().getDefaultDisplay().getRefreshRate());
         mEchoServer = new EchoServer(this, mEchoServerCallback);
     }
 
@@ -85,13 +126,33 @@ public class MainActivity extends AppCompatActivity {
     public void onDestroy() {
         super.onDestroy();
         unregisterReceiver(mBleBroadcastReceiver);
+        mFrameDispatcher.cancel();
+        if (mChatLog != null) {
+            mChatLog.close();
+        }
+    }
+
+    /**
+     * Print the Central metrics with "adb shell dumpsys activity top"
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.print(prefix);
+        writer.println("Metrics:");
+        Metrics.REGISTRY.dump(prefix + "  ", writer);
+        if (EventTrace.ENABLED) {
+            writer.print(prefix);
+            writer.println("Event trace:");
+            EventTrace.dump(prefix + "  ", writer);
+        }
     }
 
     /**
      * Prepare the UI elements
      */
     public void loadUI() {
-        mResponseText = (TextView) findViewById(R.id.response_text);
+        mResponseList = (RecyclerView) findViewById(R.id.response_list);
         mSendText = (TextView) findViewById(R.id.write_text);
         mDeviceNameTV = (TextView)findViewById(R.id.broadcast_name);
         mDeviceAddressTV = (TextView)findViewById(R.id.mac_address);
@@ -100,7 +161,15 @@ public class MainActivity extends AppCompatActivity {
 
         mSendButton.setVisibility(View.GONE);
         mSendText.setVisibility(View.GONE);
-        mResponseText.setVisibility(View.GONE);
+        mResponseList.setVisibility(View.GONE);
+
+        LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        layoutManager.setStackFromEnd(true);
+        mResponseList.setLayoutManager(layoutManager);
+        mResponseList.setAdapter(mMessageListAdapter);
+        if (mChatLog != null) {
+            mMessageListAdapter.setChatHistory(new ChatHistory(mChatLog, ChatHistory.DEFAULT_CAPACITY));
+        }
     }
 
 
@@ -152,6 +221,7 @@ public class MainActivity extends AppCompatActivity {
     private void startScan() {
         mDeviceNameTV.setText(R.string.scanning);
         mProgressSpinner.setVisible(true);
+        mServerSelector.reset();
 
         try {
             mBleCommManager.scanForPeripherals(mScanCallbackv18, mScanCallbackv21);
@@ -172,6 +242,10 @@ public class MainActivity extends AppCompatActivity {
      * Event trigger when BLE Scanning has stopped
      */
     public void onBleScanStopped() {
+        // the scan may end before the selection timer does
+        if (mIsSelectingServer) {
+            connectToBestServer();
+        }
     }
 
 
@@ -204,30 +278,29 @@ public class MainActivity extends AppCompatActivity {
 
 
     /**
-     * Update TextView when a new message is read from a Charactersitic
-     * Also scroll to the bottom so that new messages are always in view
-     *
-     * @param message the Characterstic value to display in the UI as text
+     * Show messages logged since the last update.
+     * Follow new messages, unless the list has been scrolled back through the history
      */
-    public void updateResponseText(String message) {
-        mResponseText.append(message);
-        final int scrollAmount = mResponseText.getLayout().getLineTop(mResponseText.getLineCount()) - mResponseText.getHeight();
-        // if there is no need to scroll, scrollAmount will be <=0
-        if (scrollAmount > 0) {
-            mResponseText.scrollTo(0, scrollAmount);
-        } else {
-            mResponseText.scrollTo(0, 0);
+    public void updateResponseList() {
+        boolean isAtBottom = !mResponseList.canScrollVertically(1);
+        if (mMessageListAdapter.update() > 0 && isAtBottom) {
+            mResponseList.scrollToPosition(mMessageListAdapter.getItemCount() - 1);
         }
     }
 
     /**
      * Event trigger when new Peripheral is discovered
+     *
+     * @param bluetoothDevice the Peripheral
+     * @param rssi the Peripheral's signal strength
+     * @param scanRecord the raw advertising data
      */
-    public void onBlePeripheralDiscovered(final BluetoothDevice bluetoothDevice, int rssi) {
-        // only add the device if
-        // - it has a name, on
-        // - doesn't already exist in our list, or
-        // - is transmitting at a higher power (is closer) than an existing device
+    public void onBlePeripheralDiscovered(final BluetoothDevice bluetoothDevice, int rssi, byte[] scanRecord) {
+        // only consider the device if
+        // - it is named like an Echo Server, or
+        // - it advertises an Echo Server load
+        // Servers are compared for SERVER_SELECTION_TIME_MS, then the
+        // least loaded, or closest, one is connected to
         if (!mIsConnecting) {
             boolean addDevice = false;
             if (bluetoothDevice.getName() != null) {
@@ -235,16 +308,40 @@ public class MainActivity extends AppCompatActivity {
                     addDevice = true;
                 }
             }
+            if (mServerSelector.hasLoadServiceData(scanRecord)) {
+                addDevice = true;
+            }
 
             if (addDevice) {
-                stopScanning();
-
-                connect(bluetoothDevice);
-
+                mServerSelector.offer(bluetoothDevice, rssi, scanRecord);
+                if (!mIsSelectingServer) {
+                    mIsSelectingServer = true;
+                    mHandler.postDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            connectToBestServer();
+                        }
+                    }, SERVER_SELECTION_TIME_MS);
+                }
             }
         }
     }
 
+    /**
+     * Stop comparing servers and connect to the best one found
+     */
+    private void connectToBestServer() {
+        if (!mIsSelectingServer) return;
+        mIsSelectingServer = false;
+        mHandler.removeCallbacksAndMessages(null);
+
+        BluetoothDevice bluetoothDevice = mServerSelector.getBestDevice();
+        if (bluetoothDevice != null && !mIsConnecting) {
+            stopScanning();
+            connect(bluetoothDevice);
+        }
+    }
+
     /**
      * Bluetooth Peripheral connected.  Update UI
      */
@@ -253,7 +350,7 @@ public class MainActivity extends AppCompatActivity {
         mDeviceNameTV.setText(EchoServer.BROADCAST_NAME);
         mDeviceAddressTV.setText(mEchoServer.getBluetoothDevice().getAddress());
         mProgressSpinner.setVisible(false);
-        mResponseText.setVisibility(View.VISIBLE);
+        mResponseList.setVisibility(View.VISIBLE);
 
         // attach callbacks to the buttons and stuff
         mSendButton.setVisibility(View.VISIBLE);
@@ -264,8 +361,10 @@ public class MainActivity extends AppCompatActivity {
                 Log.d(TAG, "Send button clicked");
                 String value = mSendText.getText().toString()+"\n";
                 try {
-                    mEchoServer.writeValue(value);
-
+                    if (!mEchoServer.writeValue(value)) {
+                        // stored until the connection comes back, so the box is free for the next message
+                        mSendText.setText("");
+                    }
                 } catch (Exception e) {
                     Log.d(TAG, "problem sending message through bluetooth");
                 }
@@ -334,8 +433,9 @@ public class MainActivity extends AppCompatActivity {
         public void onScanResult(int callbackType, ScanResult result) {
             final BluetoothDevice bluetoothDevice = result.getDevice();
             int rssi = result.getRssi();
+            byte[] scanRecord = result.getScanRecord() != null ? result.getScanRecord().getBytes() : null;
 
-            onBlePeripheralDiscovered(bluetoothDevice, rssi);
+            onBlePeripheralDiscovered(bluetoothDevice, rssi, scanRecord);
         }
 
         /**
@@ -348,8 +448,9 @@ public class MainActivity extends AppCompatActivity {
             for (ScanResult result : results) {
                 final BluetoothDevice bluetoothDevice = result.getDevice();
                 int rssi = result.getRssi();
+                byte[] scanRecord = result.getScanRecord() != null ? result.getScanRecord().getBytes() : null;
 
-                onBlePeripheralDiscovered(bluetoothDevice, rssi);
+                onBlePeripheralDiscovered(bluetoothDevice, rssi, scanRecord);
             }
         }
 
@@ -407,8 +508,14 @@ public class MainActivity extends AppCompatActivity {
          *  Bluetooth LE Scan complete - timer expired out while searching for bluetooth devices
          */
         @Override
-        public void onLeScan(final BluetoothDevice bluetoothDevice, int rssi, byte[] scanRecord) {
-            onBlePeripheralDiscovered(bluetoothDevice, rssi);
+        public void onLeScan(final BluetoothDevice bluetoothDevice, final int rssi, final byte[] scanRecord) {
+            // API 18 scan results arrive on a Binder thread
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    onBlePeripheralDiscovered(bluetoothDevice, rssi, scanRecord);
+                }
+            });
         }
 
         @Override
@@ -423,45 +530,66 @@ public class MainActivity extends AppCompatActivity {
     };
 
 
-    private EchoServerCallback mEchoServerCallback = new EchoServerCallback() {
+    /**
+     * Update the UI for everything that happened since the last frame
+     */
+    private final FrameDispatcherCallback mFrameDispatcherCallback = new FrameDispatcherCallback() {
         @Override
-        public void connected() {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
+        public void onEvents(int events) {
+            if ((events & EVENT_CONNECTION_CHANGED) != 0) {
+                // only the latest state matters, however many times it changed during the frame
+                if (mIsConnected) {
                     onBleConnected();
+                } else {
+                    onBleDisconnected();
                 }
-            });
+            }
+            if ((events & EVENT_MESSAGE_SENT) != 0) {
+                onBleCharacteristicValueWritten();
+            }
+            if ((events & EVENT_MESSAGE_RECEIVED) != 0) {
+                updateResponseList();
+            }
+        }
+    };
+
+    /**
+     * Messages are logged as the bytes that arrived.  The list decodes them when it shows them
+     */
+    private EchoServerRawCallback mEchoServerCallback = new EchoServerRawCallback() {
+        @Override
+        public void connected() {
+            mIsConnected = true;
+            mFrameDispatcher.post(EVENT_CONNECTION_CHANGED);
         }
 
         @Override
         public void disconnected() {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    onBleDisconnected();
-                }
-            });
+            mIsConnected = false;
+            mFrameDispatcher.post(EVENT_CONNECTION_CHANGED);
         }
 
         @Override
         public void messageSent() {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    onBleCharacteristicValueWritten();
-                }
-            });
+            mFrameDispatcher.post(EVENT_MESSAGE_SENT);
         }
 
         @Override
-        public void messageReceived(final String messageText) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    updateResponseText(messageText);
+        public void messageReceived(final ByteBuffer message, final int length) {
+            if (mChatLog != null) {
+                // the view only lasts until this returns
+                if (mMessageBytes.length < length) {
+                    mMessageBytes = new byte[length];
                 }
-            });
+                message.get(mMessageBytes, 0, length);
+                try {
+                    mChatLog.append(mMessageBytes, 0, length, System.currentTimeMillis());
+                } catch (Exception e) {
+                    Log.d(TAG, "Could not log message: " + e.getMessage());
+                }
+            }
+            // the list reads new messages back from the log, so a burst needs one update
+            mFrameDispatcher.post(EVENT_MESSAGE_RECEIVED);
         }
     };
 }
@@ -10,12 +10,29 @@ import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.File;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Random;
 import java.util.UUID;
-
-import tonyg.example.com.bleechoclient.ble.callbacks.EchoServerCallback;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import tonyg.example.com.blechatcore.MessageChannel;
+import tonyg.example.com.blechatcore.Scheduler;
+import tonyg.example.com.blechatcore.callbacks.MessageChannelCallback;
+import tonyg.example.com.blechatcore.callbacks.OperationWatchdogCallback;
+import tonyg.example.com.blechatcore.callbacks.ReliableLinkCallback;
+import tonyg.example.com.blechatcore.queue.PersistentMessageQueue;
+import tonyg.example.com.blechatcore.transport.OperationWatchdog;
+import tonyg.example.com.blechatcore.transport.PacketArrays;
+import tonyg.example.com.blechatcore.transport.ReliableLink;
+import tonyg.example.com.blechatcore.transport.Transport;
+import tonyg.example.com.bleechoclient.ble.callbacks.EchoServerRawCallback;
+import tonyg.example.com.bleechoclient.utilities.EventTrace;
+import tonyg.example.com.bleechoclient.utilities.Metrics;
 
 /**
  * This class allows us to share Bluetooth resources
@@ -26,11 +43,11 @@ import tonyg.example.com.bleechoclient.ble.callbacks.EchoServerCallback;
 public class EchoServer {
     private static final String TAG = EchoServer.class.getSimpleName();
 
-    public static final String CHARACTER_ENCODING = "ASCII";
+    public static final String CHARACTER_ENCODING = "UTF-8";
 
     private BluetoothDevice mBluetoothDevice;
-    private BluetoothGatt mBluetoothGatt;
-    private EchoServerCallback mEchoServerCallback;
+    private volatile BluetoothGatt mBluetoothGatt;
+    private EchoServerRawCallback mEchoServerCallback;
     private BluetoothGattCharacteristic mReadCharacteristic, mWriteCharacteristic;
 
     /** Bluetooth Device stuff **/
@@ -43,90 +60,294 @@ public class EchoServer {
 
     private Context mContext;
 
+    /** Connection states.  The state only changes on the main thread **/
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+    public static final int STATE_DISCONNECTING = 3;
+    public static final int STATE_WAITING_TO_RECONNECT = 4;
+    private int mConnectionState = STATE_DISCONNECTED;
+
+    /** GATT statuses the SDK doesn't name **/
+    private static final int GATT_CONN_TIMEOUT = 8;
+    private static final int GATT_CONN_TERMINATE_PEER_USER = 19;
+    private static final int GATT_CONN_TERMINATE_LOCAL_HOST = 22;
+    private static final int GATT_ERROR = 133; // the stack's catch-all, often a connect that never got going
+
+    /** Each open BluetoothGatt holds one of the Bluetooth stack's few client slots, until it is closed **/
+    public static final int MAX_GATT_CLIENTS = 4; // for the whole app, so a leak can't lock out every connect
+    private static final AtomicInteger sNumGattClients = new AtomicInteger();
+
     /** Flow control stuff **/
-    private int mNumPacketsTotal;
-    private int mNumPacketsSent;
+    private static final int MESSAGE_QUEUE_CAPACITY = 16384;
+    public static final int DEFAULT_COALESCING_WINDOW_MS = 10; // short messages typed in a burst share packets
     private int mCharacteristicLength = 20;
-    private String mQueuedCharactersticValue;
+    private final MessageChannel mMessageChannel;
+    private final ReliableLink mReliableLink; // resends packets the Peripheral never got
+    private final PacketArrays mPacketArrays = new PacketArrays(mCharacteristicLength);
+
+    /** Session stuff **/
+    public static final int DEFAULT_SESSION_TIMEOUT_MS = 120000; // the Echo Server holds sessions for as long
+    private int mSessionTimeoutMs = DEFAULT_SESSION_TIMEOUT_MS;
+    private long mDisconnectedAtMs = -1;
+    private volatile boolean mIsSessionOpen = false;
+
+    /** Messages written while disconnected wait in a file until the session opens **/
+    private static final String OUTBOX_FILE_NAME = "outbox.log";
+    private PersistentMessageQueue mOutbox;
+
+    /** Watchdog stuff.  A GATT callback that never arrives would otherwise stall the connection for good **/
+    private static final int OPERATION_CONNECT = 1;
+    private static final int OPERATION_DISCOVER_SERVICES = 2;
+    private static final int OPERATION_DESCRIPTOR_WRITE = 3;
+    private static final int OPERATION_WRITE = 4;
+    private static final int OPERATION_READ = 5;
+    private static final int OPERATION_DISCONNECT = 6;
+    private static final long CONNECT_TIMEOUT_MS = 10000;
+    private static final long DISCOVER_SERVICES_TIMEOUT_MS = 10000;
+    private static final long OPERATION_TIMEOUT_MS = 2000; // writes, reads, descriptor writes and disconnects
+    private static final int MAX_OPERATION_RETRIES = 1; // then the connection is torn down and made again
+    public static final int INITIAL_RECONNECT_DELAY_MS = 1000;
+    public static final int MAX_RECONNECT_DELAY_MS = 30000;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final OperationWatchdog mWatchdog;
+    private int mNumReconnects = 0; // since a session last started
+    private final Random mRandom = new Random();
+
+    /** Incoming messages are passed on as read-only views, without decoding **/
+    private ByteBuffer mMessageView;
+    private byte[] mMessageViewArray;
 
     /**
      * Create a new EchoServer
      *
      * @param context the Activity context
-     * @param echoServerCallback the EchoServerCallback
+     * @param echoServerCallback an EchoServerCallback for text, or an EchoServerRawCallback for raw bytes
      */
-    public EchoServer(Context context, EchoServerCallback echoServerCallback) {
+    public EchoServer(Context context, EchoServerRawCallback echoServerCallback) {
         mContext = context;
         mEchoServerCallback = echoServerCallback;
+        mReliableLink = new ReliableLink(mGattTransport, mHandlerScheduler);
+        mMessageChannel = new MessageChannel(mReliableLink, MESSAGE_QUEUE_CAPACITY, mHandlerScheduler, mMessageChannelCallback);
+        mReliableLink.attach(mMessageChannel);
+        mReliableLink.setReliableLinkCallback(mReliableLinkCallback);
+        mWatchdog = new OperationWatchdog(mHandlerScheduler, mOperationWatchdogCallback);
+        mMessageChannel.setCompressionEnabled(true);
+        setCoalescingWindow(DEFAULT_COALESCING_WINDOW_MS);
+        try {
+            mOutbox = new PersistentMessageQueue(new File(context.getFilesDir(), OUTBOX_FILE_NAME), MESSAGE_QUEUE_CAPACITY, mHandlerScheduler);
+        } catch (Exception e) {
+            Log.d(TAG, "Offline messages can't be kept: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Set how long a short message may wait for others to share its packet
+     *
+     * @param coalescingWindowMs the longest wait, in milliseconds.  0 sends every message right away
+     */
+    public void setCoalescingWindow(int coalescingWindowMs) {
+        mMessageChannel.setCoalescingWindow(coalescingWindowMs * 1000L, mHandlerScheduler);
     }
 
     /**
-     * Connect to a Peripheral
+     * Set how long a session is kept after a disconnect.  Reconnecting to the same
+     * Peripheral within this time carries on where the transfer left off
+     *
+     * @param sessionTimeoutMs the session timeout, in milliseconds
+     */
+    public void setSessionTimeout(int sessionTimeoutMs) {
+        mSessionTimeoutMs = sessionTimeoutMs;
+    }
+
+    /**
+     * Connect to a Peripheral.  A session held from the last connection to the same Peripheral is resumed.
+     * Any connection left from before is closed first
      *
      * @param bluetoothDevice the Bluetooth Device
      * @return a connection to the BluetoothGatt
-     * @throws Exception if no device is given
+     * @throws Exception if no device is given, or all the GATT client slots are taken
      */
     public BluetoothGatt connect(BluetoothDevice bluetoothDevice) throws Exception {
         if (bluetoothDevice == null) {
             throw new Exception("No bluetooth device provided");
         }
+        mHandler.removeCallbacks(mReconnectTask);
+        if (mBluetoothGatt != null) {
+            mBluetoothGatt.disconnect();
+            closeGatt();
+            onConnectionLost();
+        }
+        if (!acquireGattClient()) {
+            mConnectionState = STATE_DISCONNECTED;
+            throw new Exception("All " + MAX_GATT_CLIENTS + " GATT clients are in use");
+        }
+        boolean isSamePeripheral = mBluetoothDevice != null && mBluetoothDevice.getAddress().equals(bluetoothDevice.getAddress());
+        boolean isSessionExpired = mDisconnectedAtMs < 0 || SystemClock.elapsedRealtime() - mDisconnectedAtMs > mSessionTimeoutMs;
+        if (!isSamePeripheral || isSessionExpired) {
+            mReliableLink.reset();
+            mMessageChannel.reset();
+        }
         mBluetoothDevice = bluetoothDevice;
+        mConnectionState = STATE_CONNECTING;
+        mWatchdog.start(OPERATION_CONNECT, CONNECT_TIMEOUT_MS * 1000);
         mBluetoothGatt = bluetoothDevice.connectGatt(mContext, false, mGattCallback);
+        if (mBluetoothGatt == null) {
+            sNumGattClients.decrementAndGet();
+            mWatchdog.cancel();
+            mConnectionState = STATE_DISCONNECTED;
+            throw new Exception("Could not connect to the bluetooth device");
+        }
         //refreshDeviceCache();
         return mBluetoothGatt;
     }
 
     /**
-     * Disconnect from a Peripheral
+     * Disconnect from a Peripheral, and stop any reconnect that was planned.
+     * The connection is closed once the disconnect is reported, or after a timeout if it never is
      */
     public void disconnect() {
-        if (mBluetoothGatt != null) {
-            mBluetoothGatt.disconnect();
+        mHandler.removeCallbacks(mReconnectTask);
+        mWatchdog.cancel();
+        if (mBluetoothGatt == null) {
+            mConnectionState = STATE_DISCONNECTED;
+            return;
+        }
+        mBluetoothGatt.disconnect();
+        if (mConnectionState == STATE_CONNECTED) {
+            mConnectionState = STATE_DISCONNECTING;
+            mWatchdog.start(OPERATION_DISCONNECT, OPERATION_TIMEOUT_MS * 1000);
+        } else {
+            // a connect still in progress may never report back
+            closeGatt();
+            mConnectionState = STATE_DISCONNECTED;
         }
     }
 
     /**
-     * A connection can only close after a successful disconnect.
-     * Be sure to use the BluetoothGattCallback.onConnectionStateChanged event
-     * to notify of a successful disconnect
+     * Close the connection to the Peripheral right away, without waiting for a disconnect
      */
     public void close() {
-        if (mBluetoothGatt != null) {
-            mBluetoothGatt.close(); // close connection to Peripheral
-            mBluetoothGatt = null; // release from memory
+        mHandler.removeCallbacks(mReconnectTask);
+        mWatchdog.cancel();
+        closeGatt();
+        mConnectionState = STATE_DISCONNECTED;
+    }
+
+    /**
+     * Get the connection state
+     *
+     * @return one of STATE_DISCONNECTED, STATE_CONNECTING, STATE_CONNECTED, STATE_DISCONNECTING or STATE_WAITING_TO_RECONNECT
+     */
+    public int getConnectionState() {
+        return mConnectionState;
+    }
+
+    /**
+     * Get the number of BluetoothGatt clients the app has open
+     */
+    public static int getNumGattClients() {
+        return sNumGattClients.get();
+    }
+
+    /**
+     * Take a GATT client slot, unless they are all in use
+     *
+     * @return <b>false</b> if MAX_GATT_CLIENTS are already open
+     */
+    private static boolean acquireGattClient() {
+        while (true) {
+            int numGattClients = sNumGattClients.get();
+            if (numGattClients >= MAX_GATT_CLIENTS) return false;
+            if (sNumGattClients.compareAndSet(numGattClients, numGattClients + 1)) return true;
         }
     }
-    public BluetoothDevice getBluetoothDevice() {
-        return mBluetoothDevice;
+
+    /**
+     * Close the BluetoothGatt, whatever state it is in, and give back its client slot.
+     * A BluetoothGatt that is only disconnected keeps its slot in the Bluetooth stack,
+     * and once every slot is taken no connect succeeds until the app is killed
+     */
+    private void closeGatt() {
+        BluetoothGatt bluetoothGatt = mBluetoothGatt;
+        if (bluetoothGatt == null) return;
+        mBluetoothGatt = null;
+        bluetoothGatt.close();
+        sNumGattClients.decrementAndGet();
     }
 
     /**
-     * Write next packet in queue if necessary
+     * Hold the session after the connection drops, so a reconnect can pick up where this left off
+     */
+    private void onConnectionLost() {
+        mWatchdog.cancel();
+        mIsSessionOpen = false;
+        mReliableLink.onDisconnected();
+        mDisconnectedAtMs = SystemClock.elapsedRealtime();
+        mEchoServerCallback.disconnected();
+    }
+
+    /**
+     * Tell whether a disconnect with this status is worth reconnecting after.
+     * A Peripheral that ended the connection, or a disconnect asked for here, is left alone
      *
-     * @param value
-     * @return the value being written
-     * @throws Exception
+     * @param status the status from onConnectionStateChange
+     * @return <b>true</b> if the connection failed or dropped
      */
-    public String processIncomingMessage(String value)  throws Exception {
+    private static boolean isReconnectable(int status) {
+        switch (status) {
+            case BluetoothGatt.GATT_SUCCESS:
+            case GATT_CONN_TERMINATE_PEER_USER:
+            case GATT_CONN_TERMINATE_LOCAL_HOST:
+                return false;
+            case GATT_CONN_TIMEOUT: // out of range for a moment
+            case GATT_ERROR:
+            default:
+                return true;
+        }
+    }
 
-        if (morePacketsAvailableInQueue()) {
-            // I honestly don't know why, but this sends too quickly for client to process
-            // so we have to delay it
-            //final Handler handler = new Handler(Looper.getMainLooper());
-            //handler.postDelayed(new Runnable() {
-            // @Override
-            //public void run() {
-            try {
-                writePartialValue(mQueuedCharactersticValue, mNumPacketsSent);
-            } catch (Exception e) {
-                Log.d(TAG, "Unable to send next chunk of message");
-            }
-            //}
-            //}, 100);
+    /**
+     * Move through the connection states as the Bluetooth stack reports connects and disconnects.
+     * Runs on the main thread
+     *
+     * @param bluetoothGatt the BluetoothGatt the change is for
+     * @param status the status of the operation that caused the change
+     * @param newState the new connection state
+     */
+    private void onConnectionStateChanged(BluetoothGatt bluetoothGatt, int status, int newState) {
+        if (bluetoothGatt != mBluetoothGatt) {
+            // a connection that was already given up on.  Closing one twice is harmless
+            bluetoothGatt.close();
+            return;
         }
+        if (newState == BluetoothProfile.STATE_CONNECTED && status == BluetoothGatt.GATT_SUCCESS) {
+            if (EventTrace.ENABLED) EventTrace.record(EventTrace.CONNECTED, status);
+            Log.d(TAG, "Connected to device");
+            mConnectionState = STATE_CONNECTED;
+
+            mWatchdog.start(OPERATION_DISCOVER_SERVICES, DISCOVER_SERVICES_TIMEOUT_MS * 1000);
+            bluetoothGatt.discoverServices();
+        } else if (newState == BluetoothProfile.STATE_DISCONNECTED || status != BluetoothGatt.GATT_SUCCESS) {
+            if (EventTrace.ENABLED) EventTrace.record(EventTrace.DISCONNECTED, status);
+            Log.d(TAG, "Disconnected from device, status " + status);
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Metrics.GATT_ERRORS.increment();
+            }
+            boolean isRequested = mConnectionState == STATE_DISCONNECTING;
+            bluetoothGatt.disconnect();
+            closeGatt();
+            onConnectionLost();
 
-        return value;
+            if (!isRequested && isReconnectable(status)) {
+                scheduleReconnect();
+            } else {
+                mConnectionState = STATE_DISCONNECTED;
+            }
+        }
+    }
+    public BluetoothDevice getBluetoothDevice() {
+        return mBluetoothDevice;
     }
 
     /**
@@ -147,29 +368,110 @@ public class EchoServer {
     }
 
     /**
-     * Request a data/value read from a Ble Characteristic
+     * Request a data/value read from a Ble Characteristic.
+     * Messages arrive as notifications, so a read only returns the last packet sent
      */
     public void readValue() {
         // Reading a characteristic requires both requesting the read and handling the callback that is
         // sent when the read is successful
         // http://stackoverflow.com/a/20020279
+        mWatchdog.start(OPERATION_READ, OPERATION_TIMEOUT_MS * 1000);
         mBluetoothGatt.readCharacteristic(mReadCharacteristic);
     }
 
     /**
-     * Write a value to the Characteristic
+     * Write a value to the Characteristic.
+     * The message is stored in the outbox, which feeds it to the MessageChannel
+     * to be written one packet at a time, so it survives the app being killed until the Peripheral has it.
+     * While disconnected it waits in the outbox until the session opens.  Call from the main thread
      *
      * @param value
-     * @throws Exception
+     * @return <b>true</b> if the message was queued to send now, <b>false</b> if it was stored for later
+     * @throws Exception if the message is too long or can't be queued or stored
+     */
+    public boolean writeValue(String value) throws Exception {
+        byte[] message = value.getBytes(CHARACTER_ENCODING);
+        if (mOutbox == null) {
+            if (!mMessageChannel.sendMessage(message, 0, message.length)) {
+                throw new Exception("Message queue is full");
+            }
+            return true;
+        }
+
+        mOutbox.offer(message, 0, message.length);
+        return drainOutbox();
+    }
+
+    /**
+     * Move stored messages into the MessageChannel while the session is open, as fast as it takes them.
+     * They stay in the outbox file until the Peripheral has acked them.  Only runs on the main thread,
+     * so the MessageChannel is never called while the outbox is locked
+     *
+     * @return <b>true</b> if every stored message is now in the MessageChannel
+     */
+    private boolean drainOutbox() {
+        if (mOutbox == null || !mIsSessionOpen) return false;
+        try {
+            int length;
+            while ((length = mOutbox.peek()) >= 0) {
+                if (!mMessageChannel.sendMessage(mOutbox.getMessageBytes(), 0, length)) {
+                    // full; carries on when it has sent what it holds
+                    return false;
+                }
+                mOutbox.remove();
+            }
+            return true;
+        } catch (Exception e) {
+            Log.d(TAG, "Problem sending offline messages: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Drain the outbox on the main thread
      */
-    public void writeValue(String value) throws Exception {
-        // reset the queue counters, prepare the message to be sent, and send the value to the Characteristic
-        mQueuedCharactersticValue = value;
-        mNumPacketsSent = 0;
-        byte[] byteValue = value.getBytes();
-        mNumPacketsTotal = (int) Math.ceil((float) byteValue.length / mCharacteristicLength);
-        writePartialValue(value, mNumPacketsSent);
+    private final Runnable mDrainOutboxTask = new Runnable() {
+        @Override
+        public void run() {
+            drainOutbox();
+        }
+    };
+
+    /**
+     * Forget the stored messages once the Peripheral has acked everything they were sent in.
+     * A packet the ReliableLink has accepted but not had acked is lost if the session starts over,
+     * so nothing is committed while one is outstanding or still waiting in the MessageChannel
+     */
+    private final Runnable mCommitOutboxTask = new Runnable() {
+        @Override
+        public void run() {
+            if (mOutbox == null || !mIsSessionOpen) return;
+            // checked in this order, since packets only move from the MessageChannel into the ReliableLink
+            if (mMessageChannel.getNumQueuedBytes() > 0 || mReliableLink.getNumUnackedPackets() > 0) return;
+            try {
+                mOutbox.commit();
+            } catch (Exception e) {
+                Log.d(TAG, "Problem updating offline messages: " + e.getMessage());
+            }
+            drainOutbox();
+        }
+    };
 
+    /**
+     * Open the outbox to the session on the main thread.  If the session started over,
+     * whatever was in the MessageChannel was lost, so it is sent again before anything newer
+     */
+    private void startOutbox(final boolean isResumed) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isResumed && mOutbox != null) {
+                    mOutbox.rewind();
+                }
+                mIsSessionOpen = true;
+                drainOutbox();
+            }
+        });
     }
 
     /**
@@ -188,10 +490,10 @@ public class EchoServer {
         // maybe it can be handled with a callback, but this is an easy way to implement
         Log.v(TAG, "characteristic: "+characteristic);
 
-        final Handler handler = new Handler(Looper.getMainLooper());
-        handler.postDelayed(new Runnable() {
+        mHandler.postDelayed(new Runnable() {
             @Override
             public void run() {
+                if (mBluetoothGatt == null) return; // torn down in the meantime
                 BluetoothGattDescriptor descriptor = characteristic.getDescriptor(NOTIFY_DISCRIPTOR_UUID);
                 Log.v(TAG, "descriptor: "+descriptor);
                 if (enabled) {
@@ -199,78 +501,182 @@ public class EchoServer {
                 } else {
                     descriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
                 }
+                mWatchdog.start(OPERATION_DESCRIPTOR_WRITE, OPERATION_TIMEOUT_MS * 1000);
                 mBluetoothGatt.writeDescriptor(descriptor);
             }
         }, 10);
     }
 
     /**
-     * Write a portion of a larger message to a Characteristic
-     *
-     * @param message The message being written
-     * @param offset The current packet index in queue to be written
-     * @throws Exception
+     * Tear down a connection the Bluetooth stack stopped answering on, without waiting
+     * for a callback that may never come, and connect again after a backoff.
+     * The session is held, so the transfer carries on where it stalled
      */
-    public void writePartialValue(String message, int offset) throws Exception {
-        byte[] temp = message.getBytes();
+    private void reconnect() {
+        if (mBluetoothGatt != null) {
+            mBluetoothGatt.disconnect();
+        }
+        closeGatt();
+        onConnectionLost();
+        scheduleReconnect();
+    }
 
-        mNumPacketsTotal = (int) Math.ceil((float) temp.length / mCharacteristicLength);
-        int remainder = temp.length % mCharacteristicLength;
+    /**
+     * Connect again after a backoff that doubles with each try.  The delay is jittered
+     * between half and all of the backoff, so Centrals that lost the Peripheral together
+     * don't all come back at the same moment
+     */
+    private void scheduleReconnect() {
+        Metrics.GATT_RECONNECTS.increment();
+        long backoffMs = Math.min(MAX_RECONNECT_DELAY_MS, (long) INITIAL_RECONNECT_DELAY_MS << Math.min(mNumReconnects, 16));
+        long delayMs = backoffMs / 2 + (long) (mRandom.nextDouble() * (backoffMs / 2));
+        mNumReconnects++;
+        mConnectionState = STATE_WAITING_TO_RECONNECT;
+        Log.d(TAG, "Reconnecting in " + delayMs + " ms");
+        mHandler.removeCallbacks(mReconnectTask);
+        mHandler.postDelayed(mReconnectTask, delayMs);
+    }
 
-        int dataLength = mCharacteristicLength;
-        if (offset >= mNumPacketsTotal) {
-            dataLength = remainder;
+    private final Runnable mReconnectTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                connect(mBluetoothDevice);
+            } catch (Exception e) {
+                Log.d(TAG, "Could not reconnect: " + e.getMessage());
+                scheduleReconnect();
+            }
         }
+    };
 
-        byte[] packet = new byte[dataLength];
-        for (int localIndex = 0; localIndex < packet.length; localIndex++) {
-            int index = (offset * dataLength) + localIndex;
-            if (index < temp.length) {
-                packet[localIndex] = temp[index];
-            } else {
-                packet[localIndex] = 0x00;
+    /**
+     * Retry a GATT operation whose callback never came, and reconnect if the retry stalls too
+     */
+    private final OperationWatchdogCallback mOperationWatchdogCallback = new OperationWatchdogCallback() {
+        @Override
+        public void onOperationTimedOut(int operation, int numTimeouts) {
+            Log.d(TAG, "GATT operation " + operation + " timed out");
+            if (EventTrace.ENABLED) EventTrace.record(EventTrace.OPERATION_TIMED_OUT, operation);
+            Metrics.GATT_STALLS.increment();
+            BluetoothGatt bluetoothGatt = mBluetoothGatt;
+            if (bluetoothGatt == null) return;
+
+            if (operation == OPERATION_DISCONNECT) {
+                // the disconnect was never reported, so close without it
+                closeGatt();
+                onConnectionLost();
+                mConnectionState = STATE_DISCONNECTED;
+                return;
+            }
+            // a connect can't be retried without closing the one in progress, and neither can a write,
+            // since its callback may still arrive and be taken for the retry's
+            if (operation == OPERATION_CONNECT || operation == OPERATION_WRITE || numTimeouts > MAX_OPERATION_RETRIES) {
+                reconnect();
+                return;
+            }
+            Metrics.GATT_RETRIES.increment();
+            switch (operation) {
+                case OPERATION_DISCOVER_SERVICES:
+                    mWatchdog.start(OPERATION_DISCOVER_SERVICES, DISCOVER_SERVICES_TIMEOUT_MS * 1000);
+                    bluetoothGatt.discoverServices();
+                    break;
+                case OPERATION_DESCRIPTOR_WRITE:
+                    setCharacteristicNotification(mReadCharacteristic, true);
+                    break;
+                case OPERATION_READ:
+                    readValue();
+                    break;
             }
         }
+    };
 
-        // a simpler way to write this might be:
-        //System.arraycopy(getCurrentMessage().getBytes(), getCurrentOffset()*mCharacteristicLength, chunk, 0, mCharacteristicLength);
-        //chunk[dataLength] = 0x00;
+    /**
+     * Runs MessageChannel and ReliableLink timers, and the watchdog, on the main thread
+     */
+    private final Scheduler mHandlerScheduler = new Scheduler() {
+        @Override
+        public void schedule(long delayMicros, Runnable runnable) {
+            mHandler.postDelayed(runnable, (delayMicros + 999) / 1000);
+        }
 
-        Log.v(TAG, "Writing message: '" + new String(packet, "ASCII") + "' to " + mWriteCharacteristic.getUuid().toString());
-        mWriteCharacteristic.setValue(packet);
-        mBluetoothGatt.writeCharacteristic(mWriteCharacteristic);
-        mNumPacketsSent++;
-    }
+        @Override
+        public void cancel(Runnable runnable) {
+            mHandler.removeCallbacks(runnable);
+        }
+    };
 
     /**
-     * Determine if a message has been completely wirtten to a Characteristic or if more data is in queue
-     *
-     * @return <b>false</b> if all of a message is has been written to a Characteristic, <b>true</b> otherwise
+     * Start over with a fresh MessageChannel unless the session carried on
      */
-    public boolean morePacketsAvailableInQueue() {
-        boolean morePacketsAvailable = mNumPacketsSent < mNumPacketsTotal;
-        Log.v(TAG, mNumPacketsSent + " of " + mNumPacketsTotal + " packets sent: "+morePacketsAvailable);
-        return morePacketsAvailable;
-    }
+    private final ReliableLinkCallback mReliableLinkCallback = new ReliableLinkCallback() {
+        @Override
+        public void onSessionStarted(int sessionId, boolean isResumed) {
+            Log.d(TAG, "Session " + sessionId + (isResumed ? " resumed" : " started"));
+            mNumReconnects = 0;
+            if (!isResumed) {
+                mMessageChannel.reset();
+                mMessageChannel.sendHello();
+            }
+            startOutbox(isResumed);
+        }
+
+        @Override
+        public void onAllPacketsAcked() {
+            mHandler.post(mCommitOutboxTask);
+        }
+    };
 
     /**
-     * Determine how much of a message has been written to a Characteristic
-     *
-     * @return integer representing how many packets have been written so far to Characteristic
+     * Writes packets to the write Characteristic
      */
-    public int getCurrentOffset() {
-        return mNumPacketsSent;
-    }
+    private final Transport mGattTransport = new Transport() {
+        @Override
+        public int getMaxPacketLength() {
+            return mCharacteristicLength;
+        }
 
+        @Override
+        public boolean sendPacket(byte[] packet, int length) {
+            if (mBluetoothGatt == null || mWriteCharacteristic == null) {
+                return false;
+            }
+            if (EventTrace.ENABLED) EventTrace.record(EventTrace.WRITE_STARTED, length);
+            mWriteCharacteristic.setValue(mPacketArrays.copyOf(packet, length));
+            if (!mBluetoothGatt.writeCharacteristic(mWriteCharacteristic)) {
+                Metrics.WRITE_FAILURES.increment();
+                return false;
+            }
+            mWatchdog.start(OPERATION_WRITE, OPERATION_TIMEOUT_MS * 1000);
+            Metrics.WRITES.increment();
+            Metrics.BYTES_OUT.add(length);
+            return true;
+        }
+    };
 
     /**
-     * Get the current message being written to a Characterstic
-     *
-     * @return the message in queue for writing to a Characteristic
+     * Relay whole messages from the MessageChannel
      */
-    public String getCurrentMessage() {
-        return mQueuedCharactersticValue;
-    }
+    private final MessageChannelCallback mMessageChannelCallback = new MessageChannelCallback() {
+        @Override
+        public void onMessageReceived(byte[] message, int offset, int length) {
+            // the MessageChannel reuses its reassembly buffer, so the view usually can be too
+            if (message != mMessageViewArray) {
+                mMessageViewArray = message;
+                mMessageView = ByteBuffer.wrap(message).asReadOnlyBuffer();
+            }
+            mMessageView.clear();
+            mMessageView.position(offset);
+            mMessageView.limit(offset + length);
+            mEchoServerCallback.messageReceived(mMessageView, length);
+        }
+
+        @Override
+        public void onAllMessagesSent() {
+            // called with the MessageChannel locked, so the outbox waits for the main thread
+            mHandler.post(mDrainOutboxTask);
+            mEchoServerCallback.messageSent();
+        }
+    };
 
     // http://stackoverflow.com/a/21300916/5671180
     // more options available at:
@@ -310,70 +716,76 @@ public class EchoServer {
         public void onCharacteristicRead(final BluetoothGatt gatt,
                                          final BluetoothGattCharacteristic characteristic,
                                          int status) {
+            mWatchdog.complete(OPERATION_READ);
 
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                // read more at http://developer.android.com/guide/topics/connectivity/bluetooth-le.html#notification
-                final byte[] data = characteristic.getValue();
-
-                String message = "";
-                try {
-                    message = new String(data, CHARACTER_ENCODING);
-                } catch (Exception e) {
-                    Log.d(TAG, "Could not convert message byte array to String");
-                }
-
-                Log.d(TAG, "received: "+message);
-
-                final String messageText = message;
-
-                mEchoServerCallback.messageReceived(messageText);
-
-                try {
-                    processIncomingMessage(message);
-                } catch (Exception e) {
-                    Log.d(TAG, "Could not send next message part");
-                }
-
+                // messages arrive as notifications, so there is nothing to reassemble here
+                if (EventTrace.ENABLED) EventTrace.record(EventTrace.READ_COMPLETED, characteristic.getValue().length);
+            } else {
+                if (EventTrace.ENABLED) EventTrace.record(EventTrace.READ_FAILED, status);
+                Metrics.READ_FAILURES.increment();
             }
 
         }
 
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            // a write that timed out belongs to a connection that was torn down, and its packet went with it
+            if (gatt != mBluetoothGatt) return;
+            mWatchdog.complete(OPERATION_WRITE);
 
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.d(TAG, "characteristic written");
-                mEchoServerCallback.messageSent();
-
-
+                if (EventTrace.ENABLED) EventTrace.record(EventTrace.WRITE_COMPLETED, status);
+                mReliableLink.onPacketSent(true);
             } else {
                 Log.d(TAG, "problem writing characteristic");
+                if (EventTrace.ENABLED) EventTrace.record(EventTrace.WRITE_FAILED, status);
+                Metrics.WRITE_FAILURES.increment();
+                mReliableLink.onPacketSent(false);
             }
+            // recorded here rather than in sendPacket(), which runs under the ReliableLink's lock
+            Metrics.WRITE_QUEUE_DEPTH.record((mMessageChannel.getNumQueuedBytes() + mCharacteristicLength - 1) / mCharacteristicLength);
         }
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
-            readValue();
-
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            mWatchdog.complete(OPERATION_DESCRIPTOR_WRITE);
+            // once notifications are on, the Peripheral can answer, so agree on a session;
+            // a new session then offers compression
+            if (status == BluetoothGatt.GATT_SUCCESS && NOTIFY_DISCRIPTOR_UUID.equals(descriptor.getUuid())
+                    && descriptor.getCharacteristic() == mReadCharacteristic) {
+                mReliableLink.openSession();
+            }
         }
 
         @Override
-        public void onConnectionStateChange(final BluetoothGatt bluetoothGatt, int status, int newState) {
-
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                Log.d(TAG, "Connected to device");
-
-                bluetoothGatt.discoverServices();
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                mEchoServerCallback.disconnected();
-                Log.d(TAG, "Disconnected from device");
-
-                disconnect();
+        public void onCharacteristicChanged(BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
+            // the notification carries the packet, so there is no need to read it back
+            final byte[] data = characteristic.getValue();
+            if (EventTrace.ENABLED) EventTrace.record(EventTrace.NOTIFICATION_RECEIVED, data.length);
+            Metrics.NOTIFICATIONS.increment();
+            Metrics.BYTES_IN.add(data.length);
+            try {
+                mReliableLink.onPacketReceived(data, 0, data.length);
+            } catch (Exception e) {
+                Log.d(TAG, "Dropping malformed message: " + e.getMessage());
             }
         }
 
+        @Override
+        public void onConnectionStateChange(final BluetoothGatt bluetoothGatt, final int status, final int newState) {
+            // handled on the main thread, with the watchdog and the reconnect timer
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onConnectionStateChanged(bluetoothGatt, status, newState);
+                }
+            });
+        }
+
         @Override
         public void onServicesDiscovered(final BluetoothGatt bluetoothGatt, int status) {
-            Log.d(TAG, "SERVICE DISCOVERED!: ");
+            if (EventTrace.ENABLED) EventTrace.record(EventTrace.SERVICES_DISCOVERED, status);
+            mWatchdog.complete(OPERATION_DISCOVER_SERVICES);
 
             // if services were discovered, then let's iterate through them and display them on screen
             if (status == BluetoothGatt.GATT_SUCCESS) {
@@ -0,0 +1,162 @@
+package tonyg.example.com.bleechoclient.ble;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Collects Echo Servers found while scanning and picks the best one to connect to.
+ *
+ * Echo Servers advertise their load as Service Data.
+ * Servers with free connection slots are preferred, then the least loaded,
+ * then the one with the strongest signal.  Only the latest advertisement from each
+ * server counts, so a server that fills up stops being the best.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class ServerSelector {
+    /** Constants **/
+    // Advertising Data types, from the Bluetooth Core Specification Supplement
+    private static final int AD_TYPE_SERVICE_DATA_16_BIT = 0x16;
+
+    // Server load Service Data layout
+    private static final int LOAD_SERVICE_DATA_LENGTH = 3;
+    private static final int LOAD_CONNECTIONS_INDEX = 0;
+    private static final int LOAD_CAPACITY_INDEX = 1;
+    private static final int LOAD_SCORE_INDEX = 2;
+
+    // servers that don't advertise a load are assumed to be half full
+    private static final int UNKNOWN_LOAD_SCORE = 128;
+
+    private final int mServiceUuid16;
+
+    // the latest advertisement from each server, by address
+    private final Map<String, ServerReport> mServerReports = new HashMap<>();
+
+    /**
+     * Create a new ServerSelector
+     *
+     * @param serviceUuid the Service UUID the load is advertised under.  Must be a 16-bit Bluetooth SIG UUID
+     */
+    public ServerSelector(UUID serviceUuid) {
+        mServiceUuid16 = (int) (serviceUuid.getMostSignificantBits() >>> 32) & 0xFFFF;
+    }
+
+    /**
+     * Forget all the servers found so far
+     */
+    public synchronized void reset() {
+        mServerReports.clear();
+    }
+
+    /**
+     * Consider a discovered server
+     *
+     * @param bluetoothDevice the server
+     * @param rssi the server's signal strength
+     * @param scanRecord the raw advertising data, or null if not available
+     */
+    public synchronized void offer(BluetoothDevice bluetoothDevice, int rssi, byte[] scanRecord) {
+        int loadScore = UNKNOWN_LOAD_SCORE;
+        boolean hasRoom = true;
+
+        int loadOffset = findLoadServiceData(scanRecord);
+        if (loadOffset >= 0) {
+            int numConnections = scanRecord[loadOffset + LOAD_CONNECTIONS_INDEX] & 0xFF;
+            int capacity = scanRecord[loadOffset + LOAD_CAPACITY_INDEX] & 0xFF;
+            loadScore = scanRecord[loadOffset + LOAD_SCORE_INDEX] & 0xFF;
+            hasRoom = numConnections < capacity;
+        }
+
+        ServerReport serverReport = mServerReports.get(bluetoothDevice.getAddress());
+        if (serverReport == null) {
+            serverReport = new ServerReport(bluetoothDevice);
+            mServerReports.put(bluetoothDevice.getAddress(), serverReport);
+        }
+        serverReport.mRssi = rssi;
+        serverReport.mLoadScore = loadScore;
+        serverReport.mHasRoom = hasRoom;
+    }
+
+    /**
+     * Check if a server has advertised its load
+     *
+     * @param scanRecord the raw advertising data
+     * @return <b>true</b> if the advertising data has server load Service Data
+     */
+    public boolean hasLoadServiceData(byte[] scanRecord) {
+        return findLoadServiceData(scanRecord) >= 0;
+    }
+
+    /**
+     * Get the best server found so far
+     *
+     * @return the best server, or null if none have been found
+     */
+    public synchronized BluetoothDevice getBestDevice() {
+        ServerReport bestReport = null;
+        for (ServerReport serverReport : mServerReports.values()) {
+            if (bestReport == null || serverReport.isBetterThan(bestReport)) {
+                bestReport = serverReport;
+            }
+        }
+        return bestReport != null ? bestReport.mBluetoothDevice : null;
+    }
+
+    /**
+     * Find the server load inside the raw advertising data.
+     * Advertising data is a list of [length][type][data] structures
+     *
+     * @param scanRecord the raw advertising data
+     * @return the position of the load Service Data, or -1 if there isn't any
+     */
+    private int findLoadServiceData(byte[] scanRecord) {
+        if (scanRecord == null) return -1;
+        int index = 0;
+        while (index < scanRecord.length - 1) {
+            int length = scanRecord[index] & 0xFF;
+            if (length == 0 || index + length >= scanRecord.length) {
+                break;
+            }
+            int type = scanRecord[index + 1] & 0xFF;
+            if (type == AD_TYPE_SERVICE_DATA_16_BIT && length >= 3 + LOAD_SERVICE_DATA_LENGTH) {
+                int uuid16 = (scanRecord[index + 2] & 0xFF) | ((scanRecord[index + 3] & 0xFF) << 8);
+                if (uuid16 == mServiceUuid16) {
+                    return index + 4;
+                }
+            }
+            index += length + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * The latest advertisement from one server
+     */
+    private static class ServerReport {
+        private final BluetoothDevice mBluetoothDevice;
+        private int mRssi;
+        private int mLoadScore;
+        private boolean mHasRoom;
+
+        ServerReport(BluetoothDevice bluetoothDevice) {
+            mBluetoothDevice = bluetoothDevice;
+        }
+
+        /**
+         * Compare against another server
+         */
+        boolean isBetterThan(ServerReport other) {
+            if (mHasRoom != other.mHasRoom) {
+                return mHasRoom;
+            }
+            if (mLoadScore != other.mLoadScore) {
+                return mLoadScore < other.mLoadScore;
+            }
+            return mRssi > other.mRssi;
+        }
+    }
+}
@@ -1,27 +1,18 @@
 package tonyg.example.com.bleechoclient.ble.callbacks;
 
+import java.nio.ByteBuffer;
+
+import tonyg.example.com.blechatcore.codec.Utf8StreamDecoder;
+
 /**
- * Relay state changes from Echo Server
+ * Relay state changes from Echo Server, with messages decoded as UTF-8 text
  *
  * @author Tony Gaitatzis backupbrain@gmail.com
  * @date 2015-12-21
  */
-public abstract class EchoServerCallback {
-    /**
-     * Echo Server connected
-     */
-    public abstract void connected();
-
-    /**
-     * Echo Server disconnected
-     */
-    public abstract void disconnected();
-
-    /**
-     * Message sent to Echo Server
-     */
-
-    public abstract void messageSent();
+public abstract class EchoServerCallback extends EchoServerRawCallback {
+    private final Utf8StreamDecoder mMessageDecoder = new Utf8StreamDecoder();
+    private final StringBuilder mMessageText = new StringBuilder();
 
     /**
      * Message received from Echo Server
@@ -29,4 +20,21 @@ public abstract class EchoServerCallback {
      * @param messageText the incoming text
      */
     public abstract void messageReceived(final String messageText);
+
+    /**
+     * Decode the raw message and pass it on as text
+     *
+     * @param message a read-only view of the message
+     * @param length the message length in bytes
+     */
+    @Override
+    public void messageReceived(final ByteBuffer message, final int length) {
+        String messageText;
+        synchronized (mMessageDecoder) {
+            mMessageText.setLength(0);
+            mMessageDecoder.decodeMessage(message, mMessageText);
+            messageText = mMessageText.toString();
+        }
+        messageReceived(messageText);
+    }
 }
@@ -0,0 +1,40 @@
+package tonyg.example.com.bleechoclient.ble.callbacks;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Relay state changes from Echo Server, with messages left as raw bytes.
+ *
+ * Use this instead of EchoServerCallback for binary payloads or for
+ * consumers that don't always display the text: nothing is decoded
+ * unless the consumer decodes it.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public abstract class EchoServerRawCallback {
+    /**
+     * Echo Server connected
+     */
+    public abstract void connected();
+
+    /**
+     * Echo Server disconnected
+     */
+    public abstract void disconnected();
+
+    /**
+     * Message sent to Echo Server
+     */
+    public abstract void messageSent();
+
+    /**
+     * Message received from Echo Server.
+     * The view is read-only and is only valid until this method returns,
+     * because its bytes may be reused for the next packet.  Copy anything you need to keep
+     *
+     * @param message a read-only view of the message, from its position to its limit
+     * @param length the message length in bytes
+     */
+    public abstract void messageReceived(final ByteBuffer message, final int length);
+}
@@ -0,0 +1,73 @@
+package tonyg.example.com.bleechoclient.utilities;
+
+import java.io.PrintWriter;
+
+import tonyg.example.com.blechatcore.metrics.EventRecorder;
+import tonyg.example.com.exampleblescan.BuildConfig;
+
+/**
+ * Records GATT events into an EventRecorder ring buffer
+ * instead of building log Strings on the hot path.
+ *
+ * Recording never allocates.  Wrap calls in "if (EventTrace.ENABLED)" so that
+ * release builds compile the tracing out completely.
+ *
+ * Dump the buffer with "adb shell dumpsys activity top"
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class EventTrace {
+    /** Constants **/
+    public static final boolean ENABLED = BuildConfig.EVENT_TRACE_ENABLED;
+
+    private static final int CAPACITY = 1024; // number of events kept. Must be a power of two
+
+    /** Event ids **/
+    public static final int CONNECTED = 1;
+    public static final int DISCONNECTED = 2;
+    public static final int SERVICES_DISCOVERED = 3;
+    public static final int WRITE_STARTED = 4;
+    public static final int WRITE_COMPLETED = 5;
+    public static final int WRITE_FAILED = 6;
+    public static final int NOTIFICATION_RECEIVED = 7;
+    public static final int READ_COMPLETED = 8;
+    public static final int OPERATION_TIMED_OUT = 9;
+    public static final int READ_FAILED = 10;
+
+    private static final String[] EVENT_NAMES = {
+            "unknown",
+            "connected",
+            "disconnected",
+            "services_discovered",
+            "write_started",
+            "write_completed",
+            "write_failed",
+            "notification_received",
+            "read_completed",
+            "operation_timed_out",
+            "read_failed"
+    };
+
+    private static final EventRecorder sEventRecorder = new EventRecorder(EVENT_NAMES, CAPACITY);
+
+    /**
+     * Record an event
+     *
+     * @param eventId one of the event ids defined in this class
+     * @param length the payload length, or a status code for events without a payload
+     */
+    public static void record(int eventId, int length) {
+        sEventRecorder.record(eventId, length);
+    }
+
+    /**
+     * Dump the recorded events, oldest first
+     *
+     * @param prefix the indentation for each line
+     * @param writer where to write the events
+     */
+    public static void dump(String prefix, PrintWriter writer) {
+        sEventRecorder.dump(prefix, writer);
+    }
+}
@@ -0,0 +1,55 @@
+package tonyg.example.com.bleechoclient.utilities;
+
+import tonyg.example.com.blechatcore.metrics.Histogram;
+import tonyg.example.com.blechatcore.metrics.MetricsRegistry;
+import tonyg.example.com.blechatcore.metrics.StripedCounter;
+import tonyg.example.com.blechatui.UiMetrics;
+
+/**
+ * The counters and histograms kept by the Central.
+ *
+ * All the metrics are created up front, so updating them from a GATT callback
+ * never allocates.  Take a snapshot from the UI with REGISTRY.snapshot(),
+ * or over adb with "adb shell dumpsys activity top"
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class Metrics {
+    /** Counters **/
+    public static final StripedCounter BYTES_IN = new StripedCounter("bytes_in");
+    public static final StripedCounter BYTES_OUT = new StripedCounter("bytes_out");
+    public static final StripedCounter WRITES = new StripedCounter("writes");
+    public static final StripedCounter NOTIFICATIONS = new StripedCounter("notifications");
+    public static final StripedCounter WRITE_FAILURES = new StripedCounter("write_failures");
+    public static final StripedCounter READ_FAILURES = new StripedCounter("read_failures");
+
+    public static final StripedCounter GATT_STALLS = new StripedCounter("gatt_stalls");
+    public static final StripedCounter GATT_RETRIES = new StripedCounter("gatt_retries");
+    public static final StripedCounter GATT_RECONNECTS = new StripedCounter("gatt_reconnects");
+    public static final StripedCounter GATT_ERRORS = new StripedCounter("gatt_errors");
+
+    /** Histograms **/
+    public static final Histogram WRITE_QUEUE_DEPTH = new Histogram("write_queue_depth", 16);
+
+    public static final MetricsRegistry REGISTRY = new MetricsRegistry(
+            new StripedCounter[] {
+                    BYTES_IN,
+                    BYTES_OUT,
+                    WRITES,
+                    NOTIFICATIONS,
+                    WRITE_FAILURES,
+                    READ_FAILURES,
+                    GATT_STALLS,
+                    GATT_RETRIES,
+                    GATT_RECONNECTS,
+                    GATT_ERRORS,
+                    UiMetrics.UI_EVENTS,
+                    UiMetrics.UI_EVENTS_COALESCED,
+                    UiMetrics.UI_FRAMES_DROPPED
+            },
+            new Histogram[] {
+                    WRITE_QUEUE_DEPTH,
+                    UiMetrics.UI_LATENCY_US
+            });
+}
@@ -0,0 +1,82 @@
+package tonyg.example.com.blechatcore.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import tonyg.example.com.blechatcore.codec.DataConverter;
+
+/**
+ * Benchmarks the DataConverter debugging and conversion helpers
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataConverterBenchmark {
+
+    @State(Scope.Thread)
+    public static class Message {
+        @Param({ "1", "20", "256", "4096", "65536" })
+        public int size;
+
+        public byte[] bytes;
+        public StringBuilder stringBuilder;
+        public char[] chars;
+
+        @Setup
+        public void setup() {
+            bytes = Messages.create(size);
+            stringBuilder = new StringBuilder(size * DataConverter.HEX_CHARS_PER_BYTE);
+            chars = new char[size * DataConverter.HEX_CHARS_PER_BYTE];
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Value {
+        public int value = 0x12345678;
+        public byte[] bytes = new byte[4];
+    }
+
+    @Benchmark
+    public String bytesToHex(Message message) {
+        return DataConverter.bytesToHex(message.bytes);
+    }
+
+    @Benchmark
+    public StringBuilder bytesToHexStringBuilder(Message message) {
+        message.stringBuilder.setLength(0);
+        return DataConverter.bytesToHex(message.bytes, 0, message.bytes.length, message.stringBuilder);
+    }
+
+    @Benchmark
+    public char[] bytesToHexCharArray(Message message) {
+        DataConverter.bytesToHex(message.bytes, 0, message.bytes.length, message.chars, 0);
+        return message.chars;
+    }
+
+    @Benchmark
+    public byte[] intToBytes(Value value) {
+        return DataConverter.intToBytes(value.value, 4);
+    }
+
+    @Benchmark
+    public byte[] intToBytesByteArray(Value value) {
+        DataConverter.intToBytes(value.value, 4, value.bytes, 0);
+        return value.bytes;
+    }
+}
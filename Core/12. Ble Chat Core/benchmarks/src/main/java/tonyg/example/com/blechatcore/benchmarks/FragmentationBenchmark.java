@@ -0,0 +1,100 @@
+package tonyg.example.com.blechatcore.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import tonyg.example.com.blechatcore.MessageChannel;
+import tonyg.example.com.blechatcore.callbacks.MessageChannelCallback;
+import tonyg.example.com.blechatcore.framing.Frame;
+import tonyg.example.com.blechatcore.framing.Fragmenter;
+import tonyg.example.com.blechatcore.transport.Transport;
+
+/**
+ * Benchmarks cutting an outgoing message into packets,
+ * which the Ble Chat Client does on every writeValue()
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FragmentationBenchmark {
+    @Param({ "1", "20", "256", "4096", "65536" })
+    public int size;
+
+    private byte[] mMessage;
+    private byte[] mPacket;
+    private Fragmenter mFragmenter;
+    private MessageChannel mMessageChannel;
+
+    @Setup
+    public void setup() {
+        mMessage = Messages.create(size);
+        mPacket = new byte[Messages.PACKET_LENGTH];
+        mFragmenter = new Fragmenter(Messages.QUEUE_CAPACITY);
+        mMessageChannel = new MessageChannel(new Transport() {
+            @Override
+            public int getMaxPacketLength() {
+                return Messages.PACKET_LENGTH;
+            }
+
+            @Override
+            public boolean sendPacket(byte[] packet, int length) {
+                return true;
+            }
+        }, Messages.QUEUE_CAPACITY, new MessageChannelCallback() {
+            @Override
+            public void onMessageReceived(byte[] message, int offset, int length) {
+
+            }
+
+            @Override
+            public void onAllMessagesSent() {
+
+            }
+        });
+    }
+
+    /**
+     * Frame the message and copy out every packet
+     */
+    @Benchmark
+    public int fragmenter() {
+        mFragmenter.enqueue(Frame.TYPE_DATA, mMessage, 0, mMessage.length);
+        int numPackets = 0;
+        while (mFragmenter.nextPacket(mPacket, 0, mPacket.length) > 0) {
+            numPackets++;
+        }
+        return numPackets;
+    }
+
+    /**
+     * Send the message through a MessageChannel whose packets complete instantly,
+     * which adds the flow control bookkeeping of a real connection
+     */
+    @Benchmark
+    public int messageChannel() throws Exception {
+        mMessageChannel.sendMessage(mMessage, 0, mMessage.length);
+        int numPackets = 1;
+        while (mMessageChannel.getNumQueuedBytes() > 0) {
+            mMessageChannel.onPacketSent(true);
+            numPackets++;
+        }
+        return numPackets;
+    }
+}
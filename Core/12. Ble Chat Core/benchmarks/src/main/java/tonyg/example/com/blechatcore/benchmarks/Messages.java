@@ -0,0 +1,49 @@
+package tonyg.example.com.blechatcore.benchmarks;
+
+import tonyg.example.com.blechatcore.framing.Frame;
+import tonyg.example.com.blechatcore.framing.Fragmenter;
+
+/**
+ * Builds the messages and packets the benchmarks work on
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class Messages {
+    /** Constants **/
+    public static final int PACKET_LENGTH = 20; // the default ATT MTU of 23, minus 3
+    public static final int QUEUE_CAPACITY = 2 * Frame.MAX_PAYLOAD_LENGTH;
+
+    /**
+     * Create a printable ASCII message, like one typed into the Ble Chat Client
+     *
+     * @param size the message length
+     */
+    public static byte[] create(int size) {
+        byte[] message = new byte[size];
+        for (int index = 0; index < size; index++) {
+            message[index] = (byte) (' ' + index % 95);
+        }
+        return message;
+    }
+
+    /**
+     * Frame a message and cut it into packets, as the sending side would
+     *
+     * @param message the message
+     * @return the packets, each exactly as long as it was sent
+     */
+    public static byte[][] toPackets(byte[] message) {
+        Fragmenter fragmenter = new Fragmenter(QUEUE_CAPACITY);
+        fragmenter.enqueue(Frame.TYPE_DATA, message, 0, message.length);
+        int numPackets = (fragmenter.getNumQueuedBytes() + PACKET_LENGTH - 1) / PACKET_LENGTH;
+        byte[][] packets = new byte[numPackets][];
+        byte[] packet = new byte[PACKET_LENGTH];
+        for (int index = 0; index < numPackets; index++) {
+            int length = fragmenter.nextPacket(packet, 0, PACKET_LENGTH);
+            packets[index] = new byte[length];
+            System.arraycopy(packet, 0, packets[index], 0, length);
+        }
+        return packets;
+    }
+}
@@ -0,0 +1,101 @@
+package tonyg.example.com.blechatcore.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import tonyg.example.com.blechatcore.MessageChannel;
+import tonyg.example.com.blechatcore.callbacks.MessageChannelCallback;
+import tonyg.example.com.blechatcore.framing.Frame;
+import tonyg.example.com.blechatcore.framing.FrameDecoder;
+import tonyg.example.com.blechatcore.transport.Transport;
+
+/**
+ * Benchmarks reassembling a message from incoming packets,
+ * which both apps do for every notification or write they receive
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReassemblyBenchmark {
+    @Param({ "1", "20", "256", "4096", "65536" })
+    public int size;
+
+    private byte[][] mPackets;
+    private FrameDecoder mFrameDecoder;
+    private MessageChannel mMessageChannel;
+    private int mNumBytesReceived;
+
+    @Setup
+    public void setup() {
+        mPackets = Messages.toPackets(Messages.create(size));
+        mFrameDecoder = new FrameDecoder(Frame.MAX_PAYLOAD_LENGTH);
+        mMessageChannel = new MessageChannel(new Transport() {
+            @Override
+            public int getMaxPacketLength() {
+                return Messages.PACKET_LENGTH;
+            }
+
+            @Override
+            public boolean sendPacket(byte[] packet, int length) {
+                return true;
+            }
+        }, Messages.QUEUE_CAPACITY, new MessageChannelCallback() {
+            @Override
+            public void onMessageReceived(byte[] message, int offset, int length) {
+                mNumBytesReceived += length;
+            }
+
+            @Override
+            public void onAllMessagesSent() {
+
+            }
+        });
+    }
+
+    /**
+     * Feed every packet through a FrameDecoder
+     */
+    @Benchmark
+    public void frameDecoder(Blackhole blackhole) throws Exception {
+        for (byte[] packet : mPackets) {
+            int offset = 0;
+            while (offset < packet.length) {
+                offset += mFrameDecoder.decode(packet, offset, packet.length - offset);
+                if (mFrameDecoder.hasFrame()) {
+                    blackhole.consume(mFrameDecoder.getFrameBytes());
+                    blackhole.consume(mFrameDecoder.getFrameLength());
+                    mFrameDecoder.nextFrame();
+                }
+            }
+        }
+    }
+
+    /**
+     * Feed every packet through a MessageChannel, as the GATT callbacks do
+     */
+    @Benchmark
+    public int messageChannel() throws Exception {
+        for (byte[] packet : mPackets) {
+            mMessageChannel.onPacketReceived(packet, 0, packet.length);
+        }
+        return mNumBytesReceived;
+    }
+}
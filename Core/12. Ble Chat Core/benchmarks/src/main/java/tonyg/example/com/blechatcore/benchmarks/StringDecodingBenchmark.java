@@ -0,0 +1,85 @@
+package tonyg.example.com.blechatcore.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import tonyg.example.com.blechatcore.codec.Utf8StreamDecoder;
+
+/**
+ * Benchmarks turning message bytes into Strings and back,
+ * the way the Ble Chat Client and Server display and send messages
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StringDecodingBenchmark {
+    /** Constants **/
+    private static final String CHARACTER_ENCODING = "UTF-8"; // as used by both apps
+    private static final Charset CHARSET = Charset.forName(CHARACTER_ENCODING);
+
+    @Param({ "1", "20", "256", "4096", "65536" })
+    public int size;
+
+    private byte[] mMessage;
+    private String mMessageText;
+    private final Utf8StreamDecoder mDecoder = new Utf8StreamDecoder();
+    private final StringBuilder mOutput = new StringBuilder();
+
+    @Setup
+    public void setup() {
+        mMessage = Messages.create(size);
+        mMessageText = new String(mMessage, CHARSET);
+    }
+
+    /**
+     * Decode with a charset name, which is looked up on every call
+     */
+    @Benchmark
+    public String decodeByName() throws UnsupportedEncodingException {
+        return new String(mMessage, 0, mMessage.length, CHARACTER_ENCODING);
+    }
+
+    /**
+     * Decode with a Charset that was looked up once
+     */
+    @Benchmark
+    public String decodeWithCharset() {
+        return new String(mMessage, 0, mMessage.length, CHARSET);
+    }
+
+    /**
+     * Decode into a reused StringBuilder with a per connection Utf8StreamDecoder, as both apps do
+     */
+    @Benchmark
+    public StringBuilder decodeStreaming() {
+        mOutput.setLength(0);
+        return mDecoder.decodeMessage(mMessage, 0, mMessage.length, mOutput);
+    }
+
+    /**
+     * Encode with a charset name, as EchoServer.writeValue() does
+     */
+    @Benchmark
+    public byte[] encodeByName() throws UnsupportedEncodingException {
+        return mMessageText.getBytes(CHARACTER_ENCODING);
+    }
+}
@@ -0,0 +1,267 @@
+package tonyg.example.com.blechatcore;
+
+import tonyg.example.com.blechatcore.callbacks.EchoSessionCallback;
+import tonyg.example.com.blechatcore.callbacks.MessageChannelCallback;
+import tonyg.example.com.blechatcore.callbacks.ReliableLinkCallback;
+import tonyg.example.com.blechatcore.log.ChatLog;
+import tonyg.example.com.blechatcore.transport.PacketHandler;
+import tonyg.example.com.blechatcore.transport.ReliableLink;
+import tonyg.example.com.blechatcore.transport.Transport;
+
+/**
+ * The server side of one echo connection.
+ *
+ * Every message reassembled from the incoming packets is queued straight back
+ * onto the same connection, and then passed to the EchoSessionCallback.
+ * With a Scheduler, the session runs over a ReliableLink, and the client must too.
+ * Such a session can be held after a disconnect and resumed on a new connection.
+ *
+ * A session can also replay messages from a ChatLog to a client that just joined.
+ * Replayed messages are read from the log as the queue drains, and never fill more than
+ * half the queue, so echoes still have room and the history is never held in memory.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class EchoSession implements PacketHandler {
+    private final MessageChannel mMessageChannel;
+    private final ReliableLink mReliableLink;
+    private final PacketHandler mPacketHandler; // the ReliableLink, if there is one
+    private final EchoSessionCallback mEchoSessionCallback;
+    private final int mQueueCapacity;
+
+    /** History replay stuff, guarded by the MessageChannel **/
+    private ChatLog mChatLog;
+    private long mHistoryStartSequence = -1;
+    private long mHistoryEndSequence; // the first message not to replay
+    private ChatLog.Cursor mHistoryCursor;
+    private byte[] mHistoryMessage = new byte[0];
+    private int mHistoryMessageLength = -1; // a message read from the log but not yet queued, or -1
+
+    /**
+     * Create a new EchoSession
+     *
+     * @param transport the Transport to echo messages back over
+     * @param queueCapacity the number of bytes of echoed messages that can be queued
+     * @param echoSessionCallback the EchoSessionCallback
+     */
+    public EchoSession(Transport transport, int queueCapacity, EchoSessionCallback echoSessionCallback) {
+        mEchoSessionCallback = echoSessionCallback;
+        mQueueCapacity = queueCapacity;
+        mMessageChannel = new MessageChannel(transport, queueCapacity, mMessageChannelCallback);
+        mReliableLink = null;
+        mPacketHandler = mMessageChannel;
+    }
+
+    /**
+     * Create a new EchoSession that retransmits lost packets
+     *
+     * @param transport the Transport to echo messages back over
+     * @param queueCapacity the number of bytes of echoed messages that can be queued
+     * @param scheduler runs the ReliableLink's retransmit and ack timers
+     * @param echoSessionCallback the EchoSessionCallback
+     */
+    public EchoSession(Transport transport, int queueCapacity, Scheduler scheduler, EchoSessionCallback echoSessionCallback) {
+        mEchoSessionCallback = echoSessionCallback;
+        mQueueCapacity = queueCapacity;
+        mReliableLink = new ReliableLink(transport, scheduler);
+        mMessageChannel = new MessageChannel(mReliableLink, queueCapacity, scheduler, mMessageChannelCallback);
+        mReliableLink.attach(mMessageChannel);
+        mReliableLink.setReliableLinkCallback(mReliableLinkCallback);
+        mPacketHandler = mReliableLink;
+    }
+
+    /**
+     * Get the MessageChannel used by this session
+     */
+    public MessageChannel getMessageChannel() {
+        return mMessageChannel;
+    }
+
+    /**
+     * Get the ReliableLink used by this session
+     *
+     * @return the ReliableLink, or null if the session was created without a Scheduler
+     */
+    public ReliableLink getReliableLink() {
+        return mReliableLink;
+    }
+
+    /**
+     * Handle a packet written by the client
+     *
+     * @param packet the incoming packet
+     * @param offset the position of the packet in the array
+     * @param length the packet length
+     * @throws Exception if the packet holds a malformed frame
+     */
+    @Override
+    public void onPacketReceived(byte[] packet, int offset, int length) throws Exception {
+        mPacketHandler.onPacketReceived(packet, offset, length);
+    }
+
+    /**
+     * Report the result of the last echoed packet
+     *
+     * @param isSuccess <b>true</b> if the packet was sent
+     */
+    @Override
+    public void onPacketSent(boolean isSuccess) {
+        mPacketHandler.onPacketSent(isSuccess);
+    }
+
+    /**
+     * Get the session id agreed with the client
+     *
+     * @return the session id, or 0 if there is none
+     */
+    public int getSessionId() {
+        if (mReliableLink == null) return 0;
+        return mReliableLink.getSessionId();
+    }
+
+    /**
+     * Hold the session after the client disconnects, so it can be resumed
+     *
+     * @return <b>true</b> if there is a session to hold; otherwise close() it
+     */
+    public boolean onDisconnected() {
+        if (getSessionId() == 0) return false;
+        mReliableLink.onDisconnected();
+        return true;
+    }
+
+    /**
+     * Move a held session to the client's new connection.  Pass the client's
+     * resume request to onPacketReceived() next
+     *
+     * @param transport the Transport for the new connection
+     */
+    public void setTransport(Transport transport) {
+        if (mReliableLink != null) {
+            mReliableLink.setTransport(transport);
+        }
+    }
+
+    /**
+     * Send the client the messages logged before it joined.  Over a ReliableLink the
+     * replay starts once a new session is agreed, and starts over if the client later
+     * begins another; otherwise it starts now
+     *
+     * @param chatLog the ChatLog to read from
+     * @param fromSequence the first message to replay.  Messages already deleted from the log are skipped
+     */
+    public void replayHistory(ChatLog chatLog, long fromSequence) {
+        synchronized (mMessageChannel) {
+            mChatLog = chatLog;
+            mHistoryStartSequence = fromSequence;
+            if (mReliableLink == null) {
+                startHistory();
+            }
+        }
+    }
+
+    /**
+     * Check if logged messages are still waiting to be replayed
+     */
+    public boolean isReplayingHistory() {
+        synchronized (mMessageChannel) {
+            return mHistoryCursor != null;
+        }
+    }
+
+    /**
+     * Drop anything not yet echoed
+     */
+    public void close() {
+        synchronized (mMessageChannel) {
+            mHistoryCursor = null;
+            mHistoryMessageLength = -1;
+        }
+        if (mReliableLink != null) {
+            mReliableLink.reset();
+        }
+        mMessageChannel.reset();
+    }
+
+    private final ReliableLinkCallback mReliableLinkCallback = new ReliableLinkCallback() {
+        @Override
+        public void onSessionStarted(int sessionId, boolean isResumed) {
+            if (!isResumed) {
+                // the client is starting over, so drop any half-echoed message
+                mMessageChannel.reset();
+                synchronized (mMessageChannel) {
+                    startHistory();
+                }
+            }
+        }
+
+        @Override
+        public void onAllPacketsAcked() {
+            // echoes are already in the chat log, so there is nothing to let go of
+        }
+    };
+
+    /**
+     * Start replaying from the start sequence, up to the last message logged so far.
+     * Messages logged after this are the client's own, and are echoed instead
+     */
+    private void startHistory() {
+        if (mHistoryStartSequence < 0) return;
+        mHistoryCursor = mChatLog.read(mHistoryStartSequence);
+        mHistoryEndSequence = mChatLog.getNextSequence();
+        mHistoryMessageLength = -1;
+        replayNextMessages();
+    }
+
+    /**
+     * Queue logged messages until the queue is half full or the replay is done
+     */
+    private void replayNextMessages() {
+        while (mHistoryCursor != null && mMessageChannel.getNumQueuedBytes() < mQueueCapacity / 2) {
+            if (mHistoryMessageLength < 0) {
+                if (!mHistoryCursor.next() || mHistoryCursor.getSequence() >= mHistoryEndSequence) {
+                    mHistoryCursor = null;
+                    return;
+                }
+                mHistoryMessageLength = mHistoryCursor.getLength();
+                if (mHistoryMessage.length < mHistoryMessageLength) {
+                    mHistoryMessage = new byte[mHistoryMessageLength];
+                }
+                mHistoryCursor.copyMessage(mHistoryMessage, 0);
+            }
+            try {
+                if (!mMessageChannel.sendMessage(mHistoryMessage, 0, mHistoryMessageLength)) {
+                    return; // try again once the queue drains
+                }
+            } catch (Exception e) {
+                // too long to send; skip it
+            }
+            mHistoryMessageLength = -1;
+        }
+    }
+
+    private final MessageChannelCallback mMessageChannelCallback = new MessageChannelCallback() {
+        @Override
+        public void onMessageReceived(byte[] message, int offset, int length) {
+            boolean isQueued;
+            try {
+                isQueued = mMessageChannel.sendMessage(message, offset, length);
+            } catch (Exception e) {
+                isQueued = false;
+            }
+
+            mEchoSessionCallback.onMessageReceived(message, offset, length);
+            if (!isQueued) {
+                mEchoSessionCallback.onMessageDropped(length);
+            }
+        }
+
+        @Override
+        public void onAllMessagesSent() {
+            synchronized (mMessageChannel) {
+                replayNextMessages();
+            }
+        }
+    };
+}
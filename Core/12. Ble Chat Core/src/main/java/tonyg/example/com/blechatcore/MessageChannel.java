@@ -0,0 +1,376 @@
+package tonyg.example.com.blechatcore;
+
+import tonyg.example.com.blechatcore.callbacks.MessageChannelCallback;
+import tonyg.example.com.blechatcore.codec.MessageCompressor;
+import tonyg.example.com.blechatcore.framing.Frame;
+import tonyg.example.com.blechatcore.framing.FrameDecoder;
+import tonyg.example.com.blechatcore.framing.Fragmenter;
+import tonyg.example.com.blechatcore.transport.PacketHandler;
+import tonyg.example.com.blechatcore.transport.Transport;
+
+/**
+ * Sends and receives whole messages over a packet Transport.
+ *
+ * Outgoing messages are framed and queued, then sent one packet at a time:
+ * the next packet only goes out once the Transport reports the last one through onPacketSent().
+ * Frames run on from one packet to the next, so a peer that misses a packet can't find its
+ * place again.  A packet the Transport refuses or fails to send is therefore kept, and tried
+ * again after RETRY_DELAY_MICROS, until it goes or the channel is reset.
+ * Incoming packets are reassembled into messages, which are passed to the MessageChannelCallback.
+ *
+ * With a coalescing window set, a packet that would go out less than full on an idle link
+ * waits up to the window for more messages to share it, as Nagle's algorithm does for TCP.
+ * It goes out early once the queue fills a packet, and right away when the packet
+ * before it completes, since that packet's time on the air already batched whatever arrived.
+ *
+ * Compression is negotiated with a HELLO frame at the start of each connection.
+ * The side that connects calls sendHello(); the other side answers with its own.
+ * Once both have said they can inflate, messages that deflate to fewer bytes
+ * are sent compressed, and the rest are sent as they are.  A peer that doesn't
+ * know about HELLO frames ignores them, and nothing is ever compressed.
+ *
+ * One MessageChannel handles one connection.  It is thread safe.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class MessageChannel implements PacketHandler {
+    /** Constants **/
+    public static final long RETRY_DELAY_MICROS = 100000;
+
+    /** Capabilities exchanged in HELLO frames **/
+    public static final int CAPABILITY_DEFLATE = 0x01; // raw deflate with the version 1 chat dictionary
+
+    private final Transport mTransport;
+    private final MessageChannelCallback mMessageChannelCallback;
+    private final Fragmenter mFragmenter;
+    private final FrameDecoder mFrameDecoder;
+
+    /** Flow control stuff **/
+    private byte[] mPacket = new byte[0];
+    private int mPacketLength = 0; // length of the packet waiting to be sent, or 0
+    private boolean mIsPacketInFlight = false;
+    private boolean mIsRetryScheduled = false;
+    private boolean mIsMessagePending = false; // so that sending only a HELLO doesn't count as sending messages
+
+    /** Coalescing and retry stuff **/
+    private Scheduler mScheduler; // without one, a refused packet waits for the next message to try again
+    private long mCoalescingWindowMicros = 0;
+    private boolean mIsFlushScheduled = false;
+    private boolean mIsFlushDue = false;
+
+    /** Negotiation stuff **/
+    private final byte[] mHello = new byte[1];
+    private MessageCompressor mMessageCompressor;
+    private boolean mIsHelloSent = false;
+    private int mPeerCapabilities = 0;
+
+    /**
+     * Create a new MessageChannel
+     *
+     * @param transport the Transport to send packets with
+     * @param queueCapacity the number of bytes of outgoing messages that can be queued
+     * @param messageChannelCallback the MessageChannelCallback
+     */
+    public MessageChannel(Transport transport, int queueCapacity, MessageChannelCallback messageChannelCallback) {
+        mTransport = transport;
+        mMessageChannelCallback = messageChannelCallback;
+        mFragmenter = new Fragmenter(queueCapacity);
+        mFrameDecoder = new FrameDecoder(Frame.MAX_PAYLOAD_LENGTH);
+    }
+
+    /**
+     * Create a new MessageChannel that tries refused and failed packets again on a timer
+     *
+     * @param transport the Transport to send packets with
+     * @param queueCapacity the number of bytes of outgoing messages that can be queued
+     * @param scheduler runs the retry timer
+     * @param messageChannelCallback the MessageChannelCallback
+     */
+    public MessageChannel(Transport transport, int queueCapacity, Scheduler scheduler, MessageChannelCallback messageChannelCallback) {
+        this(transport, queueCapacity, messageChannelCallback);
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Get the longest message that can be sent
+     */
+    public int getMaxMessageLength() {
+        return mFragmenter.getMaxPayloadLength();
+    }
+
+    /**
+     * Hold back partly filled packets for a short time, so that bursts of short messages share packets
+     *
+     * @param coalescingWindowMicros the longest a message waits for company, in microseconds.  0 turns coalescing off
+     * @param scheduler runs the flush when the window closes, and the retry timer
+     */
+    public synchronized void setCoalescingWindow(long coalescingWindowMicros, Scheduler scheduler) {
+        mCoalescingWindowMicros = Math.max(0, coalescingWindowMicros);
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Offer to compress messages on this connection.  Takes effect with the next HELLO exchange
+     *
+     * @param isCompressionEnabled <b>true</b> to offer compression
+     */
+    public synchronized void setCompressionEnabled(boolean isCompressionEnabled) {
+        if (isCompressionEnabled && mMessageCompressor == null) {
+            mMessageCompressor = new MessageCompressor(Frame.MAX_PAYLOAD_LENGTH);
+        } else if (!isCompressionEnabled) {
+            mMessageCompressor = null;
+        }
+    }
+
+    /**
+     * Tell the peer what this side can do.  Call once the connection is ready to carry messages
+     *
+     * @return <b>true</b> if the HELLO was queued
+     */
+    public synchronized boolean sendHello() {
+        mHello[0] = (byte) getCapabilities();
+        if (!mFragmenter.enqueue(Frame.TYPE_HELLO, mHello, 0, mHello.length)) {
+            return false;
+        }
+        mIsHelloSent = true;
+        // a HELLO shouldn't sit out a coalescing window
+        mIsFlushDue = true;
+        sendNextPacket();
+        return true;
+    }
+
+    /**
+     * Check if messages are being compressed on this connection
+     */
+    public synchronized boolean isCompressing() {
+        return mMessageCompressor != null && (mPeerCapabilities & CAPABILITY_DEFLATE) != 0;
+    }
+
+    /**
+     * Send whatever is queued now, without waiting for the coalescing window to close
+     */
+    public synchronized void flush() {
+        mIsFlushDue = mFragmenter.hasMorePackets();
+        sendNextPacket();
+    }
+
+    /**
+     * Queue a message and start sending it if the link is idle
+     *
+     * @param message the array holding the message
+     * @param offset the position of the message in the array
+     * @param length the message length
+     * @return <b>true</b> if the message was queued, <b>false</b> if the queue is full
+     * @throws Exception if the message is longer than getMaxMessageLength()
+     */
+    public synchronized boolean sendMessage(byte[] message, int offset, int length) throws Exception {
+        if (length > getMaxMessageLength()) {
+            throw new Exception("Message too long: " + length);
+        }
+        int compressedLength = isCompressing() ? mMessageCompressor.compress(message, offset, length) : -1;
+        boolean isQueued;
+        if (compressedLength >= 0) {
+            isQueued = mFragmenter.enqueue(Frame.TYPE_DATA_DEFLATED, mMessageCompressor.getCompressedBytes(), 0, compressedLength);
+        } else {
+            isQueued = mFragmenter.enqueue(Frame.TYPE_DATA, message, offset, length);
+        }
+        if (!isQueued) {
+            return false;
+        }
+        mIsMessagePending = true;
+        sendNextPacket();
+        return true;
+    }
+
+    /**
+     * Report the result of the packet in flight, and send the next one.
+     * A failed packet is kept and sent again once the retry timer fires
+     *
+     * @param isSuccess <b>true</b> if the packet was sent
+     */
+    @Override
+    public synchronized void onPacketSent(boolean isSuccess) {
+        if (!mIsPacketInFlight) return;
+        mIsPacketInFlight = false;
+        if (!isSuccess) {
+            scheduleRetry();
+            return;
+        }
+        mPacketLength = 0;
+        if (!mFragmenter.hasMorePackets()) {
+            if (mIsMessagePending) {
+                mIsMessagePending = false;
+                mMessageChannelCallback.onAllMessagesSent();
+            }
+            return;
+        }
+        // whatever queued up while that packet was on the air goes next, full or not
+        mIsFlushDue = mFragmenter.hasMorePackets();
+        sendNextPacket();
+    }
+
+    /**
+     * Reassemble an incoming packet.  Any messages it completes are passed to the MessageChannelCallback
+     *
+     * @param packet the incoming packet
+     * @param offset the position of the packet in the array
+     * @param length the packet length
+     * @throws Exception if the packet holds a malformed frame.  The partial message is dropped
+     */
+    @Override
+    public synchronized void onPacketReceived(byte[] packet, int offset, int length) throws Exception {
+        while (length > 0) {
+            int numBytes = mFrameDecoder.decode(packet, offset, length);
+            offset += numBytes;
+            length -= numBytes;
+            if (mFrameDecoder.hasFrame()) {
+                try {
+                    onFrameReceived(mFrameDecoder.getFrameType(),
+                            mFrameDecoder.getFrameBytes(),
+                            mFrameDecoder.getFrameOffset(),
+                            mFrameDecoder.getFrameLength());
+                } finally {
+                    mFrameDecoder.nextFrame();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of bytes waiting to be sent
+     */
+    public synchronized int getNumQueuedBytes() {
+        return mFragmenter.getNumQueuedBytes() + mPacketLength;
+    }
+
+    /**
+     * Drop everything queued and any partly received message, for example after a disconnect
+     */
+    public synchronized void reset() {
+        mFragmenter.clear();
+        mFrameDecoder.reset();
+        mPacketLength = 0;
+        mIsPacketInFlight = false;
+        mIsRetryScheduled = false;
+        mIsFlushScheduled = false;
+        mIsFlushDue = false;
+        mIsMessagePending = false;
+        mIsHelloSent = false;
+        mPeerCapabilities = 0;
+    }
+
+    /**
+     * Get the capabilities this side offers in its HELLO
+     */
+    private int getCapabilities() {
+        return mMessageCompressor != null ? CAPABILITY_DEFLATE : 0;
+    }
+
+    /**
+     * Handle one complete frame
+     *
+     * @throws Exception if a compressed message is malformed
+     */
+    private void onFrameReceived(int type, byte[] payload, int offset, int length) throws Exception {
+        switch (type) {
+            case Frame.TYPE_DATA:
+                mMessageChannelCallback.onMessageReceived(payload, offset, length);
+                break;
+            case Frame.TYPE_DATA_DEFLATED:
+                if (mMessageCompressor == null) {
+                    throw new Exception("Compressed message received but compression was not offered");
+                }
+                int messageLength = mMessageCompressor.decompress(payload, offset, length);
+                mMessageChannelCallback.onMessageReceived(mMessageCompressor.getDecompressedBytes(), 0, messageLength);
+                break;
+            case Frame.TYPE_HELLO:
+                mPeerCapabilities = length > 0 ? payload[offset] & 0xFF : 0;
+                if (!mIsHelloSent) {
+                    sendHello();
+                }
+                break;
+            default:
+                // frame types from newer versions are skipped
+                break;
+        }
+    }
+
+    /**
+     * Send the packet waiting to be sent, or cut a new one from the queue
+     */
+    private void sendNextPacket() {
+        if (mIsPacketInFlight || mIsRetryScheduled) return;
+
+        if (mPacketLength == 0) {
+            int maxPacketLength = mTransport.getMaxPacketLength();
+            if (isCoalescing(maxPacketLength)) return;
+            if (mPacket.length < maxPacketLength) {
+                mPacket = new byte[maxPacketLength];
+            }
+            mPacketLength = mFragmenter.nextPacket(mPacket, 0, maxPacketLength);
+            mIsFlushDue = false;
+            if (mPacketLength == 0) return;
+        }
+
+        mIsPacketInFlight = mTransport.sendPacket(mPacket, mPacketLength);
+        if (!mIsPacketInFlight) {
+            scheduleRetry();
+        }
+    }
+
+    /**
+     * Try the kept packet again after RETRY_DELAY_MICROS
+     */
+    private void scheduleRetry() {
+        if (mScheduler == null || mIsRetryScheduled) return;
+        mIsRetryScheduled = true;
+        mScheduler.schedule(RETRY_DELAY_MICROS, mRetryTask);
+    }
+
+    /**
+     * Check if the next packet should wait for more messages to fill it.
+     * Starts the coalescing timer if it isn't running
+     *
+     * @param maxPacketLength the packet length
+     * @return <b>true</b> if the packet should wait
+     */
+    private boolean isCoalescing(int maxPacketLength) {
+        if (mCoalescingWindowMicros == 0 || mIsFlushDue) return false;
+        if (!mFragmenter.hasMorePackets() || mFragmenter.getNumQueuedBytes() >= maxPacketLength) return false;
+
+        if (!mIsFlushScheduled) {
+            mIsFlushScheduled = true;
+            mScheduler.schedule(mCoalescingWindowMicros, mFlushTask);
+        }
+        return true;
+    }
+
+    /**
+     * Sends the kept packet again
+     */
+    private final Runnable mRetryTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (MessageChannel.this) {
+                if (!mIsRetryScheduled) return; // reset since the timer was set
+                mIsRetryScheduled = false;
+                sendNextPacket();
+            }
+        }
+    };
+
+    /**
+     * Sends the held back packet when the coalescing window closes
+     */
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (MessageChannel.this) {
+                if (!mIsFlushScheduled) return; // reset since the timer was set
+                mIsFlushScheduled = false;
+                flush();
+            }
+        }
+    };
+}
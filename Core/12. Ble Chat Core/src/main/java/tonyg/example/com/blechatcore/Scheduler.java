@@ -0,0 +1,28 @@
+package tonyg.example.com.blechatcore;
+
+/**
+ * Runs a task later.
+ *
+ * Lets the pure-Java core set timers without knowing whether it runs on an
+ * Android Handler or on a SimulatedClock.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public interface Scheduler {
+    /**
+     * Run a task after a delay
+     *
+     * @param delayMicros the delay, in microseconds
+     * @param runnable the task
+     */
+    void schedule(long delayMicros, Runnable runnable);
+
+    /**
+     * Stop a task from running, however many times it was scheduled.
+     * A task that has already started still runs
+     *
+     * @param runnable the task
+     */
+    void cancel(Runnable runnable);
+}
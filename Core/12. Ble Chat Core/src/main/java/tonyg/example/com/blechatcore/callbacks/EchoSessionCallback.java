@@ -0,0 +1,26 @@
+package tonyg.example.com.blechatcore.callbacks;
+
+/**
+ * Relay messages handled by an EchoSession
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public abstract class EchoSessionCallback {
+    /**
+     * A message arrived.  The message may point into a reused buffer,
+     * so copy it if it is needed after this returns
+     *
+     * @param message the array holding the message
+     * @param offset the position of the message in the array
+     * @param length the message length
+     */
+    public abstract void onMessageReceived(final byte[] message, final int offset, final int length);
+
+    /**
+     * A message could not be echoed because the outgoing queue was full
+     *
+     * @param length the message length
+     */
+    public abstract void onMessageDropped(final int length);
+}
@@ -0,0 +1,24 @@
+package tonyg.example.com.blechatcore.callbacks;
+
+/**
+ * Relay messages from a MessageChannel
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public abstract class MessageChannelCallback {
+    /**
+     * A complete message arrived.  The message may point into a reused buffer,
+     * so copy it if it is needed after this returns
+     *
+     * @param message the array holding the message
+     * @param offset the position of the message in the array
+     * @param length the message length
+     */
+    public abstract void onMessageReceived(final byte[] message, final int offset, final int length);
+
+    /**
+     * Every queued message has been sent
+     */
+    public abstract void onAllMessagesSent();
+}
@@ -0,0 +1,18 @@
+package tonyg.example.com.blechatcore.callbacks;
+
+/**
+ * Relay stalled operations from an OperationWatchdog
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public abstract class OperationWatchdogCallback {
+    /**
+     * An operation's callback didn't arrive before its deadline.  Retry it by
+     * starting it again, or give up on the connection
+     *
+     * @param operation the operation, as passed to start()
+     * @param numTimeouts the number of times in a row this operation has timed out
+     */
+    public abstract void onOperationTimedOut(final int operation, final int numTimeouts);
+}
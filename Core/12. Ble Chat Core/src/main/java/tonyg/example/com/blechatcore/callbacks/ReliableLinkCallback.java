@@ -0,0 +1,25 @@
+package tonyg.example.com.blechatcore.callbacks;
+
+/**
+ * Relay session events from a ReliableLink
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public abstract class ReliableLinkCallback {
+    /**
+     * Both sides agreed on a session after a connect.  If it is a new session,
+     * everything sent and received before was forgotten, so whatever sits above
+     * the link must start over too
+     *
+     * @param sessionId the session id
+     * @param isResumed <b>true</b> if the previous session carried on where it left off
+     */
+    public abstract void onSessionStarted(final int sessionId, final boolean isResumed);
+
+    /**
+     * The peer acked every packet sent so far.  Until then, a packet accepted
+     * by the link may still be lost if the session starts over
+     */
+    public abstract void onAllPacketsAcked();
+}
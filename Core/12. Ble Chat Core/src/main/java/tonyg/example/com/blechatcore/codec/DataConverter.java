@@ -0,0 +1,243 @@
+package tonyg.example.com.blechatcore.codec;
+
+
+import java.nio.ByteBuffer;
+
+/**
+ * Convert data formats
+ *
+ * BLE Data is always little-endian.  Every conversion has a variant that writes
+ * into a caller supplied StringBuilder, char[], byte[] or ByteBuffer,
+ * so that logging and UI code can reuse one buffer instead of allocating per packet.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2015-12-21
+ */
+
+public class DataConverter {
+    /** Constants **/
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    public static final int HEX_CHARS_PER_BYTE = 3; // two digits and a space
+
+    /**
+     * convert bytes to hexadecimal for debugging purposes
+     *
+     * @param bytes
+     * @return Hexadecimal String representation of the byte array
+     */
+    public static String bytesToHex(byte[] bytes) {
+        if (bytes.length <=0) return "";
+        char[] hexChars = new char[bytes.length * HEX_CHARS_PER_BYTE];
+        bytesToHex(bytes, 0, bytes.length, hexChars, 0);
+        return new String(hexChars);
+    }
+
+    /**
+     * convert bytes to hexadecimal, appending to a StringBuilder
+     *
+     * @param bytes a byte array
+     * @param offset the position of the first byte to convert
+     * @param length the number of bytes to convert
+     * @param output where to append the hexadecimal
+     * @return the output
+     */
+    public static StringBuilder bytesToHex(byte[] bytes, int offset, int length, StringBuilder output) {
+        output.ensureCapacity(output.length() + length * HEX_CHARS_PER_BYTE);
+        for (int index = offset; index < offset + length; index++) {
+            int v = bytes[index] & 0xFF;
+            output.append(HEX_DIGITS[v >>> 4]);
+            output.append(HEX_DIGITS[v & 0x0F]);
+            output.append(' ');
+        }
+        return output;
+    }
+
+    /**
+     * convert bytes to hexadecimal, writing into a char array
+     *
+     * @param bytes a byte array
+     * @param offset the position of the first byte to convert
+     * @param length the number of bytes to convert
+     * @param output where to write the hexadecimal.  Needs room for length * HEX_CHARS_PER_BYTE chars
+     * @param outputOffset the position in the output to start writing at
+     * @return the number of chars written
+     */
+    public static int bytesToHex(byte[] bytes, int offset, int length, char[] output, int outputOffset) {
+        int position = outputOffset;
+        for (int index = offset; index < offset + length; index++) {
+            int v = bytes[index] & 0xFF;
+            output[position++] = HEX_DIGITS[v >>> 4];
+            output[position++] = HEX_DIGITS[v & 0x0F];
+            output[position++] = ' ';
+        }
+        return position - outputOffset;
+    }
+
+    /**
+     * convert bytes to an integer in Little Endian for debugging purposes
+     *
+     * @param bytes a byte array of up to 8 bytes.  Extra bytes are ignored
+     * @return the unsigned decimal value of the byte array
+     */
+    public static String bytesToInt(byte[] bytes) {
+        if (bytes.length <=0) return "";
+        return bytesToInt(bytes, 0, bytes.length, new StringBuilder(20)).toString();
+    }
+
+    /**
+     * convert bytes to an integer in Little Endian, appending the decimal value to a StringBuilder
+     *
+     * @param bytes a byte array
+     * @param offset the position of the least significant byte
+     * @param length the number of bytes, up to 8.  Extra bytes are ignored
+     * @param output where to append the decimal value
+     * @return the output
+     */
+    public static StringBuilder bytesToInt(byte[] bytes, int offset, int length, StringBuilder output) {
+        long value = readLittleEndian(bytes, offset, Math.min(length, 8));
+        if (value >= 0) {
+            return output.append(value);
+        }
+        // a full 64-bit value with the top bit set is still unsigned
+        long quotient = (value >>> 1) / 5;
+        return output.append(quotient).append(value - quotient * 10);
+    }
+
+    /**
+     * convert an integer to bytes in Little Endian
+     *
+     * @param intValue the data to convert
+     * @param length the number of bytes to produce.  Values longer than 4 bytes are padded with zeros
+     * @return byte array version of the intValue
+     */
+    public static byte[] intToBytes(int intValue, int length) {
+        byte[] bytes = new byte[length];
+        intToBytes(intValue, length, bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * convert an integer to bytes in Little Endian, writing into a byte array
+     *
+     * @param intValue the data to convert
+     * @param length the number of bytes to write.  Values longer than 4 bytes are padded with zeros
+     * @param output where to write the bytes
+     * @param outputOffset the position in the output to start writing at
+     * @return the number of bytes written
+     */
+    public static int intToBytes(int intValue, int length, byte[] output, int outputOffset) {
+        for (int index = 0; index < length; index++) {
+            output[outputOffset + index] = index < 4 ? (byte) (intValue >>> (8 * index)) : 0;
+        }
+        return length;
+    }
+
+    /**
+     * convert an integer to bytes in Little Endian, writing into a ByteBuffer
+     * at its current position, whatever the ByteBuffer's own byte order
+     *
+     * @param intValue the data to convert
+     * @param length the number of bytes to write.  Values longer than 4 bytes are padded with zeros
+     * @param output where to write the bytes
+     * @return the output
+     */
+    public static ByteBuffer intToBytes(int intValue, int length, ByteBuffer output) {
+        for (int index = 0; index < length; index++) {
+            output.put(index < 4 ? (byte) (intValue >>> (8 * index)) : 0);
+        }
+        return output;
+    }
+
+    /**
+     * Write an 8-bit value
+     *
+     * @return the position after the value
+     */
+    public static int writeUint8(int value, byte[] output, int offset) {
+        output[offset] = (byte) value;
+        return offset + 1;
+    }
+
+    /**
+     * Write a 16-bit value in Little Endian
+     *
+     * @return the position after the value
+     */
+    public static int writeUint16(int value, byte[] output, int offset) {
+        output[offset] = (byte) value;
+        output[offset + 1] = (byte) (value >>> 8);
+        return offset + 2;
+    }
+
+    /**
+     * Write a 24-bit value in Little Endian
+     *
+     * @return the position after the value
+     */
+    public static int writeUint24(int value, byte[] output, int offset) {
+        output[offset] = (byte) value;
+        output[offset + 1] = (byte) (value >>> 8);
+        output[offset + 2] = (byte) (value >>> 16);
+        return offset + 3;
+    }
+
+    /**
+     * Write a 32-bit value in Little Endian
+     *
+     * @return the position after the value
+     */
+    public static int writeUint32(long value, byte[] output, int offset) {
+        output[offset] = (byte) value;
+        output[offset + 1] = (byte) (value >>> 8);
+        output[offset + 2] = (byte) (value >>> 16);
+        output[offset + 3] = (byte) (value >>> 24);
+        return offset + 4;
+    }
+
+    /**
+     * Read an unsigned 8-bit value
+     */
+    public static int readUint8(byte[] bytes, int offset) {
+        return bytes[offset] & 0xFF;
+    }
+
+    /**
+     * Read an unsigned 16-bit value in Little Endian
+     */
+    public static int readUint16(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | ((bytes[offset + 1] & 0xFF) << 8);
+    }
+
+    /**
+     * Read an unsigned 24-bit value in Little Endian
+     */
+    public static int readUint24(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF)
+                | ((bytes[offset + 1] & 0xFF) << 8)
+                | ((bytes[offset + 2] & 0xFF) << 16);
+    }
+
+    /**
+     * Read an unsigned 32-bit value in Little Endian
+     */
+    public static long readUint32(byte[] bytes, int offset) {
+        return readLittleEndian(bytes, offset, 4);
+    }
+
+    /**
+     * Read an unsigned value of up to 8 bytes in Little Endian
+     *
+     * @param bytes a byte array
+     * @param offset the position of the least significant byte
+     * @param length the number of bytes, from 0 to 8
+     * @return the value
+     */
+    public static long readLittleEndian(byte[] bytes, int offset, int length) {
+        long value = 0;
+        for (int index = length - 1; index >= 0; index--) {
+            value = (value << 8) | (bytes[offset + index] & 0xFF);
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,179 @@
+package tonyg.example.com.blechatcore.codec;
+
+/**
+ * Decodes Bluetooth SIG value formats from a byte array.
+ *
+ * A GattValueReader is a flyweight over a Characteristic value:
+ * wrap() the value, then read the fields in order.  Numbers come back as
+ * primitives and text is appended to a caller supplied StringBuilder,
+ * so nothing is boxed or allocated along the way.
+ * Multi-byte values are little-endian, as Bluetooth requires.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class GattValueReader {
+    /** Constants **/
+    private static final char REPLACEMENT_CHARACTER = '\uFFFD';
+
+    private byte[] mValue;
+    private int mPosition;
+    private int mEnd;
+
+    /**
+     * Start reading a whole value
+     *
+     * @param value the Characteristic value
+     * @return this GattValueReader
+     */
+    public GattValueReader wrap(byte[] value) {
+        return wrap(value, 0, value.length);
+    }
+
+    /**
+     * Start reading part of a value
+     *
+     * @param value the array holding the value
+     * @param offset the position to start reading at
+     * @param length the number of bytes that can be read
+     * @return this GattValueReader
+     */
+    public GattValueReader wrap(byte[] value, int offset, int length) {
+        mValue = value;
+        mPosition = offset;
+        mEnd = offset + length;
+        return this;
+    }
+
+    /**
+     * Get the number of bytes left to read
+     */
+    public int remaining() {
+        return mEnd - mPosition;
+    }
+
+    /**
+     * Read an unsigned 8-bit value (FORMAT_UINT8)
+     */
+    public int getUint8() {
+        checkRemaining(1);
+        int value = DataConverter.readUint8(mValue, mPosition);
+        mPosition += 1;
+        return value;
+    }
+
+    /**
+     * Read an unsigned 16-bit value (FORMAT_UINT16)
+     */
+    public int getUint16() {
+        checkRemaining(2);
+        int value = DataConverter.readUint16(mValue, mPosition);
+        mPosition += 2;
+        return value;
+    }
+
+    /**
+     * Read an unsigned 32-bit value (FORMAT_UINT32)
+     */
+    public long getUint32() {
+        checkRemaining(4);
+        long value = DataConverter.readUint32(mValue, mPosition);
+        mPosition += 4;
+        return value;
+    }
+
+    /**
+     * Read a 16-bit IEEE-11073 SFLOAT (FORMAT_SFLOAT)
+     *
+     * @return the value, which may be NaN or infinite
+     */
+    public double getSfloat() {
+        return Ieee11073Float.decodeSfloat(getUint16());
+    }
+
+    /**
+     * Read a 32-bit IEEE-11073 FLOAT (FORMAT_FLOAT)
+     *
+     * @return the value, which may be NaN or infinite
+     */
+    public double getFloat() {
+        return Ieee11073Float.decodeFloat((int) getUint32());
+    }
+
+    /**
+     * Read the rest of the value as UTF-8 text
+     *
+     * @param output where to append the text
+     * @return the output
+     */
+    public StringBuilder getUtf8(StringBuilder output) {
+        return getUtf8(output, remaining());
+    }
+
+    /**
+     * Read UTF-8 text.  Malformed or truncated sequences come out as U+FFFD
+     *
+     * @param output where to append the text
+     * @param length the number of bytes to read
+     * @return the output
+     */
+    public StringBuilder getUtf8(StringBuilder output, int length) {
+        checkRemaining(length);
+        int end = mPosition + length;
+        while (mPosition < end) {
+            int lead = mValue[mPosition++] & 0xFF;
+            if (lead < 0x80) {
+                output.append((char) lead);
+                continue;
+            }
+
+            int numContinuationBytes;
+            int codePoint;
+            int minCodePoint;
+            if (lead >= 0xC2 && lead <= 0xDF) {
+                numContinuationBytes = 1;
+                codePoint = lead & 0x1F;
+                minCodePoint = 0x80;
+            } else if (lead >= 0xE0 && lead <= 0xEF) {
+                numContinuationBytes = 2;
+                codePoint = lead & 0x0F;
+                minCodePoint = 0x800;
+            } else if (lead >= 0xF0 && lead <= 0xF4) {
+                numContinuationBytes = 3;
+                codePoint = lead & 0x07;
+                minCodePoint = 0x10000;
+            } else {
+                output.append(REPLACEMENT_CHARACTER);
+                continue;
+            }
+
+            int index = 0;
+            for (; index < numContinuationBytes && mPosition < end; index++) {
+                int next = mValue[mPosition] & 0xFF;
+                if ((next & 0xC0) != 0x80) break;
+                codePoint = (codePoint << 6) | (next & 0x3F);
+                mPosition++;
+            }
+
+            if (index < numContinuationBytes || codePoint < minCodePoint || codePoint > Character.MAX_CODE_POINT
+                    || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+                output.append(REPLACEMENT_CHARACTER);
+            } else if (codePoint >= 0x10000) {
+                output.append(Character.highSurrogate(codePoint));
+                output.append(Character.lowSurrogate(codePoint));
+            } else {
+                output.append((char) codePoint);
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Make sure there are enough bytes left to read
+     */
+    private void checkRemaining(int length) {
+        if (length > remaining()) {
+            throw new IndexOutOfBoundsException("Value too short: needs " + length + " more bytes, has " + remaining());
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package tonyg.example.com.blechatcore.codec;
+
+/**
+ * Encodes Bluetooth SIG value formats into a preallocated byte array.
+ *
+ * A GattValueWriter is a flyweight over a buffer owned by the caller:
+ * wrap() the buffer, put the fields in order, then hand the buffer to
+ * BluetoothGattCharacteristic.setValue().  Nothing is boxed or allocated along the way.
+ * Multi-byte values are little-endian, as Bluetooth requires.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class GattValueWriter {
+    private byte[] mBuffer;
+    private int mOffset;
+    private int mPosition;
+
+    /**
+     * Start writing at the beginning of a buffer
+     *
+     * @param buffer the buffer to write into
+     * @return this GattValueWriter
+     */
+    public GattValueWriter wrap(byte[] buffer) {
+        return wrap(buffer, 0);
+    }
+
+    /**
+     * Start writing part way into a buffer
+     *
+     * @param buffer the buffer to write into
+     * @param offset the position to start writing at
+     * @return this GattValueWriter
+     */
+    public GattValueWriter wrap(byte[] buffer, int offset) {
+        mBuffer = buffer;
+        mOffset = offset;
+        mPosition = offset;
+        return this;
+    }
+
+    /**
+     * Get the buffer being written into
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Get the number of bytes written since wrap()
+     */
+    public int getLength() {
+        return mPosition - mOffset;
+    }
+
+    /**
+     * Get the number of bytes left in the buffer
+     */
+    public int remaining() {
+        return mBuffer.length - mPosition;
+    }
+
+    /**
+     * Write an unsigned 8-bit value (FORMAT_UINT8)
+     */
+    public GattValueWriter putUint8(int value) {
+        mPosition = DataConverter.writeUint8(value, mBuffer, mPosition);
+        return this;
+    }
+
+    /**
+     * Write an unsigned 16-bit value (FORMAT_UINT16)
+     */
+    public GattValueWriter putUint16(int value) {
+        mPosition = DataConverter.writeUint16(value, mBuffer, mPosition);
+        return this;
+    }
+
+    /**
+     * Write an unsigned 32-bit value (FORMAT_UINT32)
+     */
+    public GattValueWriter putUint32(long value) {
+        mPosition = DataConverter.writeUint32(value, mBuffer, mPosition);
+        return this;
+    }
+
+    /**
+     * Write an unsigned value, clamped to the largest value that fits.
+     * Handy for counters that could outgrow their field
+     *
+     * @param value the value.  Negative values are written as 0
+     * @param length the field length, from 1 to 4 bytes
+     */
+    public GattValueWriter putUnsignedSaturated(long value, int length) {
+        long maxValue = (1L << (length * 8)) - 1;
+        if (value > maxValue) value = maxValue;
+        if (value < 0) value = 0;
+        for (int index = 0; index < length; index++) {
+            mBuffer[mPosition++] = (byte) (value >>> (index * 8));
+        }
+        return this;
+    }
+
+    /**
+     * Write a 16-bit IEEE-11073 SFLOAT (FORMAT_SFLOAT)
+     */
+    public GattValueWriter putSfloat(double value) {
+        mPosition = DataConverter.writeUint16(Ieee11073Float.encodeSfloat(value), mBuffer, mPosition);
+        return this;
+    }
+
+    /**
+     * Write a 32-bit IEEE-11073 FLOAT (FORMAT_FLOAT)
+     */
+    public GattValueWriter putFloat(double value) {
+        mPosition = DataConverter.writeUint32(Ieee11073Float.encodeFloat(value) & 0xFFFFFFFFL, mBuffer, mPosition);
+        return this;
+    }
+
+    /**
+     * Write text as UTF-8, without a length or terminator.
+     * Characters that don't fit in the buffer are left out, but a character is never split
+     *
+     * @param text the text
+     * @return this GattValueWriter
+     */
+    public GattValueWriter putUtf8(CharSequence text) {
+        int length = text.length();
+        for (int index = 0; index < length; index++) {
+            int codePoint = text.charAt(index);
+            if (Character.isHighSurrogate((char) codePoint) && index + 1 < length
+                    && Character.isLowSurrogate(text.charAt(index + 1))) {
+                codePoint = Character.toCodePoint((char) codePoint, text.charAt(++index));
+            } else if (Character.isSurrogate((char) codePoint)) {
+                codePoint = '?'; // unpaired surrogates can't be encoded
+            }
+
+            if (codePoint < 0x80) {
+                if (remaining() < 1) break;
+                mBuffer[mPosition++] = (byte) codePoint;
+            } else if (codePoint < 0x800) {
+                if (remaining() < 2) break;
+                mBuffer[mPosition++] = (byte) (0xC0 | (codePoint >>> 6));
+                mBuffer[mPosition++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (codePoint < 0x10000) {
+                if (remaining() < 3) break;
+                mBuffer[mPosition++] = (byte) (0xE0 | (codePoint >>> 12));
+                mBuffer[mPosition++] = (byte) (0x80 | ((codePoint >>> 6) & 0x3F));
+                mBuffer[mPosition++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                if (remaining() < 4) break;
+                mBuffer[mPosition++] = (byte) (0xF0 | (codePoint >>> 18));
+                mBuffer[mPosition++] = (byte) (0x80 | ((codePoint >>> 12) & 0x3F));
+                mBuffer[mPosition++] = (byte) (0x80 | ((codePoint >>> 6) & 0x3F));
+                mBuffer[mPosition++] = (byte) (0x80 | (codePoint & 0x3F));
+            }
+        }
+        return this;
+    }
+}
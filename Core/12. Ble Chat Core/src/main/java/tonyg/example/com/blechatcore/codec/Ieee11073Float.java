@@ -0,0 +1,176 @@
+package tonyg.example.com.blechatcore.codec;
+
+/**
+ * Convert between doubles and the IEEE-11073 SFLOAT and FLOAT formats
+ * used by Bluetooth SIG health and sensor Characteristics.
+ *
+ * Both formats are a base 10 exponent and a signed mantissa:
+ * SFLOAT packs a 4-bit exponent and a 12-bit mantissa into 16 bits,
+ * FLOAT packs an 8-bit exponent and a 24-bit mantissa into 32 bits.
+ * A few values with a zero exponent are reserved for NaN and infinity.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class Ieee11073Float {
+    /** SFLOAT special values **/
+    public static final int SFLOAT_NAN = 0x07FF;
+    public static final int SFLOAT_NRES = 0x0800;
+    public static final int SFLOAT_POSITIVE_INFINITY = 0x07FE;
+    public static final int SFLOAT_NEGATIVE_INFINITY = 0x0802;
+    private static final int SFLOAT_RESERVED = 0x0801;
+
+    /** FLOAT special values **/
+    public static final int FLOAT_NAN = 0x007FFFFF;
+    public static final int FLOAT_NRES = 0x00800000;
+    public static final int FLOAT_POSITIVE_INFINITY = 0x007FFFFE;
+    public static final int FLOAT_NEGATIVE_INFINITY = 0x00800002;
+    private static final int FLOAT_RESERVED = 0x00800001;
+
+    // the largest mantissas that can't be mistaken for a special value
+    private static final int SFLOAT_MAX_MANTISSA = 0x07FD;
+    private static final int FLOAT_MAX_MANTISSA = 0x007FFFFD;
+
+    private static final int SFLOAT_MIN_EXPONENT = -8;
+    private static final int SFLOAT_MAX_EXPONENT = 7;
+    private static final int FLOAT_MIN_EXPONENT = -128;
+    private static final int FLOAT_MAX_EXPONENT = 127;
+
+    private static final double[] POWERS_OF_TEN = new double[FLOAT_MAX_EXPONENT - FLOAT_MIN_EXPONENT + 1];
+    static {
+        for (int exponent = FLOAT_MIN_EXPONENT; exponent <= FLOAT_MAX_EXPONENT; exponent++) {
+            POWERS_OF_TEN[exponent - FLOAT_MIN_EXPONENT] = Double.parseDouble("1e" + exponent);
+        }
+    }
+
+    /**
+     * Encode a value as an SFLOAT, keeping as many digits as fit
+     *
+     * @param value the value
+     * @return the 16-bit SFLOAT
+     */
+    public static int encodeSfloat(double value) {
+        if (Double.isNaN(value)) return SFLOAT_NAN;
+        long encoded = encode(value, SFLOAT_MAX_MANTISSA, SFLOAT_MIN_EXPONENT, SFLOAT_MAX_EXPONENT, 4, 12);
+        if (encoded == -1) {
+            return value > 0 ? SFLOAT_POSITIVE_INFINITY : SFLOAT_NEGATIVE_INFINITY;
+        }
+        return (int) encoded;
+    }
+
+    /**
+     * Encode an SFLOAT from its parts
+     *
+     * @param mantissa the mantissa, from -2045 to 2045
+     * @param exponent the base 10 exponent, from -8 to 7
+     * @return the 16-bit SFLOAT
+     */
+    public static int encodeSfloat(int mantissa, int exponent) {
+        return ((exponent & 0x0F) << 12) | (mantissa & 0x0FFF);
+    }
+
+    /**
+     * Decode an SFLOAT
+     *
+     * @param sfloat the 16-bit SFLOAT
+     * @return the value, which may be NaN or infinite
+     */
+    public static double decodeSfloat(int sfloat) {
+        sfloat &= 0xFFFF;
+        switch (sfloat) {
+            case SFLOAT_NAN:
+            case SFLOAT_NRES:
+            case SFLOAT_RESERVED:
+                return Double.NaN;
+            case SFLOAT_POSITIVE_INFINITY:
+                return Double.POSITIVE_INFINITY;
+            case SFLOAT_NEGATIVE_INFINITY:
+                return Double.NEGATIVE_INFINITY;
+        }
+        int mantissa = (sfloat << 20) >> 20;
+        int exponent = (sfloat << 16) >> 28;
+        return mantissa * powerOfTen(exponent);
+    }
+
+    /**
+     * Encode a value as a FLOAT, keeping as many digits as fit
+     *
+     * @param value the value
+     * @return the 32-bit FLOAT
+     */
+    public static int encodeFloat(double value) {
+        if (Double.isNaN(value)) return FLOAT_NAN;
+        long encoded = encode(value, FLOAT_MAX_MANTISSA, FLOAT_MIN_EXPONENT, FLOAT_MAX_EXPONENT, 8, 24);
+        if (encoded == -1) {
+            return value > 0 ? FLOAT_POSITIVE_INFINITY : FLOAT_NEGATIVE_INFINITY;
+        }
+        return (int) encoded;
+    }
+
+    /**
+     * Encode a FLOAT from its parts
+     *
+     * @param mantissa the mantissa, from -8388605 to 8388605
+     * @param exponent the base 10 exponent, from -128 to 127
+     * @return the 32-bit FLOAT
+     */
+    public static int encodeFloat(int mantissa, int exponent) {
+        return ((exponent & 0xFF) << 24) | (mantissa & 0x00FFFFFF);
+    }
+
+    /**
+     * Decode a FLOAT
+     *
+     * @param value the 32-bit FLOAT
+     * @return the value, which may be NaN or infinite
+     */
+    public static double decodeFloat(int value) {
+        switch (value) {
+            case FLOAT_NAN:
+            case FLOAT_NRES:
+            case FLOAT_RESERVED:
+                return Double.NaN;
+            case FLOAT_POSITIVE_INFINITY:
+                return Double.POSITIVE_INFINITY;
+            case FLOAT_NEGATIVE_INFINITY:
+                return Double.NEGATIVE_INFINITY;
+        }
+        int mantissa = (value << 8) >> 8;
+        int exponent = value >> 24;
+        return mantissa * powerOfTen(exponent);
+    }
+
+    /**
+     * Get 10 to the power of an exponent from the lookup table
+     */
+    private static double powerOfTen(int exponent) {
+        return POWERS_OF_TEN[exponent - FLOAT_MIN_EXPONENT];
+    }
+
+    /**
+     * Find the smallest exponent whose mantissa fits, which keeps the most digits
+     *
+     * @return the encoded value as an unsigned number, or -1 if the value is too large
+     */
+    private static long encode(double value, int maxMantissa, int minExponent, int maxExponent,
+                              int exponentBits, int mantissaBits) {
+        double magnitude = Math.abs(value);
+        if (Double.isInfinite(magnitude)) return -1;
+        int exponent = minExponent;
+        if (magnitude > 0) {
+            // start just below the exponent the mantissa needs, rather than at the very bottom
+            int digits = (int) Math.floor(Math.log10(magnitude)) + 1;
+            int maxDigits = (int) Math.floor(Math.log10(maxMantissa)) + 1;
+            exponent = Math.max(minExponent, digits - maxDigits - 1);
+        }
+        for (; exponent <= maxExponent; exponent++) {
+            long mantissa = Math.round(value / powerOfTen(exponent));
+            if (Math.abs(mantissa) <= maxMantissa) {
+                long exponentMask = (1L << exponentBits) - 1;
+                long mantissaMask = (1L << mantissaBits) - 1;
+                return ((exponent & exponentMask) << mantissaBits) | (mantissa & mantissaMask);
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,131 @@
+package tonyg.example.com.blechatcore.codec;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses chat messages with raw deflate and a preset dictionary.
+ *
+ * Short chat messages don't repeat themselves enough for deflate to help on its own,
+ * so both sides start from a shared dictionary of common chat words and phrases.
+ * Raw deflate leaves out the zlib header and checksum; frames are already
+ * length-delimited and the link layer checks for corruption.
+ *
+ * The Deflater, Inflater and output buffers are created once and reused.
+ * Not thread safe; keep one MessageCompressor per connection.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class MessageCompressor {
+    /** Constants **/
+    public static final int MIN_COMPRESSIBLE_LENGTH = 16; // shorter messages never shrink enough to fit another frame in
+    private static final int INITIAL_BUFFER_LENGTH = 256;
+
+    /**
+     * The preset dictionary.  Deflate finds matches closest to the end first,
+     * so the most common words come last.  Changing it breaks compatibility:
+     * a new dictionary needs a new capability bit
+     */
+    private static final byte[] CHAT_DICTIONARY = (
+            "thank you very much. sounds good, see you tomorrow. what time is it? "
+            + "where are you? I don't know. let me know when you get there. "
+            + "can you hear me? that's great! sorry, I'm running late. "
+            + "please call me back. talk to you later. good morning, good night. "
+            + "did you get my message? yes, no, maybe, okay, ok, lol, haha, :) "
+            + "hello, hi, hey, how are you? I'm fine, thanks. what's up? "
+            + "the and that this with have for not you are was will what "
+            ).getBytes(Utf8StreamDecoder.CHARSET);
+
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+    private final Inflater mInflater = new Inflater(true);
+    private final int mMaxMessageLength;
+    private byte[] mCompressed = new byte[INITIAL_BUFFER_LENGTH];
+    private byte[] mDecompressed = new byte[INITIAL_BUFFER_LENGTH];
+
+    /**
+     * Create a new MessageCompressor
+     *
+     * @param maxMessageLength the longest message that will be decompressed
+     */
+    public MessageCompressor(int maxMessageLength) {
+        mMaxMessageLength = maxMessageLength;
+    }
+
+    /**
+     * Compress a message, if that makes it shorter
+     *
+     * @param message the array holding the message
+     * @param offset the position of the message in the array
+     * @param length the message length
+     * @return the compressed length, which is in getCompressedBytes(),
+     *      or -1 if compressing would not make the message shorter
+     */
+    public int compress(byte[] message, int offset, int length) {
+        if (length < MIN_COMPRESSIBLE_LENGTH) return -1;
+        if (mCompressed.length < length) {
+            mCompressed = new byte[length];
+        }
+
+        mDeflater.reset();
+        mDeflater.setDictionary(CHAT_DICTIONARY);
+        mDeflater.setInput(message, offset, length);
+        mDeflater.finish();
+        // anything that doesn't fit in length - 1 bytes isn't worth sending compressed
+        int compressedLength = mDeflater.deflate(mCompressed, 0, length - 1);
+        if (!mDeflater.finished()) return -1;
+        return compressedLength;
+    }
+
+    /**
+     * Get the buffer holding the last compressed message
+     */
+    public byte[] getCompressedBytes() {
+        return mCompressed;
+    }
+
+    /**
+     * Decompress a message
+     *
+     * @param compressed the array holding the compressed message
+     * @param offset the position of the compressed message in the array
+     * @param length the compressed length
+     * @return the message length, which is in getDecompressedBytes()
+     * @throws Exception if the message is malformed or decompresses to more than the maximum length
+     */
+    public int decompress(byte[] compressed, int offset, int length) throws Exception {
+        mInflater.reset();
+        mInflater.setDictionary(CHAT_DICTIONARY);
+        mInflater.setInput(compressed, offset, length);
+
+        int decompressedLength = 0;
+        try {
+            while (!mInflater.finished()) {
+                if (decompressedLength == mDecompressed.length) {
+                    if (mDecompressed.length >= mMaxMessageLength) {
+                        throw new Exception("Compressed message too long");
+                    }
+                    byte[] decompressed = new byte[Math.min(mDecompressed.length * 2, mMaxMessageLength)];
+                    System.arraycopy(mDecompressed, 0, decompressed, 0, decompressedLength);
+                    mDecompressed = decompressed;
+                }
+                int numBytes = mInflater.inflate(mDecompressed, decompressedLength, mDecompressed.length - decompressedLength);
+                if (numBytes == 0 && (mInflater.needsInput() || mInflater.needsDictionary())) {
+                    throw new Exception("Compressed message truncated");
+                }
+                decompressedLength += numBytes;
+            }
+        } catch (DataFormatException e) {
+            throw new Exception("Malformed compressed message: " + e.getMessage());
+        }
+        return decompressedLength;
+    }
+
+    /**
+     * Get the buffer holding the last decompressed message
+     */
+    public byte[] getDecompressedBytes() {
+        return mDecompressed;
+    }
+}
@@ -0,0 +1,168 @@
+package tonyg.example.com.blechatcore.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decodes a stream of UTF-8 bytes that arrives in pieces.
+ *
+ * A character whose bytes are split between two pieces is held back until
+ * the rest arrives, instead of turning into two replacement characters.
+ * Keep one Utf8StreamDecoder per connection: the CharsetDecoder and its
+ * buffers are created once, so decoding a piece allocates nothing.
+ * Not thread safe.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class Utf8StreamDecoder {
+    /** Constants **/
+    public static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final int BUFFER_LENGTH = 256;
+
+    private final CharsetDecoder mDecoder;
+    private final ByteBuffer mInput = ByteBuffer.allocate(BUFFER_LENGTH);
+    private final CharBuffer mOutput = CharBuffer.allocate(BUFFER_LENGTH);
+
+    /**
+     * Create a new Utf8StreamDecoder.  Malformed bytes decode as U+FFFD
+     */
+    public Utf8StreamDecoder() {
+        mDecoder = CHARSET.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Decode the next piece of the stream.  Bytes at the end that don't
+     * make a whole character yet are kept for the next call
+     *
+     * @param bytes a byte array
+     * @param offset the position of the first byte
+     * @param length the number of bytes
+     * @param output where to append the text
+     * @return the output
+     */
+    public StringBuilder decode(byte[] bytes, int offset, int length, StringBuilder output) {
+        int position = offset;
+        int end = offset + length;
+        while (position < end) {
+            // mInput only ever holds the few bytes of an unfinished character between calls
+            int numBytes = Math.min(mInput.remaining(), end - position);
+            mInput.put(bytes, position, numBytes);
+            position += numBytes;
+
+            mInput.flip();
+            decode(false, output);
+            mInput.compact();
+        }
+        return output;
+    }
+
+    /**
+     * Decode the next piece of the stream from a ByteBuffer, which may be read-only.
+     * The buffer's remaining bytes are consumed
+     *
+     * @param bytes the bytes between the buffer's position and limit
+     * @param output where to append the text
+     * @return the output
+     */
+    public StringBuilder decode(ByteBuffer bytes, StringBuilder output) {
+        int limit = bytes.limit();
+        while (bytes.hasRemaining()) {
+            bytes.limit(bytes.position() + Math.min(mInput.remaining(), bytes.remaining()));
+            mInput.put(bytes);
+            bytes.limit(limit);
+
+            mInput.flip();
+            decode(false, output);
+            mInput.compact();
+        }
+        return output;
+    }
+
+    /**
+     * End the stream.  An unfinished character decodes as U+FFFD,
+     * and the decoder is ready for a new stream
+     *
+     * @param output where to append the text
+     * @return the output
+     */
+    public StringBuilder flush(StringBuilder output) {
+        mInput.flip();
+        decode(true, output);
+        CoderResult result;
+        do {
+            result = mDecoder.flush(mOutput);
+            drain(output);
+        } while (result.isOverflow());
+        reset();
+        return output;
+    }
+
+    /**
+     * Decode a complete message, such as a whole framed chat message
+     *
+     * @param bytes a byte array
+     * @param offset the position of the first byte
+     * @param length the number of bytes
+     * @param output where to append the text
+     * @return the output
+     */
+    public StringBuilder decodeMessage(byte[] bytes, int offset, int length, StringBuilder output) {
+        decode(bytes, offset, length, output);
+        return flush(output);
+    }
+
+    /**
+     * Decode a complete message from a ByteBuffer, which may be read-only
+     *
+     * @param bytes the bytes between the buffer's position and limit
+     * @param output where to append the text
+     * @return the output
+     */
+    public StringBuilder decodeMessage(ByteBuffer bytes, StringBuilder output) {
+        decode(bytes, output);
+        return flush(output);
+    }
+
+    /**
+     * Check if part of a character is waiting for the rest of its bytes
+     */
+    public boolean hasPartialCharacter() {
+        return mInput.position() > 0;
+    }
+
+    /**
+     * Forget any unfinished character, for example when the connection drops
+     */
+    public void reset() {
+        mDecoder.reset();
+        mInput.clear();
+        mOutput.clear();
+    }
+
+    /**
+     * Run the decoder over mInput, which must be ready to read
+     */
+    private void decode(boolean isEndOfInput, StringBuilder output) {
+        CoderResult result;
+        do {
+            result = mDecoder.decode(mInput, mOutput, isEndOfInput);
+            drain(output);
+        } while (result.isOverflow());
+    }
+
+    /**
+     * Move the decoded chars to the output
+     */
+    private void drain(StringBuilder output) {
+        mOutput.flip();
+        output.append(mOutput.array(), mOutput.arrayOffset(), mOutput.remaining());
+        mOutput.clear();
+    }
+}
@@ -0,0 +1,49 @@
+package tonyg.example.com.blechatcore.codec;
+
+/**
+ * Encode unsigned integers as variable length integers.
+ *
+ * Each byte carries 7 bits of the value, least significant first,
+ * and the high bit is set on every byte except the last.
+ * Values below 128 take one byte, values below 16384 take two.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class Varint {
+    /** Constants **/
+    public static final int MAX_LENGTH = 5; // bytes needed for the largest int
+
+    /**
+     * Work out how many bytes a value takes once encoded
+     *
+     * @param value a value, treated as unsigned
+     * @return the encoded length, from 1 to MAX_LENGTH
+     */
+    public static int getLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Encode a value
+     *
+     * @param value a value, treated as unsigned
+     * @param destination where to write the encoded value
+     * @param offset the position in the destination to start writing at
+     * @return the number of bytes written
+     */
+    public static int write(int value, byte[] destination, int offset) {
+        int position = offset;
+        while ((value & ~0x7F) != 0) {
+            destination[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        destination[position++] = (byte) value;
+        return position - offset;
+    }
+}
@@ -0,0 +1,89 @@
+package tonyg.example.com.blechatcore.framing;
+
+import tonyg.example.com.blechatcore.queue.ByteRingBuffer;
+
+/**
+ * Queues outgoing frames and cuts them into packets.
+ *
+ * Frames are copied into a ByteRingBuffer as they are queued, and packets
+ * are copied out of it into a caller supplied array, so fragmenting a message
+ * never allocates.  Packets are filled completely whenever enough bytes are queued,
+ * which lets several short frames share one packet.
+ * Not thread safe; whoever owns the Fragmenter must synchronize access to it.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class Fragmenter {
+    private final ByteRingBuffer mQueue;
+    private final byte[] mHeader = new byte[Frame.MAX_HEADER_LENGTH];
+
+    /**
+     * Create a new Fragmenter
+     *
+     * @param queueCapacity the number of bytes of frames that can be queued
+     */
+    public Fragmenter(int queueCapacity) {
+        mQueue = new ByteRingBuffer(queueCapacity);
+    }
+
+    /**
+     * Get the longest payload that fits in an empty queue
+     */
+    public int getMaxPayloadLength() {
+        return Math.min(Frame.MAX_PAYLOAD_LENGTH, mQueue.getCapacity() - Frame.MAX_HEADER_LENGTH);
+    }
+
+    /**
+     * Queue a frame
+     *
+     * @param type the frame type
+     * @param payload the frame payload
+     * @param offset the position of the payload
+     * @param length the payload length
+     * @return <b>true</b> if the frame was queued, <b>false</b> if there was not enough room
+     */
+    public boolean enqueue(int type, byte[] payload, int offset, int length) {
+        if (length > Frame.MAX_PAYLOAD_LENGTH
+                || Frame.getHeaderLength(length) + length > mQueue.remaining()) {
+            return false;
+        }
+        int headerLength = Frame.writeHeader(type, length, mHeader, 0);
+        mQueue.write(mHeader, 0, headerLength);
+        mQueue.write(payload, offset, length);
+        return true;
+    }
+
+    /**
+     * Take the next packet off the queue
+     *
+     * @param packet where to copy the packet
+     * @param offset the position in the packet array to start at
+     * @param maxPacketLength the largest packet allowed
+     * @return the packet length, or 0 if nothing is queued
+     */
+    public int nextPacket(byte[] packet, int offset, int maxPacketLength) {
+        return mQueue.read(packet, offset, maxPacketLength);
+    }
+
+    /**
+     * Check if there is anything left to send
+     */
+    public boolean hasMorePackets() {
+        return !mQueue.isEmpty();
+    }
+
+    /**
+     * Get the number of bytes waiting to be sent
+     */
+    public int getNumQueuedBytes() {
+        return mQueue.available();
+    }
+
+    /**
+     * Drop everything queued
+     */
+    public void clear() {
+        mQueue.clear();
+    }
+}
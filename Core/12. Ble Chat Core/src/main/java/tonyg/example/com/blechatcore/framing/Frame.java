@@ -0,0 +1,49 @@
+package tonyg.example.com.blechatcore.framing;
+
+import tonyg.example.com.blechatcore.codec.Varint;
+
+/**
+ * The frame format shared by the Ble Chat Client and Server.
+ *
+ * Each message is sent as one frame: a type byte, the payload length as a Varint,
+ * and then the payload.  Frames are sent back to back as one stream of bytes,
+ * which is cut into packets as large as the Characteristic allows,
+ * so a packet can hold the end of one frame and the start of the next.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class Frame {
+    /** Constants **/
+    public static final int MAX_PAYLOAD_LENGTH = 65536;
+    public static final int MAX_HEADER_LENGTH = 1 + Varint.MAX_LENGTH;
+
+    /** Frame types **/
+    public static final int TYPE_DATA = 0x01;
+    public static final int TYPE_DATA_DEFLATED = 0x02; // a message compressed with MessageCompressor
+    public static final int TYPE_HELLO = 0x03; // one byte of capability flags, sent once per connection
+
+    /**
+     * Work out how long a frame header is
+     *
+     * @param payloadLength the length of the frame payload
+     * @return the header length
+     */
+    public static int getHeaderLength(int payloadLength) {
+        return 1 + Varint.getLength(payloadLength);
+    }
+
+    /**
+     * Write a frame header
+     *
+     * @param type the frame type
+     * @param payloadLength the length of the frame payload
+     * @param destination where to write the header.  Must have room for MAX_HEADER_LENGTH bytes
+     * @param offset the position in the destination to start writing at
+     * @return the header length
+     */
+    public static int writeHeader(int type, int payloadLength, byte[] destination, int offset) {
+        destination[offset] = (byte) type;
+        return 1 + Varint.write(payloadLength, destination, offset + 1);
+    }
+}
@@ -0,0 +1,190 @@
+package tonyg.example.com.blechatcore.framing;
+
+/**
+ * Reassembles frames from incoming packets.
+ *
+ * Feed packets in the order they arrived to decode().  It stops as soon as a frame
+ * is complete; read the frame with getFrameBytes(), getFrameOffset() and getFrameLength(),
+ * then call nextFrame() and keep decoding the rest of the packet.
+ *
+ * A frame that arrives whole inside one packet is handed out in place, without copying.
+ * Frames split across packets are copied into a reusable buffer that grows as needed,
+ * up to the maximum payload length.
+ * Not thread safe; keep one FrameDecoder per connection.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class FrameDecoder {
+    /** Constants **/
+    private static final int INITIAL_BUFFER_LENGTH = 64;
+
+    /** Decoder states **/
+    private static final int STATE_TYPE = 0;
+    private static final int STATE_LENGTH = 1;
+    private static final int STATE_PAYLOAD = 2;
+    private static final int STATE_COMPLETE = 3;
+
+    private static final byte[] EMPTY_PAYLOAD = new byte[0];
+
+    private final int mMaxPayloadLength;
+    private byte[] mBuffer = new byte[INITIAL_BUFFER_LENGTH];
+
+    private int mState = STATE_TYPE;
+    private int mType;
+    private int mLength;
+    private int mLengthShift;
+    private int mNumPayloadBytes;
+
+    private byte[] mFrameBytes;
+    private int mFrameOffset;
+
+    /**
+     * Create a new FrameDecoder
+     *
+     * @param maxPayloadLength the longest frame payload to accept
+     */
+    public FrameDecoder(int maxPayloadLength) {
+        mMaxPayloadLength = Math.min(maxPayloadLength, Frame.MAX_PAYLOAD_LENGTH);
+    }
+
+    /**
+     * Decode bytes from a packet, stopping early if a frame is completed
+     *
+     * @param packet the incoming packet
+     * @param offset the position in the packet to start decoding at
+     * @param length the number of bytes to decode
+     * @return the number of bytes consumed
+     * @throws Exception if the frame is malformed or too long. The decoder is reset
+     */
+    public int decode(byte[] packet, int offset, int length) throws Exception {
+        int position = offset;
+        int end = offset + length;
+        while (position < end && mState != STATE_COMPLETE) {
+            switch (mState) {
+                case STATE_TYPE:
+                    mType = packet[position++] & 0xFF;
+                    mLength = 0;
+                    mLengthShift = 0;
+                    mState = STATE_LENGTH;
+                    break;
+
+                case STATE_LENGTH:
+                    int value = packet[position++] & 0xFF;
+                    mLength |= (value & 0x7F) << mLengthShift;
+                    mLengthShift += 7;
+                    if ((value & 0x80) != 0) {
+                        if (mLengthShift > 28) {
+                            reset();
+                            throw new Exception("Malformed frame length");
+                        }
+                        break;
+                    }
+                    if (mLength < 0 || mLength > mMaxPayloadLength) {
+                        reset();
+                        throw new Exception("Frame too long: " + (mLength & 0xFFFFFFFFL));
+                    }
+                    if (mLength == 0) {
+                        completeFrame(EMPTY_PAYLOAD, 0);
+                    } else if (end - position >= mLength) {
+                        // the whole payload is in this packet, so hand it out in place
+                        completeFrame(packet, position);
+                        position += mLength;
+                    } else {
+                        ensureBufferLength(mLength);
+                        mNumPayloadBytes = 0;
+                        mState = STATE_PAYLOAD;
+                    }
+                    break;
+
+                case STATE_PAYLOAD:
+                    int numBytes = Math.min(end - position, mLength - mNumPayloadBytes);
+                    System.arraycopy(packet, position, mBuffer, mNumPayloadBytes, numBytes);
+                    position += numBytes;
+                    mNumPayloadBytes += numBytes;
+                    if (mNumPayloadBytes == mLength) {
+                        completeFrame(mBuffer, 0);
+                    }
+                    break;
+            }
+        }
+        return position - offset;
+    }
+
+    /**
+     * Check if a complete frame is ready to be read
+     */
+    public boolean hasFrame() {
+        return mState == STATE_COMPLETE;
+    }
+
+    /**
+     * Get the type of the completed frame
+     */
+    public int getFrameType() {
+        return mType;
+    }
+
+    /**
+     * Get the array holding the completed frame payload.
+     * It may be the packet passed to decode(), so it is only valid until the next call to decode()
+     */
+    public byte[] getFrameBytes() {
+        return mFrameBytes;
+    }
+
+    /**
+     * Get the position of the completed frame payload in getFrameBytes()
+     */
+    public int getFrameOffset() {
+        return mFrameOffset;
+    }
+
+    /**
+     * Get the length of the completed frame payload
+     */
+    public int getFrameLength() {
+        return mLength;
+    }
+
+    /**
+     * Release the completed frame and get ready for the next one
+     */
+    public void nextFrame() {
+        mFrameBytes = null;
+        mState = STATE_TYPE;
+    }
+
+    /**
+     * Check if the decoder is between frames
+     */
+    public boolean isIdle() {
+        return mState == STATE_TYPE;
+    }
+
+    /**
+     * Drop any partly decoded frame, for example after a disconnect
+     */
+    public void reset() {
+        mFrameBytes = null;
+        mState = STATE_TYPE;
+    }
+
+    /**
+     * Mark the frame as complete
+     */
+    private void completeFrame(byte[] frameBytes, int frameOffset) {
+        mFrameBytes = frameBytes;
+        mFrameOffset = frameOffset;
+        mState = STATE_COMPLETE;
+    }
+
+    /**
+     * Grow the reassembly buffer to the next power of two that can hold a payload
+     */
+    private void ensureBufferLength(int length) {
+        if (mBuffer.length >= length) return;
+        int bufferLength = Integer.highestOneBit(length - 1) << 1;
+        mBuffer = new byte[Math.min(bufferLength, mMaxPayloadLength)];
+    }
+}
@@ -0,0 +1,138 @@
+package tonyg.example.com.blechatcore.log;
+
+import tonyg.example.com.blechatcore.codec.Utf8StreamDecoder;
+
+/**
+ * A window of decoded messages from a ChatLog, for showing a conversation of any length
+ * a screenful at a time.
+ *
+ * At most the capacity's worth of messages are held, in a ring.  Asking for the message just
+ * past the window reads it from the log and pushes out the oldest, so following new messages
+ * costs one read each.  Asking for a message further away moves the window around it with
+ * one page read from the log, so scrolling back through the history never grows the heap.
+ *
+ * Line breaks at the end of a message are dropped, since each message is shown on its own line.
+ * Not thread safe; use it from the thread that shows the messages.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class ChatHistory {
+    /** Constants **/
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final ChatLog mChatLog;
+    private final String[] mMessages; // a ring, starting at mWindowHead
+    private int mWindowHead = 0;
+    private long mWindowStart = 0; // the sequence number of the first message in the window
+    private int mWindowLength = 0;
+    private ChatLog.Cursor mCursor; // positioned at the end of the window
+    private byte[] mMessageBytes = new byte[256];
+    private long mNumPageReads = 0;
+
+    /**
+     * Create a new ChatHistory
+     *
+     * @param chatLog the ChatLog to read from
+     * @param capacity the most messages to hold in memory
+     */
+    public ChatHistory(ChatLog chatLog, int capacity) {
+        mChatLog = chatLog;
+        mMessages = new String[Math.max(1, capacity)];
+    }
+
+    /**
+     * Get the sequence number of the oldest message still in the log
+     */
+    public long getFirstSequence() {
+        return mChatLog.getFirstSequence();
+    }
+
+    /**
+     * Get the sequence number the next message logged will get
+     */
+    public long getNextSequence() {
+        return mChatLog.getNextSequence();
+    }
+
+    /**
+     * Get the number of times the window was moved by reading a page from the log
+     */
+    public long getNumPageReads() {
+        return mNumPageReads;
+    }
+
+    /**
+     * Get a message, reading it from the log if it is outside the window
+     *
+     * @param sequence the message's sequence number
+     * @return the message text, or null if it is no longer, or not yet, in the log
+     */
+    public String get(long sequence) {
+        long windowEnd = mWindowStart + mWindowLength;
+        if (sequence >= mWindowStart && sequence < windowEnd) {
+            return mMessages[slot(sequence)];
+        }
+        if (mCursor == null || sequence < mWindowStart || sequence >= windowEnd + mMessages.length) {
+            // too far to walk to; start a new window with the message in the middle
+            long firstSequence = mChatLog.getFirstSequence();
+            if (sequence < firstSequence) return null;
+            mCursor = mChatLog.read(Math.max(firstSequence, sequence - mMessages.length / 2));
+            mWindowLength = 0;
+            mNumPageReads++;
+            while (mWindowLength < mMessages.length && readNext()) {
+                // filling the window
+            }
+        } else {
+            while (sequence >= mWindowStart + mWindowLength && readNext()) {
+                // walking forward to the message
+            }
+        }
+        if (sequence < mWindowStart || sequence >= mWindowStart + mWindowLength) return null;
+        return mMessages[slot(sequence)];
+    }
+
+    /**
+     * Read the message after the window into it, pushing out the oldest if the window is full
+     *
+     * @return <b>false</b> if there is no message after the window yet
+     */
+    private boolean readNext() {
+        if (!mCursor.next()) return false;
+        long sequence = mCursor.getSequence();
+        if (mWindowLength == 0 || sequence != mWindowStart + mWindowLength) {
+            // a new window, or the log deleted messages the cursor hadn't reached
+            mWindowHead = 0;
+            mWindowStart = sequence;
+            mWindowLength = 0;
+        }
+        if (mWindowLength == mMessages.length) {
+            mMessages[mWindowHead] = null;
+            mWindowHead = (mWindowHead + 1) % mMessages.length;
+            mWindowStart++;
+            mWindowLength--;
+        }
+        mMessages[slot(sequence)] = decode();
+        mWindowLength++;
+        return true;
+    }
+
+    /**
+     * Decode the message under the cursor, without its trailing line breaks
+     */
+    private String decode() {
+        int length = mCursor.getLength();
+        if (mMessageBytes.length < length) {
+            mMessageBytes = new byte[length];
+        }
+        mCursor.copyMessage(mMessageBytes, 0);
+        while (length > 0 && (mMessageBytes[length - 1] == '\n' || mMessageBytes[length - 1] == '\r')) {
+            length--;
+        }
+        return new String(mMessageBytes, 0, length, Utf8StreamDecoder.CHARSET);
+    }
+
+    private int slot(long sequence) {
+        return (int) ((mWindowHead + (sequence - mWindowStart)) % mMessages.length);
+    }
+}
@@ -0,0 +1,424 @@
+package tonyg.example.com.blechatcore.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of chat messages, kept in memory-mapped segment files.
+ *
+ * Every message gets a sequence number, counting up from 0 for the life of the log.
+ * Messages are written straight into the mapping of the newest segment, so appending
+ * copies each message once and never grows the heap; the page cache keeps them if the app
+ * is killed, and flush() or rotation syncs them to storage.  When a message doesn't fit,
+ * the segment is synced and a new one is started, and once there are more than the
+ * maximum number of segments the oldest is deleted.
+ *
+ * Each record is the record length, a CRC-32 of the message, the time it was logged, and the
+ * message.  A zero length marks the end of a segment, and a record that fails its CRC
+ * after a crash is treated as the end.  Each segment has a compact index: the position
+ * of every INDEX_INTERVAL-th record, so a read starts at most that many records from the
+ * one it wants.
+ *
+ * Thread safe.  Read with a Cursor, which can run on another thread while messages are appended.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class ChatLog {
+    /** Constants **/
+    public static final int DEFAULT_SEGMENT_LENGTH = 1024 * 1024;
+    public static final int DEFAULT_MAX_SEGMENTS = 8;
+    public static final int RECORD_HEADER_LENGTH = 16; // record length, CRC-32, timestamp
+    public static final int INDEX_INTERVAL = 16;
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int SEQUENCE_DIGITS = 20; // file names sort in sequence order
+
+    private final File mDirectory;
+    private final int mSegmentLength;
+    private final int mMaxSegments;
+    private final CRC32 mCrc = new CRC32();
+    private final ArrayList<Segment> mSegments = new ArrayList<>(); // oldest first
+    private long mNextSequence = 0;
+    private boolean mIsClosed = false;
+
+    /**
+     * Open a ChatLog, creating the directory if necessary, and find the end of the newest segment
+     *
+     * @param directory where the segment files are kept
+     * @param segmentLength the size of each segment file, in bytes
+     * @param maxSegments the most segments to keep; older ones are deleted
+     * @throws Exception if the directory or segments can't be opened
+     */
+    public ChatLog(File directory, int segmentLength, int maxSegments) throws Exception {
+        mDirectory = directory;
+        mSegmentLength = Math.max(RECORD_HEADER_LENGTH * 2, segmentLength);
+        mMaxSegments = Math.max(1, maxSegments);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new Exception("Could not create chat log directory " + directory);
+        }
+        open();
+    }
+
+    /**
+     * Append a message
+     *
+     * @param message the array holding the message
+     * @param offset the position of the message in the array
+     * @param length the message length
+     * @param timestampMillis when the message arrived
+     * @return the message's sequence number
+     * @throws Exception if the message is longer than a segment, or a new segment can't be created
+     */
+    public synchronized long append(byte[] message, int offset, int length, long timestampMillis) throws Exception {
+        if (mIsClosed) {
+            throw new Exception("Chat log is closed");
+        }
+        int recordLength = RECORD_HEADER_LENGTH + length;
+        if (recordLength >= mSegmentLength) {
+            throw new Exception("Message too long to log: " + length);
+        }
+        Segment segment = mSegments.get(mSegments.size() - 1);
+        if (segment.mEnd + recordLength > segment.mLength) {
+            rotate();
+            segment = mSegments.get(mSegments.size() - 1);
+        }
+
+        mCrc.reset();
+        mCrc.update(message, offset, length);
+        MappedByteBuffer log = segment.mLog;
+        int position = segment.mEnd;
+        log.position(position + RECORD_HEADER_LENGTH);
+        log.put(message, offset, length);
+        log.putLong(position + 8, timestampMillis);
+        log.putInt(position + 4, (int) mCrc.getValue());
+        // the length goes in last, since a zero length marks the end
+        log.putInt(position, recordLength);
+        segment.addRecord(position, recordLength);
+        return mNextSequence++;
+    }
+
+    /**
+     * Get the sequence number of the oldest message still kept
+     */
+    public synchronized long getFirstSequence() {
+        return mSegments.get(0).mFirstSequence;
+    }
+
+    /**
+     * Get the sequence number the next message will get
+     */
+    public synchronized long getNextSequence() {
+        return mNextSequence;
+    }
+
+    /**
+     * Get the number of segment files
+     */
+    public synchronized int getNumSegments() {
+        return mSegments.size();
+    }
+
+    /**
+     * Start reading messages
+     *
+     * @param fromSequence the first message to read.  Messages already deleted are skipped
+     * @return a Cursor positioned before that message
+     */
+    public Cursor read(long fromSequence) {
+        return new Cursor(fromSequence);
+    }
+
+    /**
+     * Sync the newest segment and its index to storage
+     */
+    public synchronized void flush() {
+        if (mIsClosed) return;
+        mSegments.get(mSegments.size() - 1).force();
+    }
+
+    /**
+     * Sync and stop appending.  Cursors can still read what was logged
+     */
+    public synchronized void close() {
+        flush();
+        mIsClosed = true;
+    }
+
+    /**
+     * Map the existing segments, or create the first
+     */
+    private void open() throws Exception {
+        File[] files = mDirectory.listFiles();
+        ArrayList<Long> firstSequences = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.length() == SEQUENCE_DIGITS + LOG_SUFFIX.length() && name.endsWith(LOG_SUFFIX)) {
+                    try {
+                        firstSequences.add(Long.parseLong(name.substring(0, SEQUENCE_DIGITS)));
+                    } catch (NumberFormatException e) {
+                        // not a segment
+                    }
+                }
+            }
+        }
+        Long[] sorted = firstSequences.toArray(new Long[firstSequences.size()]);
+        Arrays.sort(sorted);
+
+        for (int index = 0; index < sorted.length; index++) {
+            boolean isNewest = index == sorted.length - 1;
+            Segment segment = new Segment(sorted[index]);
+            if (isNewest) {
+                // the newest segment may have been cut off, so find its end and rebuild its index
+                segment.recover(mCrc);
+                mNextSequence = segment.mFirstSequence + segment.mNumRecords;
+            } else {
+                segment.mNumRecords = (int) (sorted[index + 1] - sorted[index]);
+            }
+            mSegments.add(segment);
+        }
+        if (mSegments.isEmpty()) {
+            mSegments.add(new Segment(0));
+        }
+    }
+
+    /**
+     * Seal the newest segment and start a new one, deleting the oldest if there are too many
+     */
+    private void rotate() throws Exception {
+        Segment sealed = mSegments.get(mSegments.size() - 1);
+        if (sealed.mEnd + 4 <= sealed.mLength) {
+            sealed.mLog.putInt(sealed.mEnd, 0);
+        }
+        sealed.force();
+        mSegments.add(new Segment(mNextSequence));
+        while (mSegments.size() > mMaxSegments) {
+            mSegments.remove(0).delete();
+        }
+    }
+
+    /**
+     * Find the segment holding a message
+     *
+     * @return the segment, or null if the message is newer than any logged
+     */
+    private synchronized Segment findSegment(long sequence) {
+        for (int index = mSegments.size() - 1; index >= 0; index--) {
+            Segment segment = mSegments.get(index);
+            if (sequence >= segment.mFirstSequence) {
+                return sequence < segment.mFirstSequence + segment.mNumRecords ? segment : null;
+            }
+        }
+        return null;
+    }
+
+    private String getFileName(long firstSequence, String suffix) {
+        String digits = Long.toString(firstSequence);
+        StringBuilder name = new StringBuilder(SEQUENCE_DIGITS + suffix.length());
+        for (int index = digits.length(); index < SEQUENCE_DIGITS; index++) {
+            name.append('0');
+        }
+        return name.append(digits).append(suffix).toString();
+    }
+
+    /**
+     * One log file and its index
+     */
+    private class Segment {
+        final long mFirstSequence;
+        final File mLogFile, mIndexFile;
+        final MappedByteBuffer mLog, mIndex;
+        final int mLength;
+        int mEnd = 0; // where the next record goes
+        int mNumRecords = 0;
+
+        Segment(long firstSequence) throws IOException {
+            mFirstSequence = firstSequence;
+            mLogFile = new File(mDirectory, getFileName(firstSequence, LOG_SUFFIX));
+            mIndexFile = new File(mDirectory, getFileName(firstSequence, INDEX_SUFFIX));
+            // segments written with a different segment length keep their own
+            mLength = mLogFile.length() > 0 ? (int) mLogFile.length() : mSegmentLength;
+            int maxIndexEntries = mLength / RECORD_HEADER_LENGTH / INDEX_INTERVAL + 1;
+            mLog = map(mLogFile, mLength);
+            mIndex = map(mIndexFile, maxIndexEntries * 4);
+        }
+
+        /**
+         * Find the last whole record, and rewrite the index up to it
+         */
+        void recover(CRC32 crc) {
+            int position = 0;
+            int numRecords = 0;
+            while (position + RECORD_HEADER_LENGTH <= mLength) {
+                int recordLength = mLog.getInt(position);
+                if (recordLength < RECORD_HEADER_LENGTH || position + recordLength > mLength) break;
+                crc.reset();
+                for (int index = position + RECORD_HEADER_LENGTH; index < position + recordLength; index++) {
+                    crc.update(mLog.get(index));
+                }
+                if ((int) crc.getValue() != mLog.getInt(position + 4)) break;
+                if (numRecords % INDEX_INTERVAL == 0) {
+                    mIndex.putInt(numRecords / INDEX_INTERVAL * 4, position);
+                }
+                position += recordLength;
+                numRecords++;
+            }
+            // anything after the last whole record is from a crash, so mark the end
+            if (position + 4 <= mLength) {
+                mLog.putInt(position, 0);
+            }
+            mEnd = position;
+            mNumRecords = numRecords;
+        }
+
+        void addRecord(int position, int recordLength) {
+            if (mNumRecords % INDEX_INTERVAL == 0) {
+                mIndex.putInt(mNumRecords / INDEX_INTERVAL * 4, position);
+            }
+            mEnd = position + recordLength;
+            mNumRecords++;
+        }
+
+        /**
+         * Get the position of a record
+         *
+         * @param sequence a sequence number in this segment
+         */
+        int findRecord(long sequence) {
+            int recordIndex = (int) (sequence - mFirstSequence);
+            int position = mIndex.getInt(recordIndex / INDEX_INTERVAL * 4);
+            for (int index = recordIndex - recordIndex % INDEX_INTERVAL; index < recordIndex; index++) {
+                position += mLog.getInt(position);
+            }
+            return position;
+        }
+
+        void force() {
+            mLog.force();
+            mIndex.force();
+        }
+
+        void delete() {
+            // the mappings stay readable until they are collected, so open Cursors carry on
+            mLogFile.delete();
+            mIndexFile.delete();
+        }
+    }
+
+    private static MappedByteBuffer map(File file, int length) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            // a new file reads as zeros, which is an empty segment
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } finally {
+            // the mapping stays valid after the file is closed
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Reads messages in sequence order, across segments.  Not thread safe;
+     * give each reader its own Cursor
+     */
+    public class Cursor {
+        private long mSequence; // the next message to read
+        private Segment mSegment;
+        private int mPosition;
+        private ByteBuffer mView;
+        private long mCurrentSequence = -1;
+        private long mTimestamp = 0;
+        private int mLength = -1;
+
+        Cursor(long fromSequence) {
+            mSequence = fromSequence;
+        }
+
+        /**
+         * Move to the next message
+         *
+         * @return <b>true</b> if there is one; <b>false</b> once every message logged so far has been read
+         */
+        public boolean next() {
+            Segment segment = mSegment;
+            if (segment == null || mSequence >= segment.mFirstSequence + getNumRecords(segment)) {
+                // skip anything deleted since the cursor was made
+                mSequence = Math.max(mSequence, getFirstSequence());
+                segment = findSegment(mSequence);
+                if (segment == null) return false;
+                if (segment != mSegment) {
+                    mSegment = segment;
+                    mView = segment.mLog.asReadOnlyBuffer();
+                }
+                synchronized (ChatLog.this) {
+                    mPosition = segment.findRecord(mSequence);
+                }
+            }
+
+            mView.limit(mView.capacity());
+            int recordLength = mView.getInt(mPosition);
+            mCurrentSequence = mSequence;
+            mTimestamp = mView.getLong(mPosition + 8);
+            mLength = recordLength - RECORD_HEADER_LENGTH;
+            mView.limit(mPosition + recordLength);
+            mView.position(mPosition + RECORD_HEADER_LENGTH);
+            mPosition += recordLength;
+            mSequence++;
+            return true;
+        }
+
+        /**
+         * Get the sequence number of the current message
+         */
+        public long getSequence() {
+            return mCurrentSequence;
+        }
+
+        /**
+         * Get the time the current message was logged, in milliseconds
+         */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        /**
+         * Get the length of the current message
+         */
+        public int getLength() {
+            return mLength;
+        }
+
+        /**
+         * Get the current message as a read-only view of the mapped segment,
+         * between its position and limit.  It is only valid until next() is called
+         */
+        public ByteBuffer getMessage() {
+            return mView;
+        }
+
+        /**
+         * Copy the current message
+         *
+         * @param destination where to copy it
+         * @param offset the position in the destination
+         */
+        public void copyMessage(byte[] destination, int offset) {
+            int position = mView.position();
+            mView.get(destination, offset, mLength);
+            mView.position(position);
+        }
+
+        private int getNumRecords(Segment segment) {
+            synchronized (ChatLog.this) {
+                return segment.mNumRecords;
+            }
+        }
+    }
+}
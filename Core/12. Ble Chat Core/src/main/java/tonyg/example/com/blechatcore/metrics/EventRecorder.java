@@ -0,0 +1,70 @@
+package tonyg.example.com.blechatcore.metrics;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records events into a preallocated binary ring buffer
+ * instead of building log Strings on the hot path.
+ *
+ * Each event takes two longs: a timestamp, and the event id packed with the payload length.
+ * Recording never allocates.  Once the buffer is full, each event overwrites the oldest.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class EventRecorder {
+    /** Constants **/
+    private static final int SLOT_SIZE = 2;
+
+    private final String[] mEventNames;
+    private final int mCapacity;
+    private final long[] mEvents;
+    private final AtomicLong mNextEvent = new AtomicLong();
+
+    /**
+     * Create a new EventRecorder
+     *
+     * @param eventNames the name of each event id.  Index 0 names unknown events
+     * @param capacity the number of events kept.  Must be a power of two
+     */
+    public EventRecorder(String[] eventNames, int capacity) {
+        mEventNames = eventNames;
+        mCapacity = capacity;
+        mEvents = new long[capacity * SLOT_SIZE];
+    }
+
+    /**
+     * Record an event
+     *
+     * @param eventId the event id, an index into the event names
+     * @param length the payload length, or a status code for events without a payload
+     */
+    public void record(int eventId, int length) {
+        int slot = (int) (mNextEvent.getAndIncrement() & (mCapacity - 1)) * SLOT_SIZE;
+        mEvents[slot] = System.nanoTime();
+        mEvents[slot + 1] = ((long) eventId << 32) | (length & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Dump the recorded events, oldest first.
+     * Events recorded while dumping may show up torn
+     *
+     * @param prefix the indentation for each line
+     * @param writer where to write the events
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        long nextEvent = mNextEvent.get();
+        long firstEvent = Math.max(0, nextEvent - mCapacity);
+        for (long event = firstEvent; event < nextEvent; event++) {
+            int slot = (int) (event & (mCapacity - 1)) * SLOT_SIZE;
+            int eventId = (int) (mEvents[slot + 1] >>> 32);
+            writer.print(prefix);
+            writer.print(mEvents[slot]);
+            writer.print(' ');
+            writer.print(eventId > 0 && eventId < mEventNames.length ? mEventNames[eventId] : mEventNames[0]);
+            writer.print(' ');
+            writer.println((int) mEvents[slot + 1]);
+        }
+    }
+}
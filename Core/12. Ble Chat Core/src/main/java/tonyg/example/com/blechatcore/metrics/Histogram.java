@@ -0,0 +1,153 @@
+package tonyg.example.com.blechatcore.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram with fixed power-of-two buckets.
+ *
+ * Bucket 0 holds the value 0, bucket n holds values from 2^(n-1) to 2^n - 1,
+ * and the last bucket also holds everything larger.
+ * Recording a value never allocates.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class Histogram {
+    private final String mName;
+    private final AtomicLongArray mBuckets;
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Create a new Histogram
+     *
+     * @param name the name reported in snapshots
+     * @param numBuckets the number of buckets.  The largest exact bucket holds values below 2^(numBuckets-2)
+     */
+    public Histogram(String name, int numBuckets) {
+        mName = name;
+        mBuckets = new AtomicLongArray(numBuckets);
+    }
+
+    /**
+     * Get the name of this histogram
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Record a value.  Negative values are recorded as 0
+     *
+     * @param value the value to record
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        int bucket = 64 - Long.numberOfLeadingZeros(value);
+        if (bucket >= mBuckets.length()) {
+            bucket = mBuckets.length() - 1;
+        }
+        mBuckets.getAndIncrement(bucket);
+        mCount.getAndIncrement();
+        mSum.getAndAdd(value);
+
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * Get the number of buckets
+     */
+    public int getNumBuckets() {
+        return mBuckets.length();
+    }
+
+    /**
+     * Get the number of values recorded in a bucket
+     *
+     * @param bucket the bucket index
+     */
+    public long getBucketCount(int bucket) {
+        return mBuckets.get(bucket);
+    }
+
+    /**
+     * Get the smallest value that can be recorded in a bucket
+     *
+     * @param bucket the bucket index
+     */
+    public static long getBucketLowerBound(int bucket) {
+        return bucket == 0 ? 0 : 1L << (bucket - 1);
+    }
+
+    /**
+     * Get the largest value that can be recorded in a bucket, ignoring the larger values the last bucket also holds
+     *
+     * @param bucket the bucket index
+     */
+    public static long getBucketUpperBound(int bucket) {
+        return (1L << bucket) - 1;
+    }
+
+    /**
+     * Get the number of values recorded
+     */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * Get the largest value recorded
+     */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * Get the mean of the values recorded
+     */
+    public long getMean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSum.get() / count;
+    }
+
+    /**
+     * Estimate a percentile from the buckets.  The estimate is the upper bound of the bucket
+     * holding the percentile, so it is never below the true value and at most twice it.
+     * It is capped at the largest value recorded, which is also the estimate for the last bucket
+     *
+     * @param percentile a value from 0 to 100
+     * @return the upper bound of the bucket holding the percentile, or the largest value recorded if smaller
+     */
+    public long getPercentile(double percentile) {
+        long count = mCount.get();
+        if (count == 0) return 0;
+        long max = mMax.get();
+        long target = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        int lastBucket = mBuckets.length() - 1;
+        for (int bucket = 0; bucket < lastBucket; bucket++) {
+            seen += mBuckets.get(bucket);
+            if (seen >= target) {
+                return Math.min(getBucketUpperBound(bucket), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Clear all recorded values
+     */
+    public void reset() {
+        for (int bucket = 0; bucket < mBuckets.length(); bucket++) {
+            mBuckets.set(bucket, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+}
@@ -0,0 +1,95 @@
+package tonyg.example.com.blechatcore.metrics;
+
+import java.io.PrintWriter;
+
+/**
+ * A fixed set of counters and histograms that are reported together.
+ *
+ * The metrics are passed in up front, so updating them never allocates.
+ * Each app keeps one registry of the metrics it records
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class MetricsRegistry {
+    private final StripedCounter[] mCounters;
+    private final Histogram[] mHistograms;
+
+    /**
+     * Create a new MetricsRegistry
+     *
+     * @param counters the counters, in the order they are reported
+     * @param histograms the histograms, in the order they are reported
+     */
+    public MetricsRegistry(StripedCounter[] counters, Histogram[] histograms) {
+        mCounters = counters;
+        mHistograms = histograms;
+    }
+
+    /**
+     * Write a human readable snapshot of every metric
+     *
+     * @param output where to write the snapshot
+     */
+    public void snapshot(StringBuilder output) {
+        for (StripedCounter counter : mCounters) {
+            output.append(counter.getName()).append(": ").append(counter.sum()).append('\n');
+        }
+        for (Histogram histogram : mHistograms) {
+            output.append(histogram.getName())
+                    .append(": count=").append(histogram.getCount())
+                    .append(" mean=").append(histogram.getMean())
+                    .append(" p50=").append(histogram.getPercentile(50))
+                    .append(" p99=").append(histogram.getPercentile(99))
+                    .append(" max=").append(histogram.getMax())
+                    .append('\n');
+        }
+    }
+
+    /**
+     * Dump every metric, with each histogram's non-empty buckets
+     *
+     * @param prefix the indentation for each line
+     * @param writer where to write the snapshot
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        for (StripedCounter counter : mCounters) {
+            writer.print(prefix);
+            writer.print(counter.getName());
+            writer.print(": ");
+            writer.println(counter.sum());
+        }
+        for (Histogram histogram : mHistograms) {
+            writer.print(prefix);
+            writer.print(histogram.getName());
+            writer.print(": count=");
+            writer.print(histogram.getCount());
+            writer.print(" mean=");
+            writer.print(histogram.getMean());
+            writer.print(" max=");
+            writer.println(histogram.getMax());
+            for (int bucket = 0; bucket < histogram.getNumBuckets(); bucket++) {
+                long count = histogram.getBucketCount(bucket);
+                if (count > 0) {
+                    writer.print(prefix);
+                    writer.print("  >=");
+                    writer.print(Histogram.getBucketLowerBound(bucket));
+                    writer.print(": ");
+                    writer.println(count);
+                }
+            }
+        }
+    }
+
+    /**
+     * Set every metric back to zero
+     */
+    public void reset() {
+        for (StripedCounter counter : mCounters) {
+            counter.reset();
+        }
+        for (Histogram histogram : mHistograms) {
+            histogram.reset();
+        }
+    }
+}
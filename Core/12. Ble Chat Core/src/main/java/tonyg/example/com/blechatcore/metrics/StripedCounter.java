@@ -0,0 +1,82 @@
+package tonyg.example.com.blechatcore.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free counter that spreads increments across several cells
+ * so that concurrent writers don't fight over one cache line.
+ *
+ * Incrementing never allocates, so it is safe to call from Bluetooth callbacks.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class StripedCounter {
+    /** Constants **/
+    private static final int NUM_STRIPES = 8; // must be a power of two
+    private static final int CELL_PADDING = 8; // 8 longs = one 64 byte cache line per stripe
+
+    private final String mName;
+    private final AtomicLongArray mCells = new AtomicLongArray(NUM_STRIPES * CELL_PADDING);
+
+    /**
+     * Create a new StripedCounter
+     *
+     * @param name the name reported in snapshots
+     */
+    public StripedCounter(String name) {
+        mName = name;
+    }
+
+    /**
+     * Get the name of this counter
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Add one to the counter
+     */
+    public void increment() {
+        mCells.getAndIncrement(getCellIndex());
+    }
+
+    /**
+     * Add a value to the counter
+     *
+     * @param delta the amount to add
+     */
+    public void add(long delta) {
+        mCells.getAndAdd(getCellIndex(), delta);
+    }
+
+    /**
+     * Sum all the stripes.  The result is not an atomic snapshot if other threads are writing
+     *
+     * @return the current count
+     */
+    public long sum() {
+        long sum = 0;
+        for (int stripe = 0; stripe < NUM_STRIPES; stripe++) {
+            sum += mCells.get(stripe * CELL_PADDING);
+        }
+        return sum;
+    }
+
+    /**
+     * Set the counter back to zero
+     */
+    public void reset() {
+        for (int stripe = 0; stripe < NUM_STRIPES; stripe++) {
+            mCells.set(stripe * CELL_PADDING, 0);
+        }
+    }
+
+    /**
+     * Pick the stripe for the calling thread
+     */
+    private static int getCellIndex() {
+        return ((int) Thread.currentThread().getId() & (NUM_STRIPES - 1)) * CELL_PADDING;
+    }
+}
@@ -0,0 +1,134 @@
+package tonyg.example.com.blechatcore.queue;
+
+/**
+ * A first in, first out queue of bytes backed by one preallocated array.
+ *
+ * Writing and reading copy bytes in and out of the array, so the queue
+ * never allocates once it has been created.  It is not thread safe;
+ * whoever owns the queue must synchronize access to it.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class ByteRingBuffer {
+    private final byte[] mBuffer;
+    private final int mMask;
+
+    // positions only ever grow, and wrap around harmlessly since only their difference matters
+    private int mReadPosition = 0;
+    private int mWritePosition = 0;
+
+    /**
+     * Create a new ByteRingBuffer
+     *
+     * @param capacity the minimum number of bytes the queue can hold.  It is rounded up to a power of two
+     */
+    public ByteRingBuffer(int capacity) {
+        if (capacity < 1) capacity = 1;
+        int roundedCapacity = Integer.highestOneBit(capacity);
+        if (roundedCapacity < capacity) {
+            roundedCapacity <<= 1;
+        }
+        mBuffer = new byte[roundedCapacity];
+        mMask = roundedCapacity - 1;
+    }
+
+    /**
+     * Get the number of bytes the queue can hold
+     */
+    public int getCapacity() {
+        return mBuffer.length;
+    }
+
+    /**
+     * Get the number of bytes waiting to be read
+     */
+    public int available() {
+        return mWritePosition - mReadPosition;
+    }
+
+    /**
+     * Get the number of bytes that can still be written
+     */
+    public int remaining() {
+        return mBuffer.length - available();
+    }
+
+    /**
+     * Check if there is nothing to read
+     */
+    public boolean isEmpty() {
+        return mWritePosition == mReadPosition;
+    }
+
+    /**
+     * Add bytes to the end of the queue.  Either all the bytes are written or none are
+     *
+     * @param source the bytes to write
+     * @param offset the position in the source to start from
+     * @param length the number of bytes to write
+     * @return <b>true</b> if there was room for the bytes
+     */
+    public boolean write(byte[] source, int offset, int length) {
+        if (length > remaining()) {
+            return false;
+        }
+        int start = mWritePosition & mMask;
+        int firstPart = Math.min(length, mBuffer.length - start);
+        System.arraycopy(source, offset, mBuffer, start, firstPart);
+        System.arraycopy(source, offset + firstPart, mBuffer, 0, length - firstPart);
+        mWritePosition += length;
+        return true;
+    }
+
+    /**
+     * Copy bytes from the front of the queue without removing them
+     *
+     * @param destination where to copy the bytes
+     * @param offset the position in the destination to start at
+     * @param length the maximum number of bytes to copy
+     * @return the number of bytes copied
+     */
+    public int peek(byte[] destination, int offset, int length) {
+        int numBytes = Math.min(length, available());
+        int start = mReadPosition & mMask;
+        int firstPart = Math.min(numBytes, mBuffer.length - start);
+        System.arraycopy(mBuffer, start, destination, offset, firstPart);
+        System.arraycopy(mBuffer, 0, destination, offset + firstPart, numBytes - firstPart);
+        return numBytes;
+    }
+
+    /**
+     * Remove bytes from the front of the queue
+     *
+     * @param destination where to copy the bytes
+     * @param offset the position in the destination to start at
+     * @param length the maximum number of bytes to read
+     * @return the number of bytes read
+     */
+    public int read(byte[] destination, int offset, int length) {
+        int numBytes = peek(destination, offset, length);
+        mReadPosition += numBytes;
+        return numBytes;
+    }
+
+    /**
+     * Drop bytes from the front of the queue
+     *
+     * @param length the maximum number of bytes to drop
+     * @return the number of bytes dropped
+     */
+    public int skip(int length) {
+        int numBytes = Math.min(length, available());
+        mReadPosition += numBytes;
+        return numBytes;
+    }
+
+    /**
+     * Empty the queue
+     */
+    public void clear() {
+        mReadPosition = 0;
+        mWritePosition = 0;
+    }
+}
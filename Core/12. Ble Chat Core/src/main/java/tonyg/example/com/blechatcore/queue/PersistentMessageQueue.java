@@ -0,0 +1,336 @@
+package tonyg.example.com.blechatcore.queue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import tonyg.example.com.blechatcore.Scheduler;
+
+/**
+ * A first in, first out queue of messages kept in an append-only file, so they survive the app being killed.
+ *
+ * Each message is appended with its length and a CRC-32.  The file header holds the position
+ * of the first message not yet sent, which only moves on commit(), so a message taken with
+ * remove() comes back after a crash or rewind() until it is committed.  A message cut off
+ * by a crash fails its CRC and is dropped when the file is reopened.  A message that goes bad
+ * on storage later is dropped when it is read, along with the messages after it, since the
+ * length that leads to them can't be trusted.  Once every message has been committed the
+ * file is truncated and starts over.
+ *
+ * Appends are written straight away, but fsync is batched: the file is synced after
+ * a number of appends or a short delay, whichever comes first.
+ * Thread safe.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class PersistentMessageQueue {
+    /** Constants **/
+    public static final int DEFAULT_SYNC_BATCH_SIZE = 16;
+    public static final long DEFAULT_SYNC_DELAY_MICROS = 200000;
+    private static final int FILE_HEADER_LENGTH = 8; // the position of the first message not yet committed
+    private static final int RECORD_HEADER_LENGTH = 8; // message length and CRC-32
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final Scheduler mScheduler;
+    private final int mMaxMessageLength;
+    private final CRC32 mCrc = new CRC32();
+    private final ByteBuffer mHeader = ByteBuffer.allocate(FILE_HEADER_LENGTH);
+    private ByteBuffer mRecord = ByteBuffer.allocate(256);
+    private byte[] mMessage = new byte[256];
+
+    private int mSyncBatchSize = DEFAULT_SYNC_BATCH_SIZE;
+    private long mSyncDelayMicros = DEFAULT_SYNC_DELAY_MICROS;
+    private int mNumUnsynced = 0;
+    private boolean mIsSyncScheduled = false;
+
+    private long mCommittedPosition; // as stored in the file header
+    private long mReadPosition; // the next message for peek()
+    private long mWritePosition; // the end of the last whole message
+    private int mNumMessages = 0; // between the read and write positions
+    private int mNumUncommitted = 0; // between the committed and read positions
+    private int mPeekedLength = -1; // the length of the message at the read position, once it is loaded
+
+    /**
+     * Open a PersistentMessageQueue, creating the file if necessary,
+     * and recover the messages not yet committed
+     *
+     * @param file the queue file
+     * @param maxMessageLength the longest message that can be queued
+     * @param scheduler runs the batched fsync
+     * @throws Exception if the file can't be opened
+     */
+    public PersistentMessageQueue(File file, int maxMessageLength, Scheduler scheduler) throws Exception {
+        mMaxMessageLength = maxMessageLength;
+        mScheduler = scheduler;
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        recover();
+    }
+
+    /**
+     * Set how often appends are synced to storage
+     *
+     * @param syncBatchSize the most appends between syncs
+     * @param syncDelayMicros the longest an append waits to be synced, in microseconds
+     */
+    public synchronized void setSyncBatch(int syncBatchSize, long syncDelayMicros) {
+        mSyncBatchSize = Math.max(1, syncBatchSize);
+        mSyncDelayMicros = Math.max(0, syncDelayMicros);
+    }
+
+    /**
+     * Append a message
+     *
+     * @param message the array holding the message
+     * @param offset the position of the message in the array
+     * @param length the message length
+     * @throws Exception if the message is too long or can't be written
+     */
+    public synchronized void offer(byte[] message, int offset, int length) throws Exception {
+        if (length > mMaxMessageLength) {
+            throw new Exception("Message too long to queue: " + length);
+        }
+        if (mRecord.capacity() < RECORD_HEADER_LENGTH + length) {
+            mRecord = ByteBuffer.allocate(RECORD_HEADER_LENGTH + length);
+        }
+        mCrc.reset();
+        mCrc.update(message, offset, length);
+        mRecord.clear();
+        mRecord.putInt(length);
+        mRecord.putInt((int) mCrc.getValue());
+        mRecord.put(message, offset, length);
+        mRecord.flip();
+        write(mRecord, mWritePosition);
+
+        mWritePosition += RECORD_HEADER_LENGTH + length;
+        mNumMessages++;
+        onWritten();
+    }
+
+    /**
+     * Load the next message without removing it
+     *
+     * @return the message length, with the message in getMessageBytes(), or -1 if the queue is empty
+     *     or the next message was corrupt and has been dropped
+     * @throws Exception if the message can't be read
+     */
+    public synchronized int peek() throws Exception {
+        if (mNumMessages == 0) return -1;
+        if (mPeekedLength < 0) {
+            mPeekedLength = readRecord(mReadPosition, mWritePosition);
+            if (mPeekedLength < 0) {
+                // cut the file off here, as recover() would
+                truncate(mReadPosition);
+            }
+        }
+        return mPeekedLength;
+    }
+
+    /**
+     * Get the buffer holding the message loaded by peek()
+     */
+    public synchronized byte[] getMessageBytes() {
+        return mMessage;
+    }
+
+    /**
+     * Take the next message off the queue.  It comes back after
+     * a rewind() or a restart until it is committed
+     *
+     * @throws Exception if the message can't be read
+     */
+    public synchronized void remove() throws Exception {
+        int length = peek();
+        if (length < 0) return;
+        mReadPosition += RECORD_HEADER_LENGTH + length;
+        mPeekedLength = -1;
+        mNumMessages--;
+        mNumUncommitted++;
+    }
+
+    /**
+     * Forget every removed message for good, once they have been sent
+     *
+     * @throws Exception if the file can't be written
+     */
+    public synchronized void commit() throws Exception {
+        if (mNumUncommitted == 0) return;
+        if (mNumMessages == 0) {
+            // everything has been sent, so start the file over.  A crash before
+            // the header is written leaves it pointing past the end, which reads as empty
+            mChannel.truncate(FILE_HEADER_LENGTH);
+            mReadPosition = FILE_HEADER_LENGTH;
+            mWritePosition = FILE_HEADER_LENGTH;
+        }
+        writeHeader(mReadPosition);
+        mNumUncommitted = 0;
+        onWritten();
+    }
+
+    /**
+     * Put back every message removed since the last commit, for example when they were lost in flight
+     */
+    public synchronized void rewind() {
+        mReadPosition = mCommittedPosition;
+        mNumMessages += mNumUncommitted;
+        mNumUncommitted = 0;
+        mPeekedLength = -1;
+    }
+
+    /**
+     * Get the number of messages waiting to be removed
+     */
+    public synchronized int getNumMessages() {
+        return mNumMessages;
+    }
+
+    /**
+     * Check if there are no messages waiting to be removed
+     */
+    public synchronized boolean isEmpty() {
+        return mNumMessages == 0;
+    }
+
+    /**
+     * Sync everything written so far to storage
+     *
+     * @throws Exception if the file can't be synced
+     */
+    public synchronized void sync() throws Exception {
+        if (mNumUnsynced == 0) return;
+        mChannel.force(false);
+        mNumUnsynced = 0;
+    }
+
+    /**
+     * Sync and close the file
+     *
+     * @throws Exception if the file can't be synced
+     */
+    public synchronized void close() throws Exception {
+        try {
+            sync();
+        } finally {
+            mFile.close();
+        }
+    }
+
+    /**
+     * Find the messages not yet committed, and cut off anything after the last whole one
+     */
+    private void recover() throws Exception {
+        long fileLength = mChannel.size();
+        long position = FILE_HEADER_LENGTH;
+        if (fileLength >= FILE_HEADER_LENGTH) {
+            mHeader.clear();
+            read(mHeader, 0);
+            mHeader.flip();
+            position = mHeader.getLong();
+        }
+        if (position < FILE_HEADER_LENGTH || position > fileLength) {
+            position = FILE_HEADER_LENGTH;
+            writeHeader(position);
+        }
+        mCommittedPosition = position;
+        mReadPosition = position;
+
+        int length;
+        while ((length = readRecord(position, fileLength)) >= 0) {
+            position += RECORD_HEADER_LENGTH + length;
+            mNumMessages++;
+        }
+        mWritePosition = position;
+        if (mChannel.size() > position) {
+            mChannel.truncate(position);
+        }
+        mChannel.force(false);
+    }
+
+    /**
+     * Drop every message from a position on.  New messages are appended there
+     */
+    private void truncate(long position) throws IOException {
+        mChannel.truncate(position);
+        mWritePosition = position;
+        mNumMessages = 0;
+    }
+
+    /**
+     * Read and check the message at a position
+     *
+     * @return the message length, with the message in mMessage, or -1 if there is no whole message there
+     */
+    private int readRecord(long position, long end) throws IOException {
+        if (position + RECORD_HEADER_LENGTH > end) return -1;
+        mRecord.clear();
+        mRecord.limit(RECORD_HEADER_LENGTH);
+        read(mRecord, position);
+        mRecord.flip();
+        int length = mRecord.getInt();
+        int crc = mRecord.getInt();
+        if (length < 0 || length > mMaxMessageLength || position + RECORD_HEADER_LENGTH + length > end) return -1;
+
+        if (mMessage.length < length) {
+            mMessage = new byte[length];
+        }
+        ByteBuffer message = ByteBuffer.wrap(mMessage, 0, length);
+        read(message, position + RECORD_HEADER_LENGTH);
+        mCrc.reset();
+        mCrc.update(mMessage, 0, length);
+        if ((int) mCrc.getValue() != crc) return -1;
+        return length;
+    }
+
+    private void writeHeader(long committedPosition) throws IOException {
+        mHeader.clear();
+        mHeader.putLong(committedPosition);
+        mHeader.flip();
+        write(mHeader, 0);
+        mCommittedPosition = committedPosition;
+    }
+
+    private void read(ByteBuffer destination, long position) throws IOException {
+        while (destination.hasRemaining()) {
+            if (mChannel.read(destination, position + destination.position()) < 0) {
+                throw new IOException("Unexpected end of queue file");
+            }
+        }
+    }
+
+    private void write(ByteBuffer source, long position) throws IOException {
+        while (source.hasRemaining()) {
+            mChannel.write(source, position + source.position());
+        }
+    }
+
+    /**
+     * Sync now if the batch is full, otherwise make sure a sync is coming
+     */
+    private void onWritten() throws Exception {
+        if (++mNumUnsynced >= mSyncBatchSize) {
+            sync();
+        } else if (!mIsSyncScheduled) {
+            mIsSyncScheduled = true;
+            mScheduler.schedule(mSyncDelayMicros, mSyncTask);
+        }
+    }
+
+    private final Runnable mSyncTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (PersistentMessageQueue.this) {
+                mIsSyncScheduled = false;
+                try {
+                    sync();
+                } catch (Exception e) {
+                    // the next append tries again
+                }
+            }
+        }
+    };
+}
@@ -0,0 +1,417 @@
+package tonyg.example.com.blechatcore.sim;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import tonyg.example.com.blechatcore.EchoSession;
+import tonyg.example.com.blechatcore.MessageChannel;
+import tonyg.example.com.blechatcore.callbacks.EchoSessionCallback;
+import tonyg.example.com.blechatcore.callbacks.MessageChannelCallback;
+import tonyg.example.com.blechatcore.transport.ReliableLink;
+
+/**
+ * Runs simulated Ble Chat Clients against the echo server logic in one JVM.
+ *
+ * Every Central gets its own SimulatedLink to the server and its own EchoSession
+ * on the server side.  Each Central sends a message every message interval,
+ * stamped with the virtual time it was sent, and measures how long the echo takes to come back.
+ *
+ * Run the main() method, or "gradle simulate", for a quick fan-out report.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class EchoSimulation {
+    /** Constants **/
+    private static final int TIMESTAMP_LENGTH = 8;
+    private static final int QUEUE_CAPACITY = 32768;
+    private static final long MAX_DRAIN_MICROS = 600000000L; // give up on messages still in flight after 10 minutes
+
+    private int mNumCentrals = 1;
+    private int mMessageLength = 32;
+    private long mMessageIntervalMicros = 100000;
+    private long mSeed = 1;
+    private long mCoalescingWindowMicros = 0;
+    private boolean mIsReliable = false;
+    private LinkParameters mLinkParameters = new LinkParameters();
+
+    /**
+     * Set the number of Centrals connected to the server
+     */
+    public void setNumCentrals(int numCentrals) {
+        mNumCentrals = Math.max(1, numCentrals);
+    }
+
+    /**
+     * Set the length of each message.  Messages are at least 8 bytes, to hold the send time
+     */
+    public void setMessageLength(int messageLength) {
+        mMessageLength = Math.max(TIMESTAMP_LENGTH, messageLength);
+    }
+
+    /**
+     * Set how often each Central sends a message
+     *
+     * @param messageIntervalMicros the time between messages, in microseconds
+     */
+    public void setMessageIntervalMicros(long messageIntervalMicros) {
+        mMessageIntervalMicros = Math.max(1, messageIntervalMicros);
+    }
+
+    /**
+     * Set the random seed, so that runs can be repeated exactly
+     */
+    public void setSeed(long seed) {
+        mSeed = seed;
+    }
+
+    /**
+     * Set the Centrals' coalescing window, which lets short messages share packets
+     *
+     * @param coalescingWindowMicros the longest a message waits, in microseconds.  0 turns coalescing off
+     */
+    public void setCoalescingWindowMicros(long coalescingWindowMicros) {
+        mCoalescingWindowMicros = coalescingWindowMicros;
+    }
+
+    /**
+     * Run both sides of every link over a ReliableLink, which sends dropped packets again
+     */
+    public void setReliable(boolean isReliable) {
+        mIsReliable = isReliable;
+    }
+
+    /**
+     * Set the radio and GATT settings used for every link
+     */
+    public void setLinkParameters(LinkParameters linkParameters) {
+        mLinkParameters = linkParameters;
+    }
+
+    /**
+     * Run the simulation.  Centrals send messages for the given time,
+     * then the simulation carries on until every message in flight has been echoed
+     *
+     * @param durationMicros how long the Centrals send for, in virtual microseconds
+     * @return the Result
+     */
+    public Result run(long durationMicros) {
+        SimulatedClock clock = new SimulatedClock();
+        Random random = new Random(mSeed);
+        Result result = new Result(mNumCentrals, durationMicros);
+
+        SimulatedCentral[] centrals = new SimulatedCentral[mNumCentrals];
+        for (int index = 0; index < mNumCentrals; index++) {
+            centrals[index] = new SimulatedCentral(clock, random, durationMicros, result);
+            // spread the first messages evenly across one message interval
+            centrals[index].start((long) (mMessageIntervalMicros * index / (double) mNumCentrals));
+        }
+
+        clock.runUntil(durationMicros);
+        clock.runUntilIdle(durationMicros + MAX_DRAIN_MICROS);
+
+        for (SimulatedCentral central : centrals) {
+            result.mNumConnectionEvents += central.mLink.getNumConnectionEvents();
+            result.mNumPacketsSent += central.mLink.getNumPacketsSent();
+            result.mNumPacketsLost += central.mLink.getNumPacketsLost();
+            result.mNumPacketsDropped += central.mLink.getNumPacketsDropped();
+            result.mNumErrors += central.mLink.getNumErrors();
+            if (central.mReliableLink != null) {
+                result.mNumRetransmits += central.mReliableLink.getNumRetransmits()
+                        + central.mEchoSession.getReliableLink().getNumRetransmits();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A client and its EchoSession on the server, joined by a SimulatedLink
+     */
+    private class SimulatedCentral {
+        final SimulatedClock mClock;
+        final SimulatedLink mLink;
+        final MessageChannel mMessageChannel;
+        final ReliableLink mReliableLink;
+        final EchoSession mEchoSession;
+        final long mStopMicros;
+        final Result mResult;
+        final byte[] mMessage = new byte[mMessageLength];
+
+        SimulatedCentral(SimulatedClock clock, Random random, long stopMicros, Result result) {
+            mClock = clock;
+            mStopMicros = stopMicros;
+            mResult = result;
+            mLink = new SimulatedLink(clock, mLinkParameters, random);
+            if (mIsReliable) {
+                mReliableLink = new ReliableLink(mLink.getCentralTransport(), clock);
+                mMessageChannel = new MessageChannel(mReliableLink, QUEUE_CAPACITY, mClientCallback);
+                mReliableLink.attach(mMessageChannel);
+                mLink.attachCentral(mReliableLink);
+                mEchoSession = new EchoSession(mLink.getPeripheralTransport(), QUEUE_CAPACITY, clock, mServerCallback);
+            } else {
+                mReliableLink = null;
+                mMessageChannel = new MessageChannel(mLink.getCentralTransport(), QUEUE_CAPACITY, mClientCallback);
+                mLink.attachCentral(mMessageChannel);
+                mEchoSession = new EchoSession(mLink.getPeripheralTransport(), QUEUE_CAPACITY, mServerCallback);
+            }
+            mMessageChannel.setCoalescingWindow(mCoalescingWindowMicros, clock);
+            mLink.attachPeripheral(mEchoSession);
+            for (int index = TIMESTAMP_LENGTH; index < mMessage.length; index++) {
+                mMessage[index] = (byte) ('a' + index % 26);
+            }
+        }
+
+        void start(long delayMicros) {
+            mClock.schedule(delayMicros, mSendTask);
+        }
+
+        final Runnable mSendTask = new Runnable() {
+            @Override
+            public void run() {
+                if (mClock.now() >= mStopMicros) return;
+                writeTimestamp(mClock.now(), mMessage);
+                boolean isQueued;
+                try {
+                    isQueued = mMessageChannel.sendMessage(mMessage, 0, mMessage.length);
+                } catch (Exception e) {
+                    isQueued = false;
+                }
+                if (isQueued) {
+                    mResult.mNumMessagesSent++;
+                } else {
+                    mResult.mNumMessagesDropped++;
+                }
+                mClock.schedule(mMessageIntervalMicros, this);
+            }
+        };
+
+        final MessageChannelCallback mClientCallback = new MessageChannelCallback() {
+            @Override
+            public void onMessageReceived(byte[] message, int offset, int length) {
+                mResult.mNumMessagesReceived++;
+                mResult.mNumBytesReceived += length;
+                if (length >= TIMESTAMP_LENGTH) {
+                    mResult.recordLatency(mClock.now() - readTimestamp(message, offset));
+                }
+            }
+
+            @Override
+            public void onAllMessagesSent() {
+
+            }
+        };
+
+        final EchoSessionCallback mServerCallback = new EchoSessionCallback() {
+            @Override
+            public void onMessageReceived(byte[] message, int offset, int length) {
+                mResult.mNumMessagesEchoed++;
+            }
+
+            @Override
+            public void onMessageDropped(int length) {
+                mResult.mNumEchoesDropped++;
+            }
+        };
+    }
+
+    private static void writeTimestamp(long timestamp, byte[] destination) {
+        for (int index = 0; index < TIMESTAMP_LENGTH; index++) {
+            destination[index] = (byte) (timestamp >>> (56 - 8 * index));
+        }
+    }
+
+    private static long readTimestamp(byte[] source, int offset) {
+        long timestamp = 0;
+        for (int index = 0; index < TIMESTAMP_LENGTH; index++) {
+            timestamp = (timestamp << 8) | (source[offset + index] & 0xFF);
+        }
+        return timestamp;
+    }
+
+    /**
+     * What happened during a simulation run
+     */
+    public static class Result {
+        private final int mNumCentrals;
+        private final long mDurationMicros;
+        private long mNumMessagesSent, mNumMessagesDropped;
+        private long mNumMessagesEchoed, mNumEchoesDropped;
+        private long mNumMessagesReceived, mNumBytesReceived;
+        private long mNumConnectionEvents, mNumPacketsSent, mNumPacketsLost, mNumErrors;
+        private long mNumPacketsDropped, mNumRetransmits;
+        private long[] mLatencies = new long[1024];
+        private int mNumLatencies = 0;
+        private boolean mIsSorted = true;
+
+        Result(int numCentrals, long durationMicros) {
+            mNumCentrals = numCentrals;
+            mDurationMicros = durationMicros;
+        }
+
+        void recordLatency(long latencyMicros) {
+            if (mNumLatencies == mLatencies.length) {
+                mLatencies = Arrays.copyOf(mLatencies, mLatencies.length * 2);
+            }
+            mLatencies[mNumLatencies++] = latencyMicros;
+            mIsSorted = false;
+        }
+
+        /**
+         * Get the number of Centrals simulated
+         */
+        public int getNumCentrals() {
+            return mNumCentrals;
+        }
+
+        /**
+         * Get the number of messages the Centrals queued
+         */
+        public long getNumMessagesSent() {
+            return mNumMessagesSent;
+        }
+
+        /**
+         * Get the number of messages the Centrals could not queue
+         */
+        public long getNumMessagesDropped() {
+            return mNumMessagesDropped;
+        }
+
+        /**
+         * Get the number of messages the server received
+         */
+        public long getNumMessagesEchoed() {
+            return mNumMessagesEchoed;
+        }
+
+        /**
+         * Get the number of messages the server could not echo
+         */
+        public long getNumEchoesDropped() {
+            return mNumEchoesDropped;
+        }
+
+        /**
+         * Get the number of echoes the Centrals received
+         */
+        public long getNumMessagesReceived() {
+            return mNumMessagesReceived;
+        }
+
+        /**
+         * Get the number of echoed bytes the Centrals received
+         */
+        public long getNumBytesReceived() {
+            return mNumBytesReceived;
+        }
+
+        /**
+         * Get the number of connection events, across all links
+         */
+        public long getNumConnectionEvents() {
+            return mNumConnectionEvents;
+        }
+
+        /**
+         * Get the number of packets sent, across all links
+         */
+        public long getNumPacketsSent() {
+            return mNumPacketsSent;
+        }
+
+        /**
+         * Get the number of packets lost and sent again, across all links
+         */
+        public long getNumPacketsLost() {
+            return mNumPacketsLost;
+        }
+
+        /**
+         * Get the number of packets reported sent but never delivered, across all links
+         */
+        public long getNumPacketsDropped() {
+            return mNumPacketsDropped;
+        }
+
+        /**
+         * Get the number of packets a ReliableLink sent again, across all links
+         */
+        public long getNumRetransmits() {
+            return mNumRetransmits;
+        }
+
+        /**
+         * Get the number of packets rejected as malformed, across all links
+         */
+        public long getNumErrors() {
+            return mNumErrors;
+        }
+
+        /**
+         * Get the echoed bytes received per second, across all Centrals
+         */
+        public double getBytesPerSecond() {
+            return mNumBytesReceived * 1000000.0 / mDurationMicros;
+        }
+
+        /**
+         * Get the mean round trip time, in microseconds
+         */
+        public long getMeanLatencyMicros() {
+            if (mNumLatencies == 0) return 0;
+            long sum = 0;
+            for (int index = 0; index < mNumLatencies; index++) {
+                sum += mLatencies[index];
+            }
+            return sum / mNumLatencies;
+        }
+
+        /**
+         * Get a round trip time percentile, in microseconds
+         *
+         * @param percentile a value from 0 to 100
+         */
+        public long getLatencyPercentileMicros(double percentile) {
+            if (mNumLatencies == 0) return 0;
+            if (!mIsSorted) {
+                Arrays.sort(mLatencies, 0, mNumLatencies);
+                mIsSorted = true;
+            }
+            int index = (int) Math.ceil(mNumLatencies * percentile / 100) - 1;
+            return mLatencies[Math.max(0, Math.min(mNumLatencies - 1, index))];
+        }
+
+        @Override
+        public String toString() {
+            return "centrals=" + mNumCentrals
+                    + " sent=" + mNumMessagesSent
+                    + " dropped=" + mNumMessagesDropped
+                    + " echoed=" + mNumMessagesEchoed
+                    + " received=" + mNumMessagesReceived
+                    + " bytes/s=" + Math.round(getBytesPerSecond())
+                    + " rtt_mean_ms=" + getMeanLatencyMicros() / 1000.0
+                    + " rtt_p50_ms=" + getLatencyPercentileMicros(50) / 1000.0
+                    + " rtt_p99_ms=" + getLatencyPercentileMicros(99) / 1000.0
+                    + " events=" + mNumConnectionEvents
+                    + " packets=" + mNumPacketsSent
+                    + " lost=" + mNumPacketsLost
+                    + " dropped_packets=" + mNumPacketsDropped
+                    + " retransmits=" + mNumRetransmits
+                    + " errors=" + mNumErrors;
+        }
+    }
+
+    /**
+     * Print a fan-out report for growing numbers of Centrals
+     */
+    public static void main(String[] args) {
+        int[] numCentrals = { 1, 10, 100, 500 };
+        for (int count : numCentrals) {
+            EchoSimulation simulation = new EchoSimulation();
+            simulation.setNumCentrals(count);
+            simulation.setMessageLength(64);
+            simulation.setMessageIntervalMicros(250000);
+            System.out.println(simulation.run(10000000L));
+        }
+    }
+}
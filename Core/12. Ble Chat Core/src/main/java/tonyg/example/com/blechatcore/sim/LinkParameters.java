@@ -0,0 +1,153 @@
+package tonyg.example.com.blechatcore.sim;
+
+/**
+ * The radio and GATT settings of a SimulatedLink.
+ *
+ * The defaults match a typical Android connection: a 30 ms connection interval,
+ * the default 23 byte ATT MTU, and acknowledged writes and indications,
+ * which is what the Ble Chat Client and Server use.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class LinkParameters {
+    /** Constants **/
+    public static final long DEFAULT_CONNECTION_INTERVAL_MICROS = 30000;
+    public static final int DEFAULT_MTU = 23;
+    public static final int DEFAULT_MAX_PACKETS_PER_EVENT = 4;
+
+    private static final int ATT_HEADER_LENGTH = 3;
+
+    private long mConnectionIntervalMicros = DEFAULT_CONNECTION_INTERVAL_MICROS;
+    private int mMtu = DEFAULT_MTU;
+    private int mMaxPacketsPerEvent = DEFAULT_MAX_PACKETS_PER_EVENT;
+    private double mLossRate = 0;
+    private double mDropRate = 0;
+    private long mLatencyMicros = 0;
+    private boolean mIsAcknowledged = true;
+
+    /**
+     * Get the time between connection events, in microseconds
+     */
+    public long getConnectionIntervalMicros() {
+        return mConnectionIntervalMicros;
+    }
+
+    /**
+     * Set the time between connection events.  Bluetooth allows 7.5 ms to 4 s
+     *
+     * @param connectionIntervalMicros the connection interval, in microseconds
+     */
+    public void setConnectionIntervalMicros(long connectionIntervalMicros) {
+        mConnectionIntervalMicros = Math.max(1, connectionIntervalMicros);
+    }
+
+    /**
+     * Get the ATT MTU
+     */
+    public int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * Set the ATT MTU.  Each packet carries up to the MTU minus 3 bytes
+     *
+     * @param mtu the ATT MTU, from 23 to 517
+     */
+    public void setMtu(int mtu) {
+        mMtu = Math.max(ATT_HEADER_LENGTH + 1, mtu);
+    }
+
+    /**
+     * Get the largest packet payload, in bytes
+     */
+    public int getMaxPacketLength() {
+        return mMtu - ATT_HEADER_LENGTH;
+    }
+
+    /**
+     * Get the number of packets each direction can send in one connection event
+     */
+    public int getMaxPacketsPerEvent() {
+        return mMaxPacketsPerEvent;
+    }
+
+    /**
+     * Set the number of packets each direction can send in one connection event.
+     * Phones usually manage between 4 and 6
+     *
+     * @param maxPacketsPerEvent the packet limit
+     */
+    public void setMaxPacketsPerEvent(int maxPacketsPerEvent) {
+        mMaxPacketsPerEvent = Math.max(1, maxPacketsPerEvent);
+    }
+
+    /**
+     * Get the chance that a packet is lost over the air
+     */
+    public double getLossRate() {
+        return mLossRate;
+    }
+
+    /**
+     * Set the chance that a packet is lost over the air.  As with a real link layer,
+     * a lost packet is sent again in the next connection event, so loss shows up as latency
+     *
+     * @param lossRate a probability from 0 to 1
+     */
+    public void setLossRate(double lossRate) {
+        mLossRate = Math.max(0, Math.min(0.99, lossRate));
+    }
+
+    /**
+     * Get the chance that a packet is dropped after it was sent
+     */
+    public double getDropRate() {
+        return mDropRate;
+    }
+
+    /**
+     * Set the chance that a packet is reported sent but never reaches the receiving app,
+     * as when a stack or app drops it on a busy or reconnecting device.
+     * Unlike over the air loss, nothing sends it again unless a ReliableLink is used
+     *
+     * @param dropRate a probability from 0 to 1
+     */
+    public void setDropRate(double dropRate) {
+        mDropRate = Math.max(0, Math.min(0.99, dropRate));
+    }
+
+    /**
+     * Get the time the Bluetooth stack takes to hand a received packet to the app, in microseconds
+     */
+    public long getLatencyMicros() {
+        return mLatencyMicros;
+    }
+
+    /**
+     * Set the time the Bluetooth stack takes to hand a received packet to the app
+     *
+     * @param latencyMicros the stack latency, in microseconds
+     */
+    public void setLatencyMicros(long latencyMicros) {
+        mLatencyMicros = Math.max(0, latencyMicros);
+    }
+
+    /**
+     * Check if packets are acknowledged writes and indications
+     */
+    public boolean isAcknowledged() {
+        return mIsAcknowledged;
+    }
+
+    /**
+     * Choose between acknowledged writes and indications, which complete when the
+     * response comes back in the next connection event, or writes without response
+     * and notifications, which complete as soon as they are sent
+     *
+     * @param isAcknowledged <b>true</b> for acknowledged packets
+     */
+    public void setAcknowledged(boolean isAcknowledged) {
+        mIsAcknowledged = isAcknowledged;
+    }
+}
@@ -0,0 +1,124 @@
+package tonyg.example.com.blechatcore.sim;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+import tonyg.example.com.blechatcore.Scheduler;
+
+/**
+ * A virtual clock that runs scheduled tasks in time order.
+ *
+ * Time only moves forward when tasks are run, so a simulation of minutes
+ * of Bluetooth traffic finishes as fast as the CPU can process it.
+ * All times are in microseconds.  Not thread safe; run a simulation on one thread.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class SimulatedClock implements Scheduler {
+    private final PriorityQueue<Task> mTasks = new PriorityQueue<>();
+    private long mNow = 0;
+    private long mNextSequence = 0;
+
+    /**
+     * Get the current virtual time, in microseconds
+     */
+    public long now() {
+        return mNow;
+    }
+
+    /**
+     * Run a task after a delay
+     *
+     * @param delayMicros the delay, in microseconds
+     * @param runnable the task to run
+     */
+    @Override
+    public void schedule(long delayMicros, Runnable runnable) {
+        scheduleAt(mNow + Math.max(0, delayMicros), runnable);
+    }
+
+    /**
+     * Run a task at a point in time.  Tasks scheduled for the same time run in the order they were scheduled
+     *
+     * @param timeMicros when to run the task, in microseconds.  Times in the past run immediately
+     * @param runnable the task to run
+     */
+    public void scheduleAt(long timeMicros, Runnable runnable) {
+        mTasks.add(new Task(Math.max(mNow, timeMicros), mNextSequence++, runnable));
+    }
+
+    /**
+     * Stop a task from running, however many times it was scheduled
+     *
+     * @param runnable the task
+     */
+    @Override
+    public void cancel(Runnable runnable) {
+        Iterator<Task> tasks = mTasks.iterator();
+        while (tasks.hasNext()) {
+            if (tasks.next().mRunnable == runnable) {
+                tasks.remove();
+            }
+        }
+    }
+
+    /**
+     * Run every task due up to a point in time, then move the clock to that time
+     *
+     * @param timeMicros the time to stop at, in microseconds
+     */
+    public void runUntil(long timeMicros) {
+        runTasks(timeMicros);
+        mNow = Math.max(mNow, timeMicros);
+    }
+
+    /**
+     * Run tasks until there are none left, or the time limit is reached
+     *
+     * @param limitMicros the time to give up at, in microseconds
+     * @return <b>true</b> if every task ran
+     */
+    public boolean runUntilIdle(long limitMicros) {
+        runTasks(limitMicros);
+        return mTasks.isEmpty();
+    }
+
+    /**
+     * Check if there are tasks waiting to run
+     */
+    public boolean hasPendingTasks() {
+        return !mTasks.isEmpty();
+    }
+
+    /**
+     * Run every task due up to a point in time
+     */
+    private void runTasks(long timeMicros) {
+        while (!mTasks.isEmpty() && mTasks.peek().mTime <= timeMicros) {
+            Task task = mTasks.poll();
+            mNow = task.mTime;
+            task.mRunnable.run();
+        }
+    }
+
+    private static class Task implements Comparable<Task> {
+        final long mTime;
+        final long mSequence;
+        final Runnable mRunnable;
+
+        Task(long time, long sequence, Runnable runnable) {
+            mTime = time;
+            mSequence = sequence;
+            mRunnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (mTime != other.mTime) {
+                return mTime < other.mTime ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package tonyg.example.com.blechatcore.sim;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+
+import tonyg.example.com.blechatcore.transport.PacketHandler;
+import tonyg.example.com.blechatcore.transport.Transport;
+
+/**
+ * An in-memory stand-in for a GATT connection between a Central and a Peripheral.
+ *
+ * Packets only move during connection events, which happen once per connection interval.
+ * In each event each side sends up to the per-event packet limit.  A packet lost over
+ * the air is sent again in the next event, as the link layer would.  Acknowledged packets
+ * complete when the response arrives in the following event, and only one can be
+ * outstanding at a time, as with ATT write requests and indications.
+ * Every link gets its own radio time; links to the same Peripheral do not compete for it.
+ *
+ * Attach a PacketHandler, such as a MessageChannel, to each side; the link calls onPacketReceived()
+ * and onPacketSent() on it just like the GATT callbacks in the apps do.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class SimulatedLink {
+    private final SimulatedClock mClock;
+    private final LinkParameters mLinkParameters;
+    private final Random mRandom;
+    private final long mAnchorMicros;
+
+    private final Endpoint mCentral = new Endpoint();
+    private final Endpoint mPeripheral = new Endpoint();
+
+    private boolean mIsConnected = true;
+    private boolean mIsEventScheduled = false;
+
+    /** Statistics **/
+    private long mNumConnectionEvents = 0;
+    private long mNumPacketsSent = 0;
+    private long mNumPacketsLost = 0;
+    private long mNumPacketsDropped = 0;
+    private long mNumErrors = 0;
+
+    /**
+     * Create a new SimulatedLink.  The first connection event is at a random
+     * point in the first interval, so that many links don't all line up
+     *
+     * @param clock the SimulatedClock
+     * @param linkParameters the radio and GATT settings
+     * @param random the source of packet loss and timing
+     */
+    public SimulatedLink(SimulatedClock clock, LinkParameters linkParameters, Random random) {
+        mClock = clock;
+        mLinkParameters = linkParameters;
+        mRandom = random;
+        mAnchorMicros = clock.now() + (long) (random.nextDouble() * linkParameters.getConnectionIntervalMicros());
+    }
+
+    /**
+     * Get the Transport the Central writes with
+     */
+    public Transport getCentralTransport() {
+        return mCentral;
+    }
+
+    /**
+     * Get the Transport the Peripheral notifies with
+     */
+    public Transport getPeripheralTransport() {
+        return mPeripheral;
+    }
+
+    /**
+     * Attach the Central's PacketHandler
+     */
+    public void attachCentral(PacketHandler packetHandler) {
+        mCentral.mPacketHandler = packetHandler;
+    }
+
+    /**
+     * Attach the Peripheral's PacketHandler
+     */
+    public void attachPeripheral(PacketHandler packetHandler) {
+        mPeripheral.mPacketHandler = packetHandler;
+    }
+
+    /**
+     * Drop the connection.  Packets waiting to be sent are lost, and new ones are refused
+     */
+    public void disconnect() {
+        mIsConnected = false;
+        mCentral.mPackets.clear();
+        mPeripheral.mPackets.clear();
+    }
+
+    /**
+     * Check if the link is still connected
+     */
+    public boolean isConnected() {
+        return mIsConnected;
+    }
+
+    /**
+     * Get the number of connection events that have happened
+     */
+    public long getNumConnectionEvents() {
+        return mNumConnectionEvents;
+    }
+
+    /**
+     * Get the number of packets sent in both directions
+     */
+    public long getNumPacketsSent() {
+        return mNumPacketsSent;
+    }
+
+    /**
+     * Get the number of times a packet was lost and had to be sent again
+     */
+    public long getNumPacketsLost() {
+        return mNumPacketsLost;
+    }
+
+    /**
+     * Get the number of packets that were reported sent but never delivered
+     */
+    public long getNumPacketsDropped() {
+        return mNumPacketsDropped;
+    }
+
+    /**
+     * Get the number of packets the receiving PacketHandler rejected
+     */
+    public long getNumErrors() {
+        return mNumErrors;
+    }
+
+    /**
+     * Make sure a connection event is coming up
+     */
+    private void scheduleConnectionEvent() {
+        if (mIsEventScheduled || !mIsConnected) return;
+        mIsEventScheduled = true;
+
+        long now = mClock.now();
+        long interval = mLinkParameters.getConnectionIntervalMicros();
+        long eventTime = mAnchorMicros;
+        if (now >= mAnchorMicros) {
+            eventTime = mAnchorMicros + ((now - mAnchorMicros) / interval + 1) * interval;
+        }
+        mClock.scheduleAt(eventTime, mConnectionEvent);
+    }
+
+    private final Runnable mConnectionEvent = new Runnable() {
+        @Override
+        public void run() {
+            if (!mIsConnected) {
+                mIsEventScheduled = false;
+                return;
+            }
+            mNumConnectionEvents++;
+            // the Central always opens the connection event
+            mCentral.transmit(mPeripheral);
+            mPeripheral.transmit(mCentral);
+
+            mIsEventScheduled = false;
+            if (mCentral.isBusy() || mPeripheral.isBusy()) {
+                scheduleConnectionEvent();
+            }
+        }
+    };
+
+    /**
+     * One side of the link
+     */
+    private class Endpoint implements Transport {
+        final ArrayDeque<byte[]> mPackets = new ArrayDeque<>();
+        PacketHandler mPacketHandler;
+        boolean mIsAwaitingResponse = false;
+
+        @Override
+        public int getMaxPacketLength() {
+            return mLinkParameters.getMaxPacketLength();
+        }
+
+        @Override
+        public boolean sendPacket(byte[] packet, int length) {
+            if (!mIsConnected || length > getMaxPacketLength()) {
+                return false;
+            }
+            mPackets.add(Arrays.copyOf(packet, length));
+            scheduleConnectionEvent();
+            return true;
+        }
+
+        boolean isBusy() {
+            return mIsAwaitingResponse || !mPackets.isEmpty();
+        }
+
+        /**
+         * Send what this side can in one connection event
+         */
+        void transmit(Endpoint receiver) {
+            if (mIsAwaitingResponse) {
+                // the response to the last acknowledged packet comes back in this event
+                mIsAwaitingResponse = false;
+                complete();
+            }
+
+            int numPacketsLeft = mLinkParameters.getMaxPacketsPerEvent();
+            while (numPacketsLeft > 0 && !mPackets.isEmpty() && !mIsAwaitingResponse) {
+                numPacketsLeft--;
+                if (mRandom.nextDouble() < mLinkParameters.getLossRate()) {
+                    // lost over the air. The link layer tries again next event
+                    mNumPacketsLost++;
+                    break;
+                }
+                mNumPacketsSent++;
+                byte[] packet = mPackets.poll();
+                if (mRandom.nextDouble() < mLinkParameters.getDropRate()) {
+                    // reported sent, but the receiving app never sees it
+                    mNumPacketsDropped++;
+                } else {
+                    receiver.receive(packet);
+                }
+                if (mLinkParameters.isAcknowledged()) {
+                    mIsAwaitingResponse = true;
+                } else {
+                    complete();
+                }
+            }
+        }
+
+        /**
+         * Hand a packet to this side's PacketHandler, after the stack latency
+         */
+        void receive(final byte[] packet) {
+            if (mLinkParameters.getLatencyMicros() == 0) {
+                deliver(packet);
+                return;
+            }
+            mClock.schedule(mLinkParameters.getLatencyMicros(), new Runnable() {
+                @Override
+                public void run() {
+                    deliver(packet);
+                }
+            });
+        }
+
+        void deliver(byte[] packet) {
+            if (mPacketHandler == null || !mIsConnected) return;
+            try {
+                mPacketHandler.onPacketReceived(packet, 0, packet.length);
+            } catch (Exception e) {
+                mNumErrors++;
+            }
+        }
+
+        /**
+         * Tell this side's PacketHandler its packet went out, after the stack latency
+         */
+        void complete() {
+            if (mPacketHandler == null) return;
+            if (mLinkParameters.getLatencyMicros() == 0) {
+                mPacketHandler.onPacketSent(true);
+                return;
+            }
+            mClock.schedule(mLinkParameters.getLatencyMicros(), new Runnable() {
+                @Override
+                public void run() {
+                    if (mIsConnected) {
+                        mPacketHandler.onPacketSent(true);
+                    }
+                }
+            });
+        }
+    }
+}
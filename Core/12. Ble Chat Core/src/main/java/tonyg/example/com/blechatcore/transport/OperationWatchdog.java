@@ -0,0 +1,119 @@
+package tonyg.example.com.blechatcore.transport;
+
+import tonyg.example.com.blechatcore.Scheduler;
+import tonyg.example.com.blechatcore.callbacks.OperationWatchdogCallback;
+
+/**
+ * Watches for operation callbacks that never arrive.
+ *
+ * A Bluetooth stack runs one GATT operation at a time, and if its callback is lost,
+ * nothing else is ever sent.  Call start() when an operation is issued and complete()
+ * when its callback arrives.  If the deadline passes first, the OperationWatchdogCallback
+ * hears about it, with the number of times in a row that operation has timed out, and
+ * can retry it by calling start() again or give up on the connection.
+ *
+ * Only the most recently started operation is watched.  Thread safe.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class OperationWatchdog {
+    /** Constants **/
+    public static final int NO_OPERATION = 0;
+
+    private final Scheduler mScheduler;
+    private final OperationWatchdogCallback mOperationWatchdogCallback;
+    private int mOperation = NO_OPERATION;
+    private int mNumTimeouts = 0; // in a row, for mOperation
+    private boolean mIsDeadlineSet = false; // a deadline that already started when it was cancelled is ignored
+    private long mNumStalls = 0;
+
+    /**
+     * Create a new OperationWatchdog
+     *
+     * @param scheduler runs the deadlines
+     * @param operationWatchdogCallback the OperationWatchdogCallback
+     */
+    public OperationWatchdog(Scheduler scheduler, OperationWatchdogCallback operationWatchdogCallback) {
+        mScheduler = scheduler;
+        mOperationWatchdogCallback = operationWatchdogCallback;
+    }
+
+    /**
+     * Start watching an operation, in place of any watched before.
+     * Called for every packet, so the one deadline task is moved rather than a new one made
+     *
+     * @param operation the operation, any number but NO_OPERATION
+     * @param timeoutMicros how long its callback may take, in microseconds
+     */
+    public synchronized void start(int operation, long timeoutMicros) {
+        if (operation != mOperation) {
+            mNumTimeouts = 0;
+        }
+        mOperation = operation;
+        mScheduler.cancel(mDeadlineTask);
+        mIsDeadlineSet = true;
+        mScheduler.schedule(timeoutMicros, mDeadlineTask);
+    }
+
+    /**
+     * An operation's callback arrived.  Ignored unless it is the operation being watched
+     *
+     * @param operation the operation
+     */
+    public synchronized void complete(int operation) {
+        if (operation != mOperation) return;
+        mOperation = NO_OPERATION;
+        mNumTimeouts = 0;
+        clearDeadline();
+    }
+
+    /**
+     * Stop watching, for example after a disconnect
+     */
+    public synchronized void cancel() {
+        mOperation = NO_OPERATION;
+        mNumTimeouts = 0;
+        clearDeadline();
+    }
+
+    /**
+     * Get the operation being watched, or NO_OPERATION
+     */
+    public synchronized int getOperation() {
+        return mOperation;
+    }
+
+    /**
+     * Get the number of deadlines that passed without a callback
+     */
+    public synchronized long getNumStalls() {
+        return mNumStalls;
+    }
+
+    private void clearDeadline() {
+        mIsDeadlineSet = false;
+        mScheduler.cancel(mDeadlineTask);
+    }
+
+    /**
+     * Report the operation being watched once its deadline passes
+     */
+    private final Runnable mDeadlineTask = new Runnable() {
+        @Override
+        public void run() {
+            int operation;
+            int numTimeouts;
+            synchronized (OperationWatchdog.this) {
+                if (!mIsDeadlineSet) return;
+                // nothing is watched until the operation is started again,
+                // but a late callback still counts as completing it
+                mIsDeadlineSet = false;
+                operation = mOperation;
+                numTimeouts = ++mNumTimeouts;
+                mNumStalls++;
+            }
+            mOperationWatchdogCallback.onOperationTimedOut(operation, numTimeouts);
+        }
+    };
+}
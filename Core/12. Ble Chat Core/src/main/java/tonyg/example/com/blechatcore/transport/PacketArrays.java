@@ -0,0 +1,48 @@
+package tonyg.example.com.blechatcore.transport;
+
+/**
+ * Hands out exactly sized copies of packets.
+ *
+ * BluetoothGattCharacteristic.setValue() sends the whole array it is given,
+ * so a packet has to be copied into an array of exactly the right length.
+ * One array is kept for each packet length, so copying never allocates
+ * once every length has been seen.
+ * Not thread safe; an array is only valid until the next copy of the same length.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class PacketArrays {
+    private final byte[][] mArrays;
+
+    /**
+     * Create a new PacketArrays
+     *
+     * @param maxPacketLength the longest packet that will be copied
+     */
+    public PacketArrays(int maxPacketLength) {
+        mArrays = new byte[maxPacketLength + 1][];
+    }
+
+    /**
+     * Copy a packet into an array of exactly its length
+     *
+     * @param packet the packet bytes
+     * @param length the packet length
+     * @return an array holding only the packet
+     */
+    public byte[] copyOf(byte[] packet, int length) {
+        if (length >= mArrays.length) {
+            byte[] array = new byte[length];
+            System.arraycopy(packet, 0, array, 0, length);
+            return array;
+        }
+        byte[] array = mArrays[length];
+        if (array == null) {
+            array = new byte[length];
+            mArrays[length] = array;
+        }
+        System.arraycopy(packet, 0, array, 0, length);
+        return array;
+    }
+}
@@ -0,0 +1,29 @@
+package tonyg.example.com.blechatcore.transport;
+
+/**
+ * Takes the packet events of a link: packets that arrived, and the result of packets sent.
+ *
+ * A MessageChannel is a PacketHandler, and so is a ReliableLink placed in front of one.
+ * The GATT callbacks, or a SimulatedLink, pass their events to whichever sits at the bottom.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public interface PacketHandler {
+    /**
+     * Handle an incoming packet
+     *
+     * @param packet the array holding the packet
+     * @param offset the position of the packet in the array
+     * @param length the packet length
+     * @throws Exception if the packet is malformed
+     */
+    void onPacketReceived(byte[] packet, int offset, int length) throws Exception;
+
+    /**
+     * Report the result of the packet in flight
+     *
+     * @param isSuccess <b>true</b> if the packet was sent
+     */
+    void onPacketSent(boolean isSuccess);
+}
@@ -0,0 +1,743 @@
+package tonyg.example.com.blechatcore.transport;
+
+import java.security.SecureRandom;
+
+import tonyg.example.com.blechatcore.Scheduler;
+import tonyg.example.com.blechatcore.callbacks.ReliableLinkCallback;
+
+/**
+ * Makes a packet link reliable with sequence numbers, acknowledgements and selective retransmission.
+ *
+ * A ReliableLink sits between a MessageChannel and the GATT Transport.  Every packet gets a 3 byte header:
+ * its sequence number, the next sequence number expected from the peer (a cumulative ack),
+ * and a bitmap of the 8 packets after that which arrived out of order (a selective ack).
+ * The acks ride along on whatever the peer sends next, such as an echo,
+ * and a packet with no payload carries them when there is nothing to send.
+ *
+ * Up to WINDOW_SIZE packets can be waiting for an ack.  A packet is sent again when
+ * the selective ack shows that a later packet arrived without it, which recovers in one
+ * round trip, or when no ack has come by the retransmit timeout.  Failed sends are retried
+ * instead of being dropped, so the MessageChannel above never loses part of its byte stream.
+ * Incoming packets are put back in order before they are passed up.
+ *
+ * A session can outlive a connection.  The Central calls openSession() after each connect,
+ * which sends the id of its last session.  If the Peripheral still holds that session, both
+ * sides swap acks and carry on from there, sending again only what the other side never got;
+ * otherwise the Peripheral starts a new session and both sides forget what came before.
+ * Session packets set the top bit of the selective ack bitmap, which the window never reaches.
+ *
+ * Both sides of a connection must use a ReliableLink.  It is thread safe.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class ReliableLink implements Transport, PacketHandler {
+    /** Constants **/
+    public static final int HEADER_LENGTH = 3; // sequence number, cumulative ack, selective ack bitmap
+    public static final int WINDOW_SIZE = 8; // the selective ack bitmap covers every packet that can be out of order
+    public static final long DEFAULT_RETRANSMIT_TIMEOUT_MICROS = 500000;
+    public static final long DEFAULT_ACK_DELAY_MICROS = 20000;
+    private static final int SEQUENCE_MASK = 0xFF;
+
+    /** Session packets: the header, a type, and a 4 byte session id **/
+    private static final int FLAG_SESSION = 0x80;
+    private static final int SESSION_PACKET_LENGTH = HEADER_LENGTH + 5;
+    private static final int SESSION_RESUME = 1; // Central to Peripheral: the last session id, or 0
+    private static final int SESSION_ACCEPT = 2; // Peripheral to Central: the session id to use
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    /** Send slot states **/
+    private static final int STATE_EMPTY = 0;
+    private static final int STATE_QUEUED = 1; // waiting to be sent, or sent again
+    private static final int STATE_SENT = 2; // sent, waiting for an ack
+    private static final int STATE_SACKED = 3; // the peer has it, but is still missing an earlier packet
+
+    private Transport mTransport;
+    private final Scheduler mScheduler;
+    private final Object mReceiveLock = new Object(); // keeps incoming packets in order on their way up
+    private PacketHandler mPacketHandler;
+    private ReliableLinkCallback mReliableLinkCallback;
+    private long mRetransmitTimeoutMicros = DEFAULT_RETRANSMIT_TIMEOUT_MICROS;
+    private long mAckDelayMicros = DEFAULT_ACK_DELAY_MICROS;
+    private int mGeneration = 0; // timers from before a reset() or disconnect are ignored
+
+    /** Session stuff **/
+    private int mSessionId = 0;
+    private boolean mIsSessionOpen = true; // links that never call openSession() are always open
+    private boolean mIsInitiator = false; // this side sends SESSION_RESUME
+    private boolean mIsAwaitingAccept = false;
+    private boolean mIsSessionPacketDue = false;
+
+    /** Sending stuff, indexed by sequence number modulo WINDOW_SIZE **/
+    private final byte[][] mSendSlots = new byte[WINDOW_SIZE][];
+    private final int[] mSendLengths = new int[WINDOW_SIZE];
+    private final int[] mSendStates = new int[WINDOW_SIZE];
+    private final int[] mSendAges = new int[WINDOW_SIZE]; // retransmit timer ticks since the packet was sent
+    private final boolean[] mIsFastRetransmitted = new boolean[WINDOW_SIZE];
+    private int mSendBase = 0; // the oldest packet not yet acked
+    private int mNextSequence = 0;
+    private byte[] mPacket = new byte[0];
+    private int mInFlightSequence = -1; // -1 for a packet that only carries acks
+    private boolean mIsPacketInFlight = false;
+    private boolean mIsHandlerWaiting = false; // the handler's last packet hasn't been reported sent yet
+    private int mHandlerSequence = 0;
+    private boolean mIsRetransmitTimerRunning = false;
+
+    /** Receiving stuff **/
+    private final byte[][] mReceiveSlots = new byte[WINDOW_SIZE][];
+    private final int[] mReceiveLengths = new int[WINDOW_SIZE];
+    private int mExpectedSequence = 0;
+    private int mReceivedMask = 0; // bit i is set when mExpectedSequence + 1 + i is waiting in a slot
+    private boolean mIsAckPending = false; // the peer sent something that hasn't been acked
+    private boolean mIsAckDue = false; // send the ack now, even with no payload
+    private boolean mIsAckTimerRunning = false;
+
+    /** Statistics **/
+    private long mNumRetransmits = 0;
+    private long mNumDuplicates = 0;
+
+    /**
+     * Create a new ReliableLink
+     *
+     * @param transport the Transport underneath, such as the GATT Characteristic
+     * @param scheduler runs the retransmit and ack timers
+     */
+    public ReliableLink(Transport transport, Scheduler scheduler) {
+        mTransport = transport;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Set what incoming packets and send results are passed up to, usually a MessageChannel
+     */
+    public synchronized void attach(PacketHandler packetHandler) {
+        mPacketHandler = packetHandler;
+    }
+
+    /**
+     * Set the ReliableLinkCallback that hears when a session starts
+     */
+    public synchronized void setReliableLinkCallback(ReliableLinkCallback reliableLinkCallback) {
+        mReliableLinkCallback = reliableLinkCallback;
+    }
+
+    /**
+     * Set the Transport underneath, for example when a held session moves to a new connection
+     */
+    public synchronized void setTransport(Transport transport) {
+        mTransport = transport;
+    }
+
+    /**
+     * Get the session id
+     *
+     * @return the session id, or 0 if no session has been agreed
+     */
+    public synchronized int getSessionId() {
+        return mSessionId;
+    }
+
+    /**
+     * Check if a packet asks to resume a session, so the Peripheral can route it to the session it names
+     *
+     * @param packet the array holding the packet
+     * @param offset the position of the packet in the array
+     * @param length the packet length
+     * @return the session id, 0 for a new session, or -1 if the packet is not a resume request
+     */
+    public static int getResumeSessionId(byte[] packet, int offset, int length) {
+        if (length < SESSION_PACKET_LENGTH || (packet[offset + 2] & FLAG_SESSION) == 0
+                || packet[offset + HEADER_LENGTH] != SESSION_RESUME) {
+            return -1;
+        }
+        return readSessionId(packet, offset + HEADER_LENGTH + 1);
+    }
+
+    /**
+     * Set how long to wait for an ack before sending a packet again
+     *
+     * @param retransmitTimeoutMicros the timeout, in microseconds
+     */
+    public synchronized void setRetransmitTimeout(long retransmitTimeoutMicros) {
+        mRetransmitTimeoutMicros = Math.max(1, retransmitTimeoutMicros);
+    }
+
+    /**
+     * Set how long an ack waits for a packet to ride along on before it is sent on its own
+     *
+     * @param ackDelayMicros the delay, in microseconds
+     */
+    public synchronized void setAckDelay(long ackDelayMicros) {
+        mAckDelayMicros = Math.max(0, ackDelayMicros);
+    }
+
+    /**
+     * Get the number of packets sent more than once
+     */
+    public synchronized long getNumRetransmits() {
+        return mNumRetransmits;
+    }
+
+    /**
+     * Get the number of incoming packets that had already arrived
+     */
+    public synchronized long getNumDuplicates() {
+        return mNumDuplicates;
+    }
+
+    /**
+     * Get the number of packets sent but not yet acked
+     */
+    public synchronized int getNumUnackedPackets() {
+        return getNumOutstanding();
+    }
+
+    @Override
+    public synchronized int getMaxPacketLength() {
+        return mTransport.getMaxPacketLength() - HEADER_LENGTH;
+    }
+
+    /**
+     * Queue a packet from the handler.  The handler hears it was sent once it has
+     * gone out and there is room in the window for another
+     *
+     * @param packet the packet bytes
+     * @param length the packet length
+     * @return <b>true</b> if the packet was queued
+     */
+    @Override
+    public synchronized boolean sendPacket(byte[] packet, int length) {
+        if (mIsHandlerWaiting || getNumOutstanding() >= WINDOW_SIZE || length > getMaxPacketLength() || length == 0) {
+            return false;
+        }
+        int slot = mNextSequence % WINDOW_SIZE;
+        if (mSendSlots[slot] == null || mSendSlots[slot].length < length) {
+            mSendSlots[slot] = new byte[mTransport.getMaxPacketLength()];
+        }
+        System.arraycopy(packet, 0, mSendSlots[slot], 0, length);
+        mSendLengths[slot] = length;
+        mSendStates[slot] = STATE_QUEUED;
+        mSendAges[slot] = 0;
+        mIsFastRetransmitted[slot] = false;
+
+        mHandlerSequence = mNextSequence;
+        mNextSequence = (mNextSequence + 1) & SEQUENCE_MASK;
+        mIsHandlerWaiting = true;
+        transmitNext();
+        return true;
+    }
+
+    /**
+     * Report the result of the packet sent on the Transport underneath
+     *
+     * @param isSuccess <b>true</b> if the packet was sent
+     */
+    @Override
+    public void onPacketSent(boolean isSuccess) {
+        PacketHandler readyHandler;
+        synchronized (this) {
+            if (!mIsPacketInFlight) return;
+            mIsPacketInFlight = false;
+            if (mInFlightSequence >= 0) {
+                int slot = mInFlightSequence % WINDOW_SIZE;
+                // the ack may already have come in, in which case there is nothing to update
+                if (isSuccess && isOutstanding(mInFlightSequence) && mSendStates[slot] == STATE_QUEUED) {
+                    mSendStates[slot] = STATE_SENT;
+                    mSendAges[slot] = 0;
+                }
+            } else if (!isSuccess) {
+                mIsAckDue = true;
+            }
+            transmitNext();
+            readyHandler = takeReadyHandler();
+        }
+        if (readyHandler != null) {
+            readyHandler.onPacketSent(true);
+        }
+    }
+
+    /**
+     * Handle a packet from the Transport underneath.  Acks are processed,
+     * and payloads are passed up in sequence order
+     *
+     * @param packet the array holding the packet
+     * @param offset the position of the packet in the array
+     * @param length the packet length
+     * @throws Exception if the packet has no header, or the handler rejects a payload
+     */
+    @Override
+    public void onPacketReceived(byte[] packet, int offset, int length) throws Exception {
+        if (length < HEADER_LENGTH) {
+            throw new Exception("Packet too short for a link header: " + length);
+        }
+        if ((packet[offset + 2] & FLAG_SESSION) != 0) {
+            onSessionPacketReceived(packet, offset, length);
+            return;
+        }
+        Exception error = null;
+        PacketHandler readyHandler;
+        ReliableLinkCallback ackedCallback = null;
+        synchronized (mReceiveLock) {
+            boolean isInOrder = false;
+            int firstBuffered = 0;
+            int numBuffered = 0;
+            PacketHandler packetHandler;
+            synchronized (this) {
+                packetHandler = mPacketHandler;
+                // anything arriving between a disconnect and the session handshake belongs to the old connection
+                if (mIsSessionOpen && onAckReceived(packet[offset + 1] & 0xFF, packet[offset + 2] & 0xFF)) {
+                    ackedCallback = mReliableLinkCallback;
+                }
+                if (mIsSessionOpen && length > HEADER_LENGTH) {
+                    isInOrder = onPayloadReceived(packet[offset] & 0xFF, packet, offset + HEADER_LENGTH, length - HEADER_LENGTH);
+                }
+                if (isInOrder) {
+                    // move past the payload and anything it was holding back before passing them up,
+                    // so a reply sent from inside the handler acks them.  The slots stay put until
+                    // the next packet, since packets are received one at a time
+                    firstBuffered = (mExpectedSequence + 1) & SEQUENCE_MASK;
+                    while (true) {
+                        mExpectedSequence = (mExpectedSequence + 1) & SEQUENCE_MASK;
+                        boolean isBuffered = (mReceivedMask & 1) != 0;
+                        mReceivedMask >>>= 1;
+                        if (!isBuffered) break;
+                        numBuffered++;
+                    }
+                }
+            }
+
+            if (isInOrder) {
+                // pass the payload up, then anything it was holding back
+                error = deliver(packetHandler, packet, offset + HEADER_LENGTH, length - HEADER_LENGTH, error);
+                for (int index = 0; index < numBuffered; index++) {
+                    int slot = ((firstBuffered + index) & SEQUENCE_MASK) % WINDOW_SIZE;
+                    error = deliver(packetHandler, mReceiveSlots[slot], 0, mReceiveLengths[slot], error);
+                }
+            }
+
+            synchronized (this) {
+                transmitNext();
+                readyHandler = takeReadyHandler();
+            }
+        }
+        if (ackedCallback != null) {
+            ackedCallback.onAllPacketsAcked();
+        }
+        if (readyHandler != null) {
+            readyHandler.onPacketSent(true);
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Start or resume the session after connecting.  Called by the Central once the Peripheral
+     * can answer; nothing else is sent until it does
+     */
+    public synchronized void openSession() {
+        dropConnection();
+        mIsInitiator = true;
+        mIsAwaitingAccept = true;
+        mIsSessionPacketDue = true;
+        transmitNext();
+    }
+
+    /**
+     * Hold the session after the connection drops.  Unacked packets are kept
+     * until the session resumes, or until reset() if it never does
+     */
+    public synchronized void onDisconnected() {
+        dropConnection();
+    }
+
+    /**
+     * Forget everything sent and received, and the session
+     */
+    public void reset() {
+        synchronized (mReceiveLock) {
+            synchronized (this) {
+                clearState();
+                mSessionId = 0;
+                mIsSessionOpen = true;
+                mIsInitiator = false;
+                mIsAwaitingAccept = false;
+                mIsSessionPacketDue = false;
+            }
+        }
+    }
+
+    /**
+     * Forget everything sent and received
+     */
+    private void clearState() {
+        mGeneration++;
+        for (int slot = 0; slot < WINDOW_SIZE; slot++) {
+            mSendStates[slot] = STATE_EMPTY;
+        }
+        mSendBase = 0;
+        mNextSequence = 0;
+        mIsPacketInFlight = false;
+        mIsHandlerWaiting = false;
+        mIsRetransmitTimerRunning = false;
+        mExpectedSequence = 0;
+        mReceivedMask = 0;
+        mIsAckPending = false;
+        mIsAckDue = false;
+        mIsAckTimerRunning = false;
+    }
+
+    /**
+     * Stop using the connection.  Its packet in flight and timers are lost
+     */
+    private void dropConnection() {
+        mGeneration++;
+        mIsPacketInFlight = false;
+        mIsRetransmitTimerRunning = false;
+        mIsAckTimerRunning = false;
+        mIsAckDue = false;
+        mIsSessionOpen = false;
+        mIsAwaitingAccept = false;
+        mIsSessionPacketDue = false;
+    }
+
+    /**
+     * Handle a SESSION_RESUME on the Peripheral, or a SESSION_ACCEPT on the Central
+     */
+    private void onSessionPacketReceived(byte[] packet, int offset, int length) throws Exception {
+        if (length < SESSION_PACKET_LENGTH) {
+            throw new Exception("Session packet too short: " + length);
+        }
+        int type = packet[offset + HEADER_LENGTH];
+        int sessionId = readSessionId(packet, offset + HEADER_LENGTH + 1);
+        int ack = packet[offset + 1] & 0xFF;
+        int sackMask = packet[offset + 2] & ~FLAG_SESSION & 0xFF;
+
+        ReliableLinkCallback reliableLinkCallback = null;
+        boolean isResumed = false;
+        boolean isAllAcked = false;
+        PacketHandler readyHandler;
+        synchronized (mReceiveLock) {
+            synchronized (this) {
+                if (type == SESSION_RESUME && !mIsInitiator) {
+                    isResumed = sessionId != 0 && sessionId == mSessionId;
+                    if (!isResumed || !mIsSessionOpen) {
+                        if (!isResumed) {
+                            clearState();
+                            mSessionId = newSessionId();
+                        }
+                        isAllAcked = startSession(isResumed, ack, sackMask);
+                        reliableLinkCallback = mReliableLinkCallback;
+                    }
+                    // answer every request, in case an earlier answer was lost
+                    mIsSessionPacketDue = true;
+                } else if (type == SESSION_ACCEPT && mIsAwaitingAccept) {
+                    isResumed = sessionId != 0 && sessionId == mSessionId;
+                    if (!isResumed) {
+                        clearState();
+                        mSessionId = sessionId;
+                    }
+                    mIsAwaitingAccept = false;
+                    isAllAcked = startSession(isResumed, ack, sackMask);
+                    reliableLinkCallback = mReliableLinkCallback;
+                }
+                sessionId = mSessionId;
+                transmitNext();
+                readyHandler = takeReadyHandler();
+            }
+        }
+        if (reliableLinkCallback != null) {
+            reliableLinkCallback.onSessionStarted(sessionId, isResumed);
+            if (isAllAcked) {
+                reliableLinkCallback.onAllPacketsAcked();
+            }
+        }
+        if (readyHandler != null) {
+            readyHandler.onPacketSent(true);
+        }
+    }
+
+    /**
+     * Open the session.  When resuming, take in what the peer kept, and queue
+     * everything else it hasn't acked, since it may have been lost with the old connection
+     *
+     * @return <b>true</b> if the peer's ack cleared the last outstanding packet
+     */
+    private boolean startSession(boolean isResumed, int ack, int sackMask) {
+        mIsSessionOpen = true;
+        if (!isResumed) return false;
+        boolean isAllAcked = onAckReceived(ack, sackMask);
+        int numOutstanding = getNumOutstanding();
+        for (int index = 0; index < numOutstanding; index++) {
+            int slot = (mSendBase + index) % WINDOW_SIZE;
+            if (mSendStates[slot] == STATE_SENT) {
+                mSendStates[slot] = STATE_QUEUED;
+                mNumRetransmits++;
+            }
+        }
+        return isAllAcked;
+    }
+
+    private static int newSessionId() {
+        int sessionId;
+        do {
+            sessionId = sRandom.nextInt() & 0x7FFFFFFF;
+        } while (sessionId == 0);
+        return sessionId;
+    }
+
+    private static int readSessionId(byte[] source, int offset) {
+        return ((source[offset] & 0xFF) << 24) | ((source[offset + 1] & 0xFF) << 16)
+                | ((source[offset + 2] & 0xFF) << 8) | (source[offset + 3] & 0xFF);
+    }
+
+    private static void writeSessionId(int sessionId, byte[] destination, int offset) {
+        destination[offset] = (byte) (sessionId >>> 24);
+        destination[offset + 1] = (byte) (sessionId >>> 16);
+        destination[offset + 2] = (byte) (sessionId >>> 8);
+        destination[offset + 3] = (byte) sessionId;
+    }
+
+    /**
+     * Get the number of packets between the oldest unacked one and the next to be queued
+     */
+    private int getNumOutstanding() {
+        return (mNextSequence - mSendBase) & SEQUENCE_MASK;
+    }
+
+    /**
+     * Check if a sequence number is sent but not yet acked
+     */
+    private boolean isOutstanding(int sequence) {
+        return ((sequence - mSendBase) & SEQUENCE_MASK) < getNumOutstanding();
+    }
+
+    /**
+     * Send the oldest queued packet, or an ack on its own if one is due.
+     * Only one packet is on the Transport at a time
+     */
+    private void transmitNext() {
+        int numOutstanding = getNumOutstanding();
+        // keep the timer going while anything is unacked, which also retries a send the Transport refused
+        if (numOutstanding > 0 || mIsAckDue || mIsAwaitingAccept) {
+            startRetransmitTimer();
+        }
+        if (mIsPacketInFlight) return;
+
+        int maxPacketLength = mTransport.getMaxPacketLength();
+        if (mPacket.length < maxPacketLength) {
+            mPacket = new byte[maxPacketLength];
+        }
+        if (mIsSessionPacketDue) {
+            mPacket[0] = 0;
+            mPacket[1] = (byte) mExpectedSequence;
+            mPacket[2] = (byte) (mReceivedMask | FLAG_SESSION);
+            mPacket[HEADER_LENGTH] = (byte) (mIsInitiator ? SESSION_RESUME : SESSION_ACCEPT);
+            writeSessionId(mSessionId, mPacket, HEADER_LENGTH + 1);
+            mIsPacketInFlight = mTransport.sendPacket(mPacket, SESSION_PACKET_LENGTH);
+            if (mIsPacketInFlight) {
+                mInFlightSequence = -1;
+                mIsSessionPacketDue = false;
+                mIsAckPending = false;
+            }
+            return;
+        }
+        if (!mIsSessionOpen) return;
+
+        int sequence = -1;
+        for (int index = 0; index < numOutstanding; index++) {
+            int candidate = (mSendBase + index) & SEQUENCE_MASK;
+            if (mSendStates[candidate % WINDOW_SIZE] == STATE_QUEUED) {
+                sequence = candidate;
+                break;
+            }
+        }
+        if (sequence < 0 && !mIsAckDue) return;
+
+        int length = HEADER_LENGTH;
+        mPacket[0] = (byte) Math.max(0, sequence);
+        mPacket[1] = (byte) mExpectedSequence;
+        mPacket[2] = (byte) mReceivedMask;
+        if (sequence >= 0) {
+            int slot = sequence % WINDOW_SIZE;
+            System.arraycopy(mSendSlots[slot], 0, mPacket, HEADER_LENGTH, mSendLengths[slot]);
+            length += mSendLengths[slot];
+        }
+
+        mIsPacketInFlight = mTransport.sendPacket(mPacket, length);
+        if (mIsPacketInFlight) {
+            mInFlightSequence = sequence;
+            // the ack rides along on this packet
+            mIsAckPending = false;
+            mIsAckDue = false;
+        }
+    }
+
+    /**
+     * Free the packets the peer has, and send again the ones it has shown it is missing
+     *
+     * @param ack the next sequence number the peer expects
+     * @param sackMask bit i is set if the peer has ack + 1 + i
+     * @return <b>true</b> if this ack cleared the last outstanding packet
+     */
+    private boolean onAckReceived(int ack, int sackMask) {
+        int numAcked = (ack - mSendBase) & SEQUENCE_MASK;
+        if (numAcked > getNumOutstanding()) return false; // old or garbled
+        for (int index = 0; index < numAcked; index++) {
+            mSendStates[(mSendBase + index) % WINDOW_SIZE] = STATE_EMPTY;
+        }
+        mSendBase = ack;
+
+        int numOutstanding = getNumOutstanding();
+        int highestSacked = 0;
+        for (int bit = 0; bit < WINDOW_SIZE && bit + 1 < numOutstanding; bit++) {
+            if ((sackMask & (1 << bit)) != 0) {
+                mSendStates[(ack + 1 + bit) % WINDOW_SIZE] = STATE_SACKED;
+                highestSacked = bit + 1;
+            }
+        }
+        // everything before the highest selective ack that the peer hasn't got was lost
+        for (int index = 0; index < highestSacked; index++) {
+            int slot = (ack + index) % WINDOW_SIZE;
+            if (mSendStates[slot] == STATE_SENT && !mIsFastRetransmitted[slot]) {
+                mSendStates[slot] = STATE_QUEUED;
+                mIsFastRetransmitted[slot] = true;
+                mNumRetransmits++;
+            }
+        }
+        return numAcked > 0 && numOutstanding == 0;
+    }
+
+    /**
+     * Accept a payload, buffering it if an earlier one is missing
+     *
+     * @return <b>true</b> if it is the next payload and should be passed up now
+     */
+    private boolean onPayloadReceived(int sequence, byte[] payload, int offset, int length) {
+        mIsAckPending = true;
+        int distance = (sequence - mExpectedSequence) & SEQUENCE_MASK;
+        if (distance == 0) {
+            scheduleAck();
+            return true;
+        }
+
+        if (distance < WINDOW_SIZE) {
+            int bit = 1 << (distance - 1);
+            if ((mReceivedMask & bit) == 0) {
+                int slot = sequence % WINDOW_SIZE;
+                if (mReceiveSlots[slot] == null || mReceiveSlots[slot].length < length) {
+                    mReceiveSlots[slot] = new byte[Math.max(length, mTransport.getMaxPacketLength())];
+                }
+                System.arraycopy(payload, offset, mReceiveSlots[slot], 0, length);
+                mReceiveLengths[slot] = length;
+                mReceivedMask |= bit;
+            } else {
+                mNumDuplicates++;
+            }
+        } else {
+            // already passed up; the ack for it must have been lost
+            mNumDuplicates++;
+        }
+        // something is missing or repeated, so tell the sender straight away
+        mIsAckDue = true;
+        return false;
+    }
+
+    /**
+     * Pass a payload up, holding on to the first error so the rest still get through
+     */
+    private static Exception deliver(PacketHandler packetHandler, byte[] payload, int offset, int length, Exception error) {
+        if (packetHandler == null) return error;
+        try {
+            packetHandler.onPacketReceived(payload, offset, length);
+        } catch (Exception e) {
+            if (error == null) return e;
+        }
+        return error;
+    }
+
+    /**
+     * Check if the handler's last packet is out and there is room for another.
+     * Must be reported outside this object's lock, since the handler calls back into sendPacket()
+     *
+     * @return the handler to tell, or null
+     */
+    private PacketHandler takeReadyHandler() {
+        if (!mIsHandlerWaiting || getNumOutstanding() >= WINDOW_SIZE) return null;
+        if (isOutstanding(mHandlerSequence) && mSendStates[mHandlerSequence % WINDOW_SIZE] == STATE_QUEUED) return null;
+        mIsHandlerWaiting = false;
+        return mPacketHandler;
+    }
+
+    /**
+     * Send the pending ack on its own if nothing else carries it soon
+     */
+    private void scheduleAck() {
+        if (mIsAckTimerRunning) return;
+        mIsAckTimerRunning = true;
+        mScheduler.schedule(mAckDelayMicros, new Timer(mGeneration) {
+            @Override
+            void onTimer() {
+                mIsAckTimerRunning = false;
+                if (mIsAckPending) {
+                    mIsAckDue = true;
+                    transmitNext();
+                }
+            }
+        });
+    }
+
+    /**
+     * Age the packets waiting for an ack, every half of the retransmit timeout
+     */
+    private void startRetransmitTimer() {
+        if (mIsRetransmitTimerRunning) return;
+        mIsRetransmitTimerRunning = true;
+        mScheduler.schedule(mRetransmitTimeoutMicros / 2, new Timer(mGeneration) {
+            @Override
+            void onTimer() {
+                mIsRetransmitTimerRunning = false;
+                if (mIsAwaitingAccept) {
+                    // the resume request or its answer was lost
+                    mIsSessionPacketDue = true;
+                }
+                int numOutstanding = getNumOutstanding();
+                for (int index = 0; index < numOutstanding; index++) {
+                    int slot = (mSendBase + index) % WINDOW_SIZE;
+                    if (mSendStates[slot] == STATE_SENT && ++mSendAges[slot] >= 2) {
+                        mSendStates[slot] = STATE_QUEUED;
+                        mSendAges[slot] = 0;
+                        mNumRetransmits++;
+                    }
+                }
+                transmitNext();
+            }
+        });
+    }
+
+    /**
+     * A timer task that does nothing if the link was reset after it was set
+     */
+    private abstract class Timer implements Runnable {
+        private final int mTimerGeneration;
+
+        Timer(int generation) {
+            mTimerGeneration = generation;
+        }
+
+        @Override
+        public void run() {
+            PacketHandler readyHandler;
+            synchronized (ReliableLink.this) {
+                if (mTimerGeneration != mGeneration) return;
+                onTimer();
+                readyHandler = takeReadyHandler();
+            }
+            if (readyHandler != null) {
+                readyHandler.onPacketSent(true);
+            }
+        }
+
+        abstract void onTimer();
+    }
+}
@@ -0,0 +1,29 @@
+package tonyg.example.com.blechatcore.transport;
+
+/**
+ * Sends packets over a link, such as a GATT Characteristic.
+ *
+ * A MessageChannel keeps at most one packet in flight.  Once the link reports
+ * that the packet went out, for example in BluetoothGattCallback.onCharacteristicWrite()
+ * or BluetoothGattServerCallback.onNotificationSent(), pass the result to
+ * MessageChannel.onPacketSent() so the next packet can be sent.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public interface Transport {
+    /**
+     * Get the largest packet the link can carry, for example the ATT MTU minus 3
+     */
+    int getMaxPacketLength();
+
+    /**
+     * Start sending a packet.  The packet array is reused once this returns,
+     * so copy it if the link keeps a reference to it
+     *
+     * @param packet the packet bytes
+     * @param length the packet length
+     * @return <b>true</b> if the packet is on its way
+     */
+    boolean sendPacket(byte[] packet, int length);
+}
@@ -0,0 +1,76 @@
+package tonyg.example.com.blechatcore;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import tonyg.example.com.blechatcore.codec.Utf8StreamDecoder;
+import tonyg.example.com.blechatcore.log.ChatHistory;
+import tonyg.example.com.blechatcore.log.ChatLog;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a ChatHistory follows new messages cheaply and pages older ones back in from the log
+ */
+public class ChatHistoryTest {
+    private static final int CAPACITY = 32;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static void append(ChatLog chatLog, String text) throws Exception {
+        byte[] message = text.getBytes(Utf8StreamDecoder.CHARSET);
+        chatLog.append(message, 0, message.length, 0);
+    }
+
+    @Test
+    public void followsNewMessagesWithoutPaging() throws Exception {
+        ChatLog chatLog = new ChatLog(mFolder.getRoot(), 4096, 100);
+        ChatHistory chatHistory = new ChatHistory(chatLog, CAPACITY);
+        assertNull(chatHistory.get(0));
+
+        for (int index = 0; index < 500; index++) {
+            append(chatLog, "message " + index + "\r\n");
+            assertEquals("message " + index, chatHistory.get(index));
+        }
+        assertEquals(1, chatHistory.getNumPageReads());
+        // a few screens back is still in the window
+        assertEquals("message 480", chatHistory.get(480));
+        assertEquals(1, chatHistory.getNumPageReads());
+        assertNull(chatHistory.get(500));
+        chatLog.close();
+    }
+
+    @Test
+    public void pagesOlderMessagesBackIn() throws Exception {
+        ChatLog chatLog = new ChatLog(mFolder.getRoot(), 4096, 100);
+        for (int index = 0; index < 500; index++) {
+            append(chatLog, "message " + index);
+        }
+        ChatHistory chatHistory = new ChatHistory(chatLog, CAPACITY);
+
+        // scroll up from the bottom, one message at a time
+        for (int index = 499; index >= 0; index--) {
+            assertEquals("message " + index, chatHistory.get(index));
+        }
+        // each page read moves the window half its length
+        assertTrue(chatHistory.getNumPageReads() <= 2 + 500 / (CAPACITY / 2));
+        chatLog.close();
+    }
+
+    @Test
+    public void skipsMessagesTheLogDeleted() throws Exception {
+        ChatLog chatLog = new ChatLog(mFolder.getRoot(), 1024, 2);
+        ChatHistory chatHistory = new ChatHistory(chatLog, CAPACITY);
+        for (int index = 0; index < 300; index++) {
+            append(chatLog, "message " + index);
+        }
+        long firstSequence = chatHistory.getFirstSequence();
+        assertTrue(firstSequence > 0);
+        assertNull(chatHistory.get(0));
+        assertEquals("message " + firstSequence, chatHistory.get(firstSequence));
+        assertEquals("message 299", chatHistory.get(299));
+        chatLog.close();
+    }
+}
@@ -0,0 +1,200 @@
+package tonyg.example.com.blechatcore;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import tonyg.example.com.blechatcore.callbacks.EchoSessionCallback;
+import tonyg.example.com.blechatcore.callbacks.MessageChannelCallback;
+import tonyg.example.com.blechatcore.codec.Utf8StreamDecoder;
+import tonyg.example.com.blechatcore.log.ChatLog;
+import tonyg.example.com.blechatcore.sim.SimulatedClock;
+import tonyg.example.com.blechatcore.transport.Transport;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the chat log keeps messages across restarts, rotates, and finds messages by sequence number
+ */
+public class ChatLogTest {
+    private static final int SEGMENT_LENGTH = 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static long append(ChatLog chatLog, String text) throws Exception {
+        byte[] message = text.getBytes(Utf8StreamDecoder.CHARSET);
+        return chatLog.append(message, 0, message.length, 1000 + text.length());
+    }
+
+    private static String readText(ChatLog.Cursor cursor) {
+        byte[] message = new byte[cursor.getLength()];
+        cursor.copyMessage(message, 0);
+        return new String(message, Utf8StreamDecoder.CHARSET);
+    }
+
+    @Test
+    public void readsFromAnySequenceAcrossSegments() throws Exception {
+        ChatLog chatLog = new ChatLog(mFolder.getRoot(), SEGMENT_LENGTH, 100);
+        for (int index = 0; index < 200; index++) {
+            assertEquals(index, append(chatLog, "message " + index));
+        }
+        assertTrue(chatLog.getNumSegments() > 2);
+
+        ChatLog.Cursor cursor = chatLog.read(37);
+        for (int index = 37; index < 200; index++) {
+            assertTrue(cursor.next());
+            assertEquals(index, cursor.getSequence());
+            assertEquals("message " + index, readText(cursor));
+            assertEquals(1000 + ("message " + index).length(), cursor.getTimestamp());
+        }
+        assertFalse(cursor.next());
+
+        // the cursor picks up messages appended after it caught up
+        append(chatLog, "late message");
+        assertTrue(cursor.next());
+        assertEquals("late message", Utf8StreamDecoder.CHARSET.decode(cursor.getMessage()).toString());
+        chatLog.close();
+    }
+
+    @Test
+    public void survivesARestartAndACutOffRecord() throws Exception {
+        File directory = mFolder.getRoot();
+        ChatLog chatLog = new ChatLog(directory, SEGMENT_LENGTH, 100);
+        for (int index = 0; index < 100; index++) {
+            append(chatLog, "message " + index);
+        }
+        chatLog.close();
+
+        // scramble the last record's message, as a crash part way through writing it might
+        File newest = null;
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(".log") && (newest == null || file.getName().compareTo(newest.getName()) > 0)) {
+                newest = file;
+            }
+        }
+        RandomAccessFile segment = new RandomAccessFile(newest, "rw");
+        int position = 0;
+        int lastPosition = 0;
+        while (true) {
+            segment.seek(position);
+            int recordLength = segment.readInt();
+            if (recordLength == 0) break;
+            lastPosition = position;
+            position += recordLength;
+        }
+        segment.seek(lastPosition + ChatLog.RECORD_HEADER_LENGTH);
+        segment.write('X');
+        segment.close();
+
+        chatLog = new ChatLog(directory, SEGMENT_LENGTH, 100);
+        assertEquals(99, chatLog.getNextSequence());
+        assertEquals(99, append(chatLog, "after the restart"));
+
+        ChatLog.Cursor cursor = chatLog.read(95);
+        for (int index = 95; index < 99; index++) {
+            assertTrue(cursor.next());
+            assertEquals("message " + index, readText(cursor));
+        }
+        assertTrue(cursor.next());
+        assertEquals("after the restart", readText(cursor));
+        assertFalse(cursor.next());
+        chatLog.close();
+    }
+
+    @Test
+    public void deletesTheOldestSegments() throws Exception {
+        ChatLog chatLog = new ChatLog(mFolder.getRoot(), SEGMENT_LENGTH, 3);
+        ChatLog.Cursor early = chatLog.read(0);
+        for (int index = 0; index < 500; index++) {
+            append(chatLog, "message " + index);
+        }
+        assertEquals(3, chatLog.getNumSegments());
+        assertEquals(6, mFolder.getRoot().listFiles().length);
+        assertTrue(chatLog.getFirstSequence() > 0);
+
+        // a cursor made before the deletes skips what is gone
+        assertTrue(early.next());
+        assertEquals(chatLog.getFirstSequence(), early.getSequence());
+        chatLog.close();
+    }
+
+    @Test
+    public void replaysHistoryToANewClientAsTheQueueDrains() throws Exception {
+        ChatLog chatLog = new ChatLog(mFolder.getRoot(), SEGMENT_LENGTH, 100);
+        for (int index = 0; index < 300; index++) {
+            append(chatLog, "message " + index);
+        }
+
+        final SimulatedClock clock = new SimulatedClock();
+        final List<String> received = new ArrayList<>();
+        final MessageChannel client = new MessageChannel(null, 1024, new MessageChannelCallback() {
+            @Override
+            public void onMessageReceived(byte[] message, int offset, int length) {
+                received.add(new String(message, offset, length, Utf8StreamDecoder.CHARSET));
+            }
+
+            @Override
+            public void onAllMessagesSent() {
+
+            }
+        });
+        final EchoSession[] echoSession = new EchoSession[1];
+        final int[] maxQueuedBytes = new int[1];
+        Transport transport = new Transport() {
+            @Override
+            public int getMaxPacketLength() {
+                return 20;
+            }
+
+            @Override
+            public boolean sendPacket(byte[] packet, int length) {
+                final byte[] copy = Arrays.copyOf(packet, length);
+                maxQueuedBytes[0] = Math.max(maxQueuedBytes[0], echoSession[0].getMessageChannel().getNumQueuedBytes());
+                clock.schedule(1000, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            client.onPacketReceived(copy, 0, copy.length);
+                        } catch (Exception e) {
+                            fail(e.getMessage());
+                        }
+                        echoSession[0].onPacketSent(true);
+                    }
+                });
+                return true;
+            }
+        };
+        echoSession[0] = new EchoSession(transport, 1024, new EchoSessionCallback() {
+            @Override
+            public void onMessageReceived(byte[] message, int offset, int length) {
+
+            }
+
+            @Override
+            public void onMessageDropped(int length) {
+                fail("Echo dropped");
+            }
+        });
+
+        echoSession[0].replayHistory(chatLog, 100);
+        // messages logged once the replay has started are not part of it
+        append(chatLog, "too late");
+        clock.runUntilIdle(clock.now() + 60000000);
+
+        assertFalse(echoSession[0].isReplayingHistory());
+        assertEquals(200, received.size());
+        for (int index = 0; index < 200; index++) {
+            assertEquals("message " + (100 + index), received.get(index));
+        }
+        // the replay never took more than half the queue, plus the message that crossed it
+        assertTrue(maxQueuedBytes[0] < 512 + 32);
+        chatLog.close();
+    }
+}
@@ -0,0 +1,113 @@
+package tonyg.example.com.blechatcore;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import tonyg.example.com.blechatcore.LinkFixtures.Pipe;
+import tonyg.example.com.blechatcore.LinkFixtures.RecordingCallback;
+import tonyg.example.com.blechatcore.codec.MessageCompressor;
+import tonyg.example.com.blechatcore.codec.Utf8StreamDecoder;
+
+import static org.junit.Assert.*;
+import static tonyg.example.com.blechatcore.LinkFixtures.QUEUE_CAPACITY;
+
+/**
+ * Checks compression negotiation and that compressed messages arrive intact
+ */
+public class CompressionTest {
+    private static final String CHAT_TEXT = "hey, how are you? sounds good, see you tomorrow. talk to you later!";
+
+    private final Pipe mCentralToPeripheral = new Pipe();
+    private final Pipe mPeripheralToCentral = new Pipe();
+    private final RecordingCallback mCentralCallback = new RecordingCallback();
+    private final RecordingCallback mPeripheralCallback = new RecordingCallback();
+    private MessageChannel mCentral, mPeripheral;
+
+    private void connect(boolean isCentralCompressing, boolean isPeripheralCompressing) throws Exception {
+        mCentral = new MessageChannel(mCentralToPeripheral, QUEUE_CAPACITY, mCentralCallback);
+        mPeripheral = new MessageChannel(mPeripheralToCentral, QUEUE_CAPACITY, mPeripheralCallback);
+        mCentralToPeripheral.mSender = mCentral;
+        mCentralToPeripheral.mReceiver = mPeripheral;
+        mPeripheralToCentral.mSender = mPeripheral;
+        mPeripheralToCentral.mReceiver = mCentral;
+        mCentral.setCompressionEnabled(isCentralCompressing);
+        mPeripheral.setCompressionEnabled(isPeripheralCompressing);
+
+        mCentral.sendHello();
+        pump();
+    }
+
+    private void pump() throws Exception {
+        while (mCentralToPeripheral.pump() | mPeripheralToCentral.pump()) {
+            // keep going until both directions are quiet
+        }
+    }
+
+    @Test
+    public void negotiatesCompressionWhenBothSidesOfferIt() throws Exception {
+        connect(true, true);
+        assertTrue(mCentral.isCompressing());
+        assertTrue(mPeripheral.isCompressing());
+        // HELLO frames are not messages
+        assertEquals(0, mCentralCallback.mMessages.size());
+        assertEquals(0, mPeripheralCallback.mMessages.size());
+    }
+
+    @Test
+    public void staysUncompressedUnlessBothSidesOfferIt() throws Exception {
+        connect(true, false);
+        assertFalse(mCentral.isCompressing());
+        assertFalse(mPeripheral.isCompressing());
+
+        byte[] message = CHAT_TEXT.getBytes(Utf8StreamDecoder.CHARSET);
+        mCentral.sendMessage(message, 0, message.length);
+        pump();
+        assertArrayEquals(message, mPeripheralCallback.mMessages.get(0));
+    }
+
+    @Test
+    public void compressedChatTakesFewerPackets() throws Exception {
+        byte[] message = CHAT_TEXT.getBytes(Utf8StreamDecoder.CHARSET);
+
+        connect(false, false);
+        int numPacketsBefore = mCentralToPeripheral.mNumPacketsSent;
+        mCentral.sendMessage(message, 0, message.length);
+        pump();
+        int numPlainPackets = mCentralToPeripheral.mNumPacketsSent - numPacketsBefore;
+
+        connect(true, true);
+        numPacketsBefore = mCentralToPeripheral.mNumPacketsSent;
+        mCentral.sendMessage(message, 0, message.length);
+        pump();
+        int numCompressedPackets = mCentralToPeripheral.mNumPacketsSent - numPacketsBefore;
+
+        assertArrayEquals(message, mPeripheralCallback.mMessages.get(1));
+        assertTrue(numCompressedPackets + " vs " + numPlainPackets, numCompressedPackets < numPlainPackets);
+    }
+
+    @Test
+    public void sendsIncompressibleMessagesAsTheyAre() throws Exception {
+        connect(true, true);
+        byte[] message = new byte[500];
+        new Random(1).nextBytes(message);
+        assertEquals(-1, new MessageCompressor(QUEUE_CAPACITY).compress(message, 0, message.length));
+
+        mCentral.sendMessage(message, 0, message.length);
+        pump();
+        assertArrayEquals(message, mPeripheralCallback.mMessages.get(0));
+    }
+
+    @Test
+    public void roundTripsLongRepetitiveMessages() throws Exception {
+        connect(true, true);
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 30000) {
+            text.append(CHAT_TEXT);
+        }
+        byte[] message = text.toString().getBytes(Utf8StreamDecoder.CHARSET);
+        mCentral.sendMessage(message, 0, message.length);
+        pump();
+        assertArrayEquals(message, mPeripheralCallback.mMessages.get(0));
+    }
+}
@@ -0,0 +1,68 @@
+package tonyg.example.com.blechatcore;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import tonyg.example.com.blechatcore.codec.DataConverter;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the DataConverter conversions against known values
+ */
+public class DataConverterTest {
+    @Test
+    public void bytesToHexMatchesEveryVariant() {
+        byte[] bytes = { 0x00, 0x7F, (byte) 0x80, (byte) 0xFF };
+        assertEquals("00 7F 80 FF ", DataConverter.bytesToHex(bytes));
+        assertEquals("", DataConverter.bytesToHex(new byte[0]));
+
+        StringBuilder output = new StringBuilder("> ");
+        DataConverter.bytesToHex(bytes, 1, 2, output);
+        assertEquals("> 7F 80 ", output.toString());
+
+        char[] chars = new char[6];
+        assertEquals(6, DataConverter.bytesToHex(bytes, 2, 2, chars, 0));
+        assertEquals("80 FF ", new String(chars));
+    }
+
+    @Test
+    public void bytesToIntReadsLittleEndian() {
+        assertEquals("", DataConverter.bytesToInt(new byte[0]));
+        assertEquals("255", DataConverter.bytesToInt(new byte[] { (byte) 0xFF }));
+        assertEquals("4660", DataConverter.bytesToInt(new byte[] { 0x34, 0x12 }));
+        assertEquals("4294967295", DataConverter.bytesToInt(new byte[] { -1, -1, -1, -1 }));
+        assertEquals("18446744073709551615", DataConverter.bytesToInt(new byte[] { -1, -1, -1, -1, -1, -1, -1, -1 }));
+    }
+
+    @Test
+    public void intToBytesHandlesEveryLength() {
+        assertArrayEquals(new byte[] { 0x78 }, DataConverter.intToBytes(0x12345678, 1));
+        assertArrayEquals(new byte[] { 0x78, 0x56 }, DataConverter.intToBytes(0x12345678, 2));
+        assertArrayEquals(new byte[] { 0x78, 0x56, 0x34 }, DataConverter.intToBytes(0x12345678, 3));
+        assertArrayEquals(new byte[] { 0x78, 0x56, 0x34, 0x12 }, DataConverter.intToBytes(0x12345678, 4));
+        assertArrayEquals(new byte[] { 0x78, 0x56, 0x34, 0x12, 0, 0 }, DataConverter.intToBytes(0x12345678, 6));
+
+        // the ByteBuffer's own byte order doesn't matter
+        ByteBuffer buffer = ByteBuffer.allocate(2).order(ByteOrder.BIG_ENDIAN);
+        DataConverter.intToBytes(0x0102, 2, buffer);
+        assertArrayEquals(new byte[] { 0x02, 0x01 }, buffer.array());
+    }
+
+    @Test
+    public void fixedWidthValuesRoundTrip() {
+        byte[] bytes = new byte[10];
+        int offset = DataConverter.writeUint8(0xAB, bytes, 0);
+        offset = DataConverter.writeUint16(0xBEEF, bytes, offset);
+        offset = DataConverter.writeUint24(0xC0FFEE, bytes, offset);
+        offset = DataConverter.writeUint32(0xFEEDFACEL, bytes, offset);
+        assertEquals(10, offset);
+
+        assertEquals(0xAB, DataConverter.readUint8(bytes, 0));
+        assertEquals(0xBEEF, DataConverter.readUint16(bytes, 1));
+        assertEquals(0xC0FFEE, DataConverter.readUint24(bytes, 3));
+        assertEquals(0xFEEDFACEL, DataConverter.readUint32(bytes, 6));
+    }
+}
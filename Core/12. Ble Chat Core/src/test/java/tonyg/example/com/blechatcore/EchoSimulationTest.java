@@ -0,0 +1,87 @@
+package tonyg.example.com.blechatcore;
+
+import org.junit.Test;
+
+import tonyg.example.com.blechatcore.sim.EchoSimulation;
+import tonyg.example.com.blechatcore.sim.LinkParameters;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs simulated Centrals against the echo server logic
+ */
+public class EchoSimulationTest {
+    private static final long ONE_SECOND = 1000000;
+
+    @Test
+    public void echoesEveryMessageToHundredsOfCentrals() {
+        EchoSimulation simulation = new EchoSimulation();
+        simulation.setNumCentrals(300);
+        simulation.setMessageLength(40);
+        simulation.setMessageIntervalMicros(200000);
+        EchoSimulation.Result result = simulation.run(5 * ONE_SECOND);
+
+        assertEquals(300 * 25, result.getNumMessagesSent());
+        assertEquals(result.getNumMessagesSent(), result.getNumMessagesEchoed());
+        assertEquals(result.getNumMessagesSent(), result.getNumMessagesReceived());
+        assertEquals(0, result.getNumErrors());
+    }
+
+    @Test
+    public void packetLossDelaysButNeverCorruptsMessages() {
+        EchoSimulation lossless = new EchoSimulation();
+        lossless.setMessageLength(100);
+        EchoSimulation.Result losslessResult = lossless.run(10 * ONE_SECOND);
+
+        LinkParameters lossyLink = new LinkParameters();
+        lossyLink.setLossRate(0.2);
+        EchoSimulation lossy = new EchoSimulation();
+        lossy.setMessageLength(100);
+        lossy.setLinkParameters(lossyLink);
+        EchoSimulation.Result lossyResult = lossy.run(10 * ONE_SECOND);
+
+        assertTrue(lossyResult.getNumPacketsLost() > 0);
+        assertEquals(lossyResult.getNumMessagesSent(), lossyResult.getNumMessagesReceived());
+        assertEquals(0, lossyResult.getNumErrors());
+        assertTrue(lossyResult.getMeanLatencyMicros() > losslessResult.getMeanLatencyMicros());
+    }
+
+    @Test
+    public void unacknowledgedPacketsUseSeveralSlotsPerEvent() {
+        LinkParameters acknowledged = new LinkParameters();
+        LinkParameters unacknowledged = new LinkParameters();
+        unacknowledged.setAcknowledged(false);
+
+        EchoSimulation.Result acknowledgedResult = runSaturated(acknowledged);
+        EchoSimulation.Result unacknowledgedResult = runSaturated(unacknowledged);
+
+        assertEquals(acknowledgedResult.getNumMessagesSent(), acknowledgedResult.getNumMessagesReceived());
+        assertEquals(unacknowledgedResult.getNumMessagesSent(), unacknowledgedResult.getNumMessagesReceived());
+        assertTrue(unacknowledgedResult.getMeanLatencyMicros() < acknowledgedResult.getMeanLatencyMicros() / 2);
+    }
+
+    @Test
+    public void largerMtuCutsRoundTripTime() {
+        LinkParameters largeMtu = new LinkParameters();
+        largeMtu.setMtu(185);
+
+        EchoSimulation defaultMtu = new EchoSimulation();
+        defaultMtu.setMessageLength(500);
+        defaultMtu.setMessageIntervalMicros(2 * ONE_SECOND);
+        EchoSimulation largerMtu = new EchoSimulation();
+        largerMtu.setMessageLength(500);
+        largerMtu.setMessageIntervalMicros(2 * ONE_SECOND);
+        largerMtu.setLinkParameters(largeMtu);
+
+        assertTrue(largerMtu.run(10 * ONE_SECOND).getMeanLatencyMicros()
+                < defaultMtu.run(10 * ONE_SECOND).getMeanLatencyMicros() / 4);
+    }
+
+    private static EchoSimulation.Result runSaturated(LinkParameters linkParameters) {
+        EchoSimulation simulation = new EchoSimulation();
+        simulation.setMessageLength(1000);
+        simulation.setMessageIntervalMicros(ONE_SECOND);
+        simulation.setLinkParameters(linkParameters);
+        return simulation.run(10 * ONE_SECOND);
+    }
+}
@@ -0,0 +1,101 @@
+package tonyg.example.com.blechatcore;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import tonyg.example.com.blechatcore.codec.GattValueReader;
+import tonyg.example.com.blechatcore.codec.GattValueWriter;
+import tonyg.example.com.blechatcore.codec.Ieee11073Float;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the typed GATT value codecs against known encodings
+ */
+public class GattValueTest {
+    @Test
+    public void unsignedValuesRoundTrip() {
+        byte[] buffer = new byte[7];
+        GattValueWriter writer = new GattValueWriter().wrap(buffer)
+                .putUint8(0xAB)
+                .putUint16(0x1234)
+                .putUint32(0xFFFFFFFEL);
+        assertEquals(7, writer.getLength());
+        assertEquals(0, writer.remaining());
+        assertArrayEquals(new byte[] { (byte) 0xAB, 0x34, 0x12, (byte) 0xFE, -1, -1, -1 }, buffer);
+
+        GattValueReader reader = new GattValueReader().wrap(buffer);
+        assertEquals(0xAB, reader.getUint8());
+        assertEquals(0x1234, reader.getUint16());
+        assertEquals(0xFFFFFFFEL, reader.getUint32());
+        assertEquals(0, reader.remaining());
+    }
+
+    @Test
+    public void saturatedValuesClamp() {
+        byte[] buffer = new byte[3];
+        new GattValueWriter().wrap(buffer)
+                .putUnsignedSaturated(300, 1)
+                .putUnsignedSaturated(-5, 2);
+        assertArrayEquals(new byte[] { -1, 0, 0 }, buffer);
+    }
+
+    @Test
+    public void floatsMatchKnownEncodings() {
+        // 36.4 degrees is 364 x 10^-1
+        assertEquals(0xF16C, Ieee11073Float.encodeSfloat(36.4));
+        assertEquals(Ieee11073Float.encodeSfloat(364, -1), Ieee11073Float.encodeSfloat(36.4));
+        assertEquals(36.4, Ieee11073Float.decodeSfloat(0xF16C), 1e-9);
+        assertEquals(-2.5, Ieee11073Float.decodeSfloat(Ieee11073Float.encodeSfloat(-2.5)), 1e-9);
+        assertEquals(0, Ieee11073Float.decodeSfloat(Ieee11073Float.encodeSfloat(0)), 0);
+
+        assertEquals(0xFF00016C, Ieee11073Float.encodeFloat(364, -1));
+        assertEquals(36.4, Ieee11073Float.decodeFloat(0xFF00016C), 1e-9);
+        assertEquals(36.4, Ieee11073Float.decodeFloat(Ieee11073Float.encodeFloat(36.4)), 1e-9);
+        assertEquals(98.6, Ieee11073Float.decodeFloat(Ieee11073Float.encodeFloat(98.6)), 1e-9);
+        assertEquals(-123456.7, Ieee11073Float.decodeFloat(Ieee11073Float.encodeFloat(-123456.7)), 1e-6);
+
+        byte[] buffer = new byte[6];
+        new GattValueWriter().wrap(buffer).putSfloat(36.4).putFloat(-0.001);
+        GattValueReader reader = new GattValueReader().wrap(buffer);
+        assertEquals(36.4, reader.getSfloat(), 1e-9);
+        assertEquals(-0.001, reader.getFloat(), 1e-12);
+    }
+
+    @Test
+    public void floatsHandleSpecialValues() {
+        assertEquals(Ieee11073Float.SFLOAT_NAN, Ieee11073Float.encodeSfloat(Double.NaN));
+        assertEquals(Ieee11073Float.SFLOAT_POSITIVE_INFINITY, Ieee11073Float.encodeSfloat(1e12));
+        assertEquals(Ieee11073Float.SFLOAT_NEGATIVE_INFINITY, Ieee11073Float.encodeSfloat(Double.NEGATIVE_INFINITY));
+        assertTrue(Double.isNaN(Ieee11073Float.decodeSfloat(Ieee11073Float.SFLOAT_NRES)));
+        assertEquals(Double.POSITIVE_INFINITY, Ieee11073Float.decodeSfloat(Ieee11073Float.SFLOAT_POSITIVE_INFINITY), 0);
+
+        assertEquals(Ieee11073Float.FLOAT_NAN, Ieee11073Float.encodeFloat(Double.NaN));
+        assertEquals(Ieee11073Float.FLOAT_NEGATIVE_INFINITY, Ieee11073Float.encodeFloat(-1e200));
+        assertTrue(Double.isNaN(Ieee11073Float.decodeFloat(Ieee11073Float.FLOAT_NRES)));
+    }
+
+    @Test
+    public void utf8RoundTripsAndNeverSplitsCharacters() {
+        String text = "h\u00E9llo \u20AC \uD83D\uDE00";
+        byte[] expected = text.getBytes(Charset.forName("UTF-8"));
+
+        byte[] buffer = new byte[32];
+        GattValueWriter writer = new GattValueWriter().wrap(buffer).putUtf8(text);
+        assertEquals(expected.length, writer.getLength());
+
+        StringBuilder output = new StringBuilder();
+        new GattValueReader().wrap(buffer, 0, writer.getLength()).getUtf8(output);
+        assertEquals(text, output.toString());
+
+        // the emoji needs 4 bytes, so only the first 2 characters fit in 5
+        byte[] small = new byte[5];
+        assertEquals(2, new GattValueWriter().wrap(small).putUtf8("ab\uD83D\uDE00").getLength());
+
+        // a truncated sequence decodes as a replacement character
+        output.setLength(0);
+        new GattValueReader().wrap(new byte[] { 'a', (byte) 0xE2, (byte) 0x82 }).getUtf8(output);
+        assertEquals("a\uFFFD", output.toString());
+    }
+}
@@ -0,0 +1,122 @@
+package tonyg.example.com.blechatcore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import tonyg.example.com.blechatcore.callbacks.MessageChannelCallback;
+import tonyg.example.com.blechatcore.sim.SimulatedClock;
+import tonyg.example.com.blechatcore.transport.PacketHandler;
+import tonyg.example.com.blechatcore.transport.Transport;
+
+import static org.junit.Assert.fail;
+
+/**
+ * In-memory links and recording callbacks shared by the MessageChannel and ReliableLink tests
+ */
+class LinkFixtures {
+    static final int PACKET_LENGTH = 20;
+    static final int QUEUE_CAPACITY = 32768;
+
+    /**
+     * One direction of a link between two PacketHandlers.
+     *
+     * Without a clock, packets wait in a list until pump() is called.  With one, each packet
+     * arrives 10 ms after it is sent, unless the connection dropped in the meantime.
+     * A packet whose number is in the drop list is lost on the way, but still reported sent
+     */
+    static class Pipe implements Transport {
+        static final long LATENCY_MICROS = 10000;
+
+        final SimulatedClock mClock;
+        final List<byte[]> mPackets = new ArrayList<>(); // waiting for pump()
+        final List<Integer> mDrops = new ArrayList<>();
+        PacketHandler mSender, mReceiver;
+        boolean mIsFailing = false; // report packets as failed, without delivering them
+        boolean mIsRefusing = false; // refuse packets outright
+        int mNumPacketsSent = 0;
+        int mConnection = 0;
+
+        Pipe() {
+            this(null);
+        }
+
+        Pipe(SimulatedClock clock) {
+            mClock = clock;
+        }
+
+        @Override
+        public int getMaxPacketLength() {
+            return PACKET_LENGTH;
+        }
+
+        @Override
+        public boolean sendPacket(byte[] packet, int length) {
+            if (mIsRefusing) return false;
+            final byte[] copy = Arrays.copyOf(packet, length);
+            final int packetNumber = mNumPacketsSent++;
+            if (mClock == null) {
+                mPackets.add(copy);
+                return true;
+            }
+
+            final int connection = mConnection;
+            mClock.schedule(LATENCY_MICROS, new Runnable() {
+                @Override
+                public void run() {
+                    if (connection != mConnection) return;
+                    try {
+                        deliver(copy, packetNumber);
+                    } catch (Exception e) {
+                        fail(e.getMessage());
+                    }
+                }
+            });
+            return true;
+        }
+
+        /**
+         * Deliver the waiting packets, including any sent while they are delivered
+         *
+         * @return <b>true</b> if there were any
+         */
+        boolean pump() throws Exception {
+            boolean isMoved = !mPackets.isEmpty();
+            while (!mPackets.isEmpty()) {
+                // the waiting packets are the last ones sent
+                int packetNumber = mNumPacketsSent - mPackets.size();
+                deliver(mPackets.remove(0), packetNumber);
+            }
+            return isMoved;
+        }
+
+        private void deliver(byte[] packet, int packetNumber) throws Exception {
+            if (mIsFailing) {
+                mSender.onPacketSent(false);
+                return;
+            }
+            if (!mDrops.contains(packetNumber)) {
+                mReceiver.onPacketReceived(packet, 0, packet.length);
+            }
+            mSender.onPacketSent(true);
+        }
+    }
+
+    /**
+     * Keeps a copy of every message received
+     */
+    static class RecordingCallback extends MessageChannelCallback {
+        final List<byte[]> mMessages = new ArrayList<>();
+        int mNumAllSent = 0;
+
+        @Override
+        public void onMessageReceived(byte[] message, int offset, int length) {
+            mMessages.add(Arrays.copyOfRange(message, offset, offset + length));
+        }
+
+        @Override
+        public void onAllMessagesSent() {
+            mNumAllSent++;
+        }
+    }
+}
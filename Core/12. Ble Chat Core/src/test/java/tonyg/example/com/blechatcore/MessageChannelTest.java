@@ -0,0 +1,174 @@
+package tonyg.example.com.blechatcore;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import tonyg.example.com.blechatcore.LinkFixtures.Pipe;
+import tonyg.example.com.blechatcore.LinkFixtures.RecordingCallback;
+import tonyg.example.com.blechatcore.sim.SimulatedClock;
+import tonyg.example.com.blechatcore.transport.Transport;
+
+import static org.junit.Assert.*;
+import static tonyg.example.com.blechatcore.LinkFixtures.QUEUE_CAPACITY;
+
+/**
+ * Round trips messages between two MessageChannels joined by an in-memory link
+ */
+public class MessageChannelTest {
+    private Pipe mTransport = new Pipe();
+    private RecordingCallback mSenderCallback = new RecordingCallback();
+    private RecordingCallback mReceiverCallback = new RecordingCallback();
+    private MessageChannel mSender, mReceiver;
+
+    private void connect() {
+        connect(new MessageChannel(mTransport, QUEUE_CAPACITY, mSenderCallback));
+    }
+
+    private void connect(MessageChannel sender) {
+        mSender = sender;
+        mReceiver = new MessageChannel(new Pipe(), QUEUE_CAPACITY, mReceiverCallback);
+        mTransport.mSender = mSender;
+        mTransport.mReceiver = mReceiver;
+    }
+
+    private static byte[] message(int length) {
+        byte[] message = new byte[length];
+        for (int index = 0; index < length; index++) {
+            message[index] = (byte) (index * 31 + length);
+        }
+        return message;
+    }
+
+    @Test
+    public void roundTripsMessagesOfManySizes() throws Exception {
+        connect();
+        int[] lengths = { 0, 1, 17, 18, 19, 20, 21, 127, 128, 129, 1000, 16383, 16384, 20000 };
+        for (int length : lengths) {
+            assertTrue(mSender.sendMessage(message(length), 0, length));
+            mTransport.pump();
+        }
+        assertEquals(lengths.length, mReceiverCallback.mMessages.size());
+        for (int index = 0; index < lengths.length; index++) {
+            assertArrayEquals(message(lengths[index]), mReceiverCallback.mMessages.get(index));
+        }
+        assertEquals(lengths.length, mSenderCallback.mNumAllSent);
+    }
+
+    @Test
+    public void packsShortMessagesIntoFullPackets() throws Exception {
+        connect();
+        // the first message goes out alone, the rest queue up behind it
+        for (int index = 0; index < 10; index++) {
+            assertTrue(mSender.sendMessage(message(3), 0, 3));
+        }
+        assertEquals(1, mTransport.mPackets.size());
+        // the other 9 frames, 5 bytes each, share 3 packets
+        mTransport.pump();
+        assertEquals(4, mTransport.mNumPacketsSent);
+        assertEquals(10, mReceiverCallback.mMessages.size());
+        assertEquals(0, mSender.getNumQueuedBytes());
+    }
+
+    @Test
+    public void coalescesShortMessagesOnAnIdleLink() throws Exception {
+        connect();
+        SimulatedClock clock = new SimulatedClock();
+        mSender.setCoalescingWindow(10000, clock);
+
+        // 3 frames of 5 bytes wait for company instead of going out alone
+        for (int index = 0; index < 3; index++) {
+            assertTrue(mSender.sendMessage(message(3), 0, 3));
+        }
+        assertEquals(0, mTransport.mNumPacketsSent);
+
+        // the 4th fills a packet, which goes out right away
+        assertTrue(mSender.sendMessage(message(3), 0, 3));
+        assertEquals(1, mTransport.mNumPacketsSent);
+        mTransport.pump();
+        assertEquals(4, mReceiverCallback.mMessages.size());
+
+        // a lone message goes out when the window closes
+        assertTrue(mSender.sendMessage(message(3), 0, 3));
+        clock.runUntil(9999);
+        assertEquals(1, mTransport.mNumPacketsSent);
+        clock.runUntil(clock.now() + 10000);
+        assertEquals(2, mTransport.mNumPacketsSent);
+        mTransport.pump();
+        assertEquals(5, mReceiverCallback.mMessages.size());
+        assertEquals(0, mSender.getNumQueuedBytes());
+    }
+
+    @Test
+    public void reassemblesPacketsSplitAnywhere() throws Exception {
+        connect();
+        Pipe transport = new Pipe();
+        MessageChannel sender = new MessageChannel(transport, QUEUE_CAPACITY, new RecordingCallback());
+        sender.sendMessage(message(300), 0, 300);
+        while (sender.getNumQueuedBytes() > 0) {
+            sender.onPacketSent(true);
+        }
+        byte[] stream = new byte[0];
+        for (byte[] packet : transport.mPackets) {
+            int start = stream.length;
+            stream = Arrays.copyOf(stream, start + packet.length);
+            System.arraycopy(packet, 0, stream, start, packet.length);
+        }
+        // feed the stream one byte at a time
+        for (int index = 0; index < stream.length; index++) {
+            mReceiver.onPacketReceived(stream, index, 1);
+        }
+        assertEquals(1, mReceiverCallback.mMessages.size());
+        assertArrayEquals(message(300), mReceiverCallback.mMessages.get(0));
+    }
+
+    @Test
+    public void keepsFailedPacketsUntilTheyAreSent() throws Exception {
+        SimulatedClock clock = new SimulatedClock();
+        connect(new MessageChannel(mTransport, QUEUE_CAPACITY, clock, mSenderCallback));
+
+        // the first packet of a message fails on the air a few times
+        mTransport.mIsFailing = true;
+        mSender.sendMessage(message(50), 0, 50);
+        for (int attempt = 0; attempt < 5; attempt++) {
+            mTransport.pump();
+            clock.runUntil(clock.now() + MessageChannel.RETRY_DELAY_MICROS);
+        }
+        assertEquals(0, mReceiverCallback.mMessages.size());
+        assertEquals(2 + 50, mSender.getNumQueuedBytes());
+
+        // then the Transport refuses packets for a while, with nothing else to move the queue along
+        mTransport.mIsFailing = false;
+        mTransport.mIsRefusing = true;
+        clock.runUntil(clock.now() + 5 * MessageChannel.RETRY_DELAY_MICROS);
+        mTransport.mIsRefusing = false;
+        while (clock.hasPendingTasks() || !mTransport.mPackets.isEmpty()) {
+            mTransport.pump();
+            clock.runUntilIdle(clock.now() + MessageChannel.RETRY_DELAY_MICROS);
+        }
+
+        // the stream never lost its place, so the next message arrives too
+        mSender.sendMessage(message(30), 0, 30);
+        mTransport.pump();
+        assertEquals(2, mReceiverCallback.mMessages.size());
+        assertArrayEquals(message(50), mReceiverCallback.mMessages.get(0));
+        assertArrayEquals(message(30), mReceiverCallback.mMessages.get(1));
+        assertEquals(0, mSender.getNumQueuedBytes());
+    }
+
+    @Test
+    public void refusesMessagesWhenQueueIsFull() throws Exception {
+        connect();
+        int length = mSender.getMaxMessageLength();
+        assertTrue(mSender.sendMessage(message(length), 0, length));
+        assertFalse(mSender.sendMessage(message(length), 0, length));
+    }
+
+    @Test(expected = Exception.class)
+    public void rejectsFramesLongerThanTheLimit() throws Exception {
+        connect();
+        // type byte, then a length of 2^21
+        byte[] packet = { 0x01, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01 };
+        mReceiver.onPacketReceived(packet, 0, packet.length);
+    }
+}
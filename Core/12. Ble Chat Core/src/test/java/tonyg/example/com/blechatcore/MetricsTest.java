@@ -0,0 +1,102 @@
+package tonyg.example.com.blechatcore;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import tonyg.example.com.blechatcore.metrics.EventRecorder;
+import tonyg.example.com.blechatcore.metrics.Histogram;
+import tonyg.example.com.blechatcore.metrics.MetricsRegistry;
+import tonyg.example.com.blechatcore.metrics.StripedCounter;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the counters, histograms and event ring buffer shared by both apps
+ */
+public class MetricsTest {
+    private static final String[] EVENT_NAMES = { "unknown", "connected", "disconnected" };
+
+    @Test
+    public void sumsIncrementsFromEveryThread() throws Exception {
+        final StripedCounter counter = new StripedCounter("writes");
+        Thread[] threads = new Thread[4];
+        for (int index = 0; index < threads.length; index++) {
+            threads[index] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int count = 0; count < 1000; count++) {
+                        counter.increment();
+                    }
+                }
+            });
+            threads[index].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        counter.add(5);
+        assertEquals(4005, counter.sum());
+        counter.reset();
+        assertEquals(0, counter.sum());
+    }
+
+    @Test
+    public void recordsValuesIntoPowerOfTwoBuckets() {
+        Histogram histogram = new Histogram("depth", 4);
+        histogram.record(0);
+        histogram.record(1);
+        histogram.record(3);
+        histogram.record(1000); // past the last bucket
+        assertEquals(1, histogram.getBucketCount(0));
+        assertEquals(1, histogram.getBucketCount(1));
+        assertEquals(1, histogram.getBucketCount(2));
+        assertEquals(1, histogram.getBucketCount(3));
+        assertEquals(4, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        // each percentile reads as the top of its bucket, and the last bucket as the largest value
+        assertEquals(1, histogram.getPercentile(50));
+        assertEquals(3, histogram.getPercentile(75));
+        assertEquals(1000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void dumpsEveryMetricInOrder() {
+        StripedCounter bytesIn = new StripedCounter("bytes_in");
+        StripedCounter bytesOut = new StripedCounter("bytes_out");
+        Histogram depth = new Histogram("depth", 4);
+        MetricsRegistry registry = new MetricsRegistry(
+                new StripedCounter[] { bytesIn, bytesOut },
+                new Histogram[] { depth });
+        bytesIn.add(20);
+        depth.record(2);
+
+        StringWriter output = new StringWriter();
+        registry.dump("", new PrintWriter(output, true));
+        assertEquals("bytes_in: 20\nbytes_out: 0\ndepth: count=1 mean=2 max=2\n  >=2: 1\n",
+                output.toString().replace(System.lineSeparator(), "\n"));
+
+        registry.reset();
+        assertEquals(0, bytesIn.sum());
+        assertEquals(0, depth.getCount());
+    }
+
+    @Test
+    public void keepsOnlyTheNewestEvents() {
+        EventRecorder recorder = new EventRecorder(EVENT_NAMES, 4);
+        for (int index = 0; index < 6; index++) {
+            recorder.record(index % 2 + 1, index);
+        }
+        recorder.record(7, 42); // an id without a name
+
+        StringWriter output = new StringWriter();
+        recorder.dump("", new PrintWriter(output, true));
+        String[] lines = output.toString().split(System.lineSeparator());
+        assertEquals(4, lines.length);
+        assertTrue(lines[0].endsWith(" disconnected 3"));
+        assertTrue(lines[1].endsWith(" connected 4"));
+        assertTrue(lines[2].endsWith(" disconnected 5"));
+        assertTrue(lines[3].endsWith(" unknown 42"));
+    }
+}
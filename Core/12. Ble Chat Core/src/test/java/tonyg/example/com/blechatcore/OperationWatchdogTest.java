@@ -0,0 +1,92 @@
+package tonyg.example.com.blechatcore;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import tonyg.example.com.blechatcore.callbacks.OperationWatchdogCallback;
+import tonyg.example.com.blechatcore.sim.SimulatedClock;
+import tonyg.example.com.blechatcore.transport.OperationWatchdog;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that an OperationWatchdog reports callbacks that never arrive, and only those
+ */
+public class OperationWatchdogTest {
+    private static final int CONNECT = 1;
+    private static final int WRITE = 2;
+    private static final long TIMEOUT = 1000000;
+
+    private final SimulatedClock mClock = new SimulatedClock();
+    private final List<int[]> mTimeouts = new ArrayList<>();
+    private final OperationWatchdog mWatchdog = new OperationWatchdog(mClock, new OperationWatchdogCallback() {
+        @Override
+        public void onOperationTimedOut(int operation, int numTimeouts) {
+            mTimeouts.add(new int[] { operation, numTimeouts });
+        }
+    });
+
+    @Test
+    public void staysQuietWhenCallbacksArrive() {
+        mWatchdog.start(CONNECT, TIMEOUT);
+        mClock.runUntil(mClock.now() + TIMEOUT / 2);
+        mWatchdog.complete(CONNECT);
+        for (int index = 0; index < 10; index++) {
+            mWatchdog.start(WRITE, TIMEOUT);
+            mClock.runUntil(mClock.now() + TIMEOUT / 2);
+            mWatchdog.complete(WRITE);
+        }
+        mClock.runUntilIdle(mClock.now() + 10 * TIMEOUT);
+        assertTrue(mTimeouts.isEmpty());
+        assertEquals(OperationWatchdog.NO_OPERATION, mWatchdog.getOperation());
+    }
+
+    @Test
+    public void countsTimeoutsInARowUntilTheCallbackArrives() {
+        mWatchdog.start(WRITE, TIMEOUT);
+        mClock.runUntil(mClock.now() + TIMEOUT);
+        assertEquals(1, mTimeouts.size());
+        assertArrayEquals(new int[] { WRITE, 1 }, mTimeouts.get(0));
+
+        // retried, and stalled again
+        mWatchdog.start(WRITE, TIMEOUT);
+        mClock.runUntil(mClock.now() + TIMEOUT);
+        assertArrayEquals(new int[] { WRITE, 2 }, mTimeouts.get(1));
+
+        // the late callback resets the count
+        mWatchdog.complete(WRITE);
+        mWatchdog.start(WRITE, TIMEOUT);
+        mClock.runUntil(mClock.now() + TIMEOUT);
+        assertArrayEquals(new int[] { WRITE, 1 }, mTimeouts.get(2));
+        assertEquals(3, mWatchdog.getNumStalls());
+
+        // nothing more until the operation is started again
+        mClock.runUntilIdle(mClock.now() + 10 * TIMEOUT);
+        assertEquals(3, mTimeouts.size());
+    }
+
+    @Test
+    public void keepsOneDeadlinePending() {
+        for (int index = 0; index < 100; index++) {
+            mWatchdog.start(WRITE, TIMEOUT);
+            mClock.runUntil(mClock.now() + TIMEOUT / 10);
+        }
+        assertTrue(mClock.hasPendingTasks());
+        mWatchdog.complete(WRITE);
+        assertFalse(mClock.hasPendingTasks());
+        assertTrue(mTimeouts.isEmpty());
+    }
+
+    @Test
+    public void ignoresDeadlinesFromBeforeACancel() {
+        mWatchdog.start(CONNECT, TIMEOUT);
+        mWatchdog.cancel();
+        mWatchdog.start(WRITE, 3 * TIMEOUT);
+        mClock.runUntil(mClock.now() + 2 * TIMEOUT);
+        assertTrue(mTimeouts.isEmpty());
+        mClock.runUntil(mClock.now() + TIMEOUT);
+        assertArrayEquals(new int[] { WRITE, 1 }, mTimeouts.get(0));
+    }
+}
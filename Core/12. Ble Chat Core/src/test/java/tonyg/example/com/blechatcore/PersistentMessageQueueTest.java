@@ -0,0 +1,162 @@
+package tonyg.example.com.blechatcore;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import tonyg.example.com.blechatcore.codec.Utf8StreamDecoder;
+import tonyg.example.com.blechatcore.queue.PersistentMessageQueue;
+import tonyg.example.com.blechatcore.sim.SimulatedClock;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that queued messages survive reopening, and that only committed ones are forgotten
+ */
+public class PersistentMessageQueueTest {
+    private static final int MAX_MESSAGE_LENGTH = 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final SimulatedClock mClock = new SimulatedClock();
+
+    private PersistentMessageQueue open(File file) throws Exception {
+        return new PersistentMessageQueue(file, MAX_MESSAGE_LENGTH, mClock);
+    }
+
+    private static void offer(PersistentMessageQueue queue, String text) throws Exception {
+        byte[] message = text.getBytes(Utf8StreamDecoder.CHARSET);
+        queue.offer(message, 0, message.length);
+    }
+
+    private static String take(PersistentMessageQueue queue) throws Exception {
+        int length = queue.peek();
+        if (length < 0) return null;
+        String text = new String(queue.getMessageBytes(), 0, length, Utf8StreamDecoder.CHARSET);
+        queue.remove();
+        return text;
+    }
+
+    @Test
+    public void keepsMessagesUntilTheyAreCommitted() throws Exception {
+        File file = mFolder.newFile();
+        PersistentMessageQueue queue = open(file);
+        offer(queue, "one");
+        offer(queue, "two");
+        offer(queue, "three");
+        assertEquals("one", take(queue));
+        assertEquals("two", take(queue));
+        queue.commit();
+        assertEquals("three", take(queue));
+        queue.close();
+
+        // "three" was removed but never committed, so it comes back
+        queue = open(file);
+        assertEquals(1, queue.getNumMessages());
+        assertEquals("three", take(queue));
+        assertNull(take(queue));
+        queue.commit();
+        queue.close();
+
+        // the file starts over once everything is committed
+        assertEquals(8, file.length());
+        queue = open(file);
+        assertTrue(queue.isEmpty());
+        queue.close();
+    }
+
+    @Test
+    public void rewindPutsBackUncommittedMessages() throws Exception {
+        PersistentMessageQueue queue = open(mFolder.newFile());
+        offer(queue, "one");
+        offer(queue, "two");
+        take(queue);
+        queue.commit();
+        take(queue);
+        queue.rewind();
+        assertEquals("two", take(queue));
+        queue.close();
+    }
+
+    @Test
+    public void dropsAMessageCutOffByACrash() throws Exception {
+        File file = mFolder.newFile();
+        PersistentMessageQueue queue = open(file);
+        offer(queue, "whole message");
+        offer(queue, "torn message");
+        queue.close();
+
+        RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+        truncated.setLength(truncated.length() - 3);
+        truncated.close();
+
+        queue = open(file);
+        assertEquals(1, queue.getNumMessages());
+        assertEquals("whole message", take(queue));
+        // new messages go after the last whole one
+        offer(queue, "after the crash");
+        assertEquals("after the crash", take(queue));
+        queue.close();
+    }
+
+    @Test
+    public void dropsAMessageThatGoesBadAfterItWasQueued() throws Exception {
+        File file = mFolder.newFile();
+        PersistentMessageQueue queue = open(file);
+        offer(queue, "good message");
+        offer(queue, "bad message");
+        offer(queue, "lost message");
+
+        // flip a byte in the second message's text
+        long position = 8 + 8 + "good message".length() + 8;
+        RandomAccessFile corrupted = new RandomAccessFile(file, "rw");
+        corrupted.seek(position);
+        int value = corrupted.read();
+        corrupted.seek(position);
+        corrupted.write(value ^ 0xFF);
+        corrupted.close();
+
+        assertEquals("good message", take(queue));
+        assertEquals(-1, queue.peek());
+        assertTrue(queue.isEmpty());
+        // the queue keeps working, and new messages go where the bad one was
+        offer(queue, "after the damage");
+        assertEquals("after the damage", take(queue));
+        queue.commit();
+        queue.close();
+
+        queue = open(file);
+        assertTrue(queue.isEmpty());
+        queue.close();
+    }
+
+    @Test
+    public void batchesSyncs() throws Exception {
+        PersistentMessageQueue queue = open(mFolder.newFile());
+        queue.setSyncBatch(4, 50000);
+        for (int index = 0; index < 3; index++) {
+            offer(queue, "message " + index);
+        }
+        // three appends wait for the timer, rather than syncing one by one
+        assertTrue(mClock.hasPendingTasks());
+        mClock.runUntilIdle(mClock.now() + 100000);
+        assertFalse(mClock.hasPendingTasks());
+
+        byte[] message = new byte[MAX_MESSAGE_LENGTH + 1];
+        Arrays.fill(message, (byte) 'x');
+        queue.offer(message, 0, MAX_MESSAGE_LENGTH);
+        try {
+            queue.offer(message, 0, message.length);
+            fail("Message longer than the maximum was queued");
+        } catch (Exception e) {
+            // expected
+        }
+        assertEquals(4, queue.getNumMessages());
+        queue.close();
+    }
+}
@@ -0,0 +1,294 @@
+package tonyg.example.com.blechatcore;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import tonyg.example.com.blechatcore.LinkFixtures.Pipe;
+import tonyg.example.com.blechatcore.LinkFixtures.RecordingCallback;
+import tonyg.example.com.blechatcore.callbacks.EchoSessionCallback;
+import tonyg.example.com.blechatcore.callbacks.ReliableLinkCallback;
+import tonyg.example.com.blechatcore.codec.Utf8StreamDecoder;
+import tonyg.example.com.blechatcore.queue.PersistentMessageQueue;
+import tonyg.example.com.blechatcore.sim.EchoSimulation;
+import tonyg.example.com.blechatcore.sim.LinkParameters;
+import tonyg.example.com.blechatcore.sim.SimulatedClock;
+import tonyg.example.com.blechatcore.transport.ReliableLink;
+
+import static org.junit.Assert.*;
+import static tonyg.example.com.blechatcore.LinkFixtures.PACKET_LENGTH;
+import static tonyg.example.com.blechatcore.LinkFixtures.QUEUE_CAPACITY;
+
+/**
+ * Checks that a ReliableLink recovers dropped packets and keeps messages in order
+ */
+public class ReliableLinkTest {
+    private static final long ONE_SECOND = 1000000;
+
+    private static class SessionCallback extends ReliableLinkCallback {
+        int mNumSessions = 0;
+        int mNumAllAcked = 0;
+        boolean mIsResumed;
+
+        @Override
+        public void onSessionStarted(int sessionId, boolean isResumed) {
+            mNumSessions++;
+            mIsResumed = isResumed;
+        }
+
+        @Override
+        public void onAllPacketsAcked() {
+            mNumAllAcked++;
+        }
+    }
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final SimulatedClock mClock = new SimulatedClock();
+    private final Pipe mForward = new Pipe(mClock);
+    private final Pipe mBackward = new Pipe(mClock);
+    private final RecordingCallback mReceiverCallback = new RecordingCallback();
+    private ReliableLink mSender, mReceiver;
+    private MessageChannel mSenderChannel;
+
+    private void connect() {
+        mSender = new ReliableLink(mForward, mClock);
+        mSenderChannel = new MessageChannel(mSender, QUEUE_CAPACITY, new RecordingCallback());
+        mSender.attach(mSenderChannel);
+        mForward.mSender = mSender;
+        mBackward.mReceiver = mSender;
+        connectReceiver(new ReliableLink(mBackward, mClock));
+    }
+
+    private void connectReceiver(ReliableLink receiver) {
+        mReceiver = receiver;
+        mReceiver.attach(new MessageChannel(mReceiver, QUEUE_CAPACITY, mReceiverCallback));
+        mForward.mReceiver = mReceiver;
+        mBackward.mSender = mReceiver;
+    }
+
+    private List<byte[]> sendMessages(int numMessages) throws Exception {
+        List<byte[]> messages = new ArrayList<>();
+        for (int index = 0; index < numMessages; index++) {
+            byte[] message = ("message number " + index + " goes here").getBytes(Utf8StreamDecoder.CHARSET);
+            messages.add(message);
+            assertTrue(mSenderChannel.sendMessage(message, 0, message.length));
+        }
+        return messages;
+    }
+
+    /**
+     * Move every stored message into the sending MessageChannel, the way the Central's outbox does
+     */
+    private void drain(PersistentMessageQueue outbox) throws Exception {
+        int length;
+        while ((length = outbox.peek()) >= 0) {
+            assertTrue(mSenderChannel.sendMessage(outbox.getMessageBytes(), 0, length));
+            outbox.remove();
+        }
+    }
+
+    private void assertReceived(List<byte[]> messages) {
+        assertEquals(messages.size(), mReceiverCallback.mMessages.size());
+        for (int index = 0; index < messages.size(); index++) {
+            assertArrayEquals(messages.get(index), mReceiverCallback.mMessages.get(index));
+        }
+    }
+
+    private void disconnect() {
+        mForward.mConnection++;
+        mBackward.mConnection++;
+        mSender.onDisconnected();
+        mReceiver.onDisconnected();
+    }
+
+    @Test
+    public void resendsDroppedPacketsAndDeliversInOrder() throws Exception {
+        connect();
+        // lose the first packet, one in the middle of the window, and a retransmission
+        mForward.mDrops.addAll(Arrays.asList(0, 3, 4, 9));
+        List<byte[]> messages = sendMessages(20);
+        mClock.runUntilIdle(10 * ONE_SECOND);
+
+        assertReceived(messages);
+        assertTrue(mSender.getNumRetransmits() >= 3);
+        assertEquals(0, mSender.getNumUnackedPackets());
+    }
+
+    @Test
+    public void resumesTheSessionAfterAReconnect() throws Exception {
+        connect();
+        SessionCallback sessionCallback = new SessionCallback();
+        mSender.setReliableLinkCallback(sessionCallback);
+        mSender.openSession();
+        mClock.runUntilIdle(ONE_SECOND);
+        int sessionId = mSender.getSessionId();
+        assertNotEquals(0, sessionId);
+        assertEquals(sessionId, mReceiver.getSessionId());
+        assertFalse(sessionCallback.mIsResumed);
+
+        // drop the connection part way through
+        List<byte[]> messages = sendMessages(20);
+        mClock.runUntil(mClock.now() + 150000);
+        int numReceivedBeforeDisconnect = mReceiverCallback.mMessages.size();
+        assertTrue(numReceivedBeforeDisconnect > 0);
+        assertTrue(numReceivedBeforeDisconnect < messages.size());
+        disconnect();
+        mClock.runUntilIdle(mClock.now() + ONE_SECOND);
+        int numPacketsBeforeReconnect = mForward.mNumPacketsSent;
+
+        mSender.openSession();
+        mClock.runUntilIdle(mClock.now() + 10 * ONE_SECOND);
+
+        assertEquals(2, sessionCallback.mNumSessions);
+        assertTrue(sessionCallback.mIsResumed);
+        assertEquals(sessionId, mSender.getSessionId());
+        assertReceived(messages);
+        // what was delivered before the disconnect is not sent again, so it takes
+        // fewer packets than starting over would
+        int numFramedBytes = 0;
+        for (byte[] message : messages) {
+            numFramedBytes += 2 + message.length; // type and one byte length
+        }
+        int maxPayloadLength = PACKET_LENGTH - ReliableLink.HEADER_LENGTH;
+        int numPacketsToStartOver = (numFramedBytes + maxPayloadLength - 1) / maxPayloadLength;
+        int numPacketsAfterReconnect = mForward.mNumPacketsSent - numPacketsBeforeReconnect;
+        assertTrue(numPacketsAfterReconnect + " vs " + numPacketsToStartOver, numPacketsAfterReconnect < numPacketsToStartOver);
+    }
+
+    @Test
+    public void startsOverWhenThePeerForgotTheSession() throws Exception {
+        connect();
+        SessionCallback sessionCallback = new SessionCallback();
+        mSender.setReliableLinkCallback(sessionCallback);
+        mSender.openSession();
+        mClock.runUntilIdle(ONE_SECOND);
+        int sessionId = mSender.getSessionId();
+
+        disconnect();
+        connectReceiver(new ReliableLink(mBackward, mClock));
+        mSender.openSession();
+        mClock.runUntilIdle(mClock.now() + ONE_SECOND);
+
+        assertFalse(sessionCallback.mIsResumed);
+        assertNotEquals(sessionId, mSender.getSessionId());
+        assertEquals(mReceiver.getSessionId(), mSender.getSessionId());
+
+        List<byte[]> messages = sendMessages(5);
+        mClock.runUntilIdle(mClock.now() + ONE_SECOND);
+        assertReceived(messages);
+    }
+
+    @Test
+    public void keepsStoredMessagesUntilThePeerAcksThem() throws Exception {
+        connect();
+        SessionCallback sessionCallback = new SessionCallback();
+        mSender.setReliableLinkCallback(sessionCallback);
+        mSender.openSession();
+        mClock.runUntilIdle(ONE_SECOND);
+        RecordingCallback senderCallback = new RecordingCallback();
+        mSenderChannel = new MessageChannel(mSender, QUEUE_CAPACITY, senderCallback);
+        mSender.attach(mSenderChannel);
+
+        File file = mFolder.newFile();
+        PersistentMessageQueue outbox = new PersistentMessageQueue(file, QUEUE_CAPACITY, mClock);
+        List<byte[]> messages = new ArrayList<>();
+        for (int index = 0; index < 4; index++) {
+            byte[] message = ("stored message " + index).getBytes(Utf8StreamDecoder.CHARSET);
+            messages.add(message);
+            outbox.offer(message, 0, message.length);
+        }
+
+        // the window fills, but none of it arrives, so nothing is acked
+        for (int index = 0; index < 100; index++) {
+            mForward.mDrops.add(mForward.mNumPacketsSent + index);
+        }
+        drain(outbox);
+        mClock.runUntil(mClock.now() + 100000);
+        assertEquals(1, senderCallback.mNumAllSent);
+        assertTrue(mSender.getNumUnackedPackets() > 0);
+        assertEquals(0, sessionCallback.mNumAllAcked);
+
+        // the link drops and the peer forgot the session, so the window is lost with it
+        disconnect();
+        mForward.mDrops.clear();
+        connectReceiver(new ReliableLink(mBackward, mClock));
+        mSender.openSession();
+        mClock.runUntilIdle(mClock.now() + ONE_SECOND);
+        assertFalse(sessionCallback.mIsResumed);
+
+        // nothing was committed, so every message comes back
+        outbox.rewind();
+        assertEquals(messages.size(), outbox.getNumMessages());
+        mSenderChannel.reset();
+        drain(outbox);
+        mClock.runUntilIdle(mClock.now() + ONE_SECOND);
+        assertReceived(messages);
+        assertTrue(sessionCallback.mNumAllAcked > 0);
+        assertEquals(0, mSender.getNumUnackedPackets());
+
+        outbox.commit();
+        outbox.close();
+        outbox = new PersistentMessageQueue(file, QUEUE_CAPACITY, mClock);
+        assertTrue(outbox.isEmpty());
+        outbox.close();
+    }
+
+    @Test
+    public void acksMessagesEchoedFromInsideTheDelivery() throws Exception {
+        connect();
+        RecordingCallback echoCallback = new RecordingCallback();
+        mSenderChannel = new MessageChannel(mSender, QUEUE_CAPACITY, echoCallback);
+        mSender.attach(mSenderChannel);
+        // the echo goes out while the message is being passed up, so it has to carry the ack
+        EchoSession echoSession = new EchoSession(mBackward, QUEUE_CAPACITY, mClock, new EchoSessionCallback() {
+            @Override
+            public void onMessageReceived(byte[] message, int offset, int length) {
+            }
+
+            @Override
+            public void onMessageDropped(int length) {
+                fail("Echo dropped");
+            }
+        });
+        mReceiver = echoSession.getReliableLink();
+        mForward.mReceiver = mReceiver;
+        mBackward.mSender = mReceiver;
+
+        // short enough that each echo goes out in a single packet, with nothing after it to carry the ack
+        for (int index = 0; index < 10; index++) {
+            byte[] message = ("hello " + index).getBytes(Utf8StreamDecoder.CHARSET);
+            assertTrue(mSenderChannel.sendMessage(message, 0, message.length));
+            mClock.runUntilIdle(mClock.now() + ONE_SECOND);
+        }
+
+        assertEquals(10, echoCallback.mMessages.size());
+        assertEquals(0, mSender.getNumRetransmits());
+        assertEquals(0, mReceiver.getNumDuplicates());
+    }
+
+    @Test
+    public void echoesEveryMessageOverADroppyLink() {
+        LinkParameters droppyLink = new LinkParameters();
+        droppyLink.setDropRate(0.2);
+
+        EchoSimulation simulation = new EchoSimulation();
+        simulation.setNumCentrals(10);
+        simulation.setMessageLength(100);
+        simulation.setReliable(true);
+        simulation.setLinkParameters(droppyLink);
+        EchoSimulation.Result result = simulation.run(10 * ONE_SECOND);
+
+        assertTrue(result.getNumPacketsDropped() > 0);
+        assertTrue(result.getNumRetransmits() > 0);
+        assertEquals(result.getNumMessagesSent(), result.getNumMessagesEchoed());
+        assertEquals(result.getNumMessagesSent(), result.getNumMessagesReceived());
+        assertEquals(0, result.getNumErrors());
+    }
+}
@@ -0,0 +1,76 @@
+package tonyg.example.com.blechatcore;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import tonyg.example.com.blechatcore.codec.Utf8StreamDecoder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that characters split across packets decode correctly
+ */
+public class Utf8StreamDecoderTest {
+    private static final String TEXT = "caf\u00E9 \u20AC5 \uD83D\uDE00!";
+
+    @Test
+    public void decodesCharactersSplitAnywhere() {
+        byte[] bytes = TEXT.getBytes(Utf8StreamDecoder.CHARSET);
+        Utf8StreamDecoder decoder = new Utf8StreamDecoder();
+        for (int pieceLength = 1; pieceLength <= bytes.length; pieceLength++) {
+            StringBuilder output = new StringBuilder();
+            for (int offset = 0; offset < bytes.length; offset += pieceLength) {
+                decoder.decode(bytes, offset, Math.min(pieceLength, bytes.length - offset), output);
+            }
+            assertFalse(decoder.hasPartialCharacter());
+            decoder.flush(output);
+            assertEquals("piece length " + pieceLength, TEXT, output.toString());
+        }
+    }
+
+    @Test
+    public void decodesReadOnlyViews() {
+        byte[] bytes = ("xx" + TEXT + "yy").getBytes(Utf8StreamDecoder.CHARSET);
+        int length = TEXT.getBytes(Utf8StreamDecoder.CHARSET).length;
+        ByteBuffer view = ByteBuffer.wrap(bytes, 2, length).asReadOnlyBuffer();
+
+        StringBuilder output = new StringBuilder();
+        new Utf8StreamDecoder().decodeMessage(view, output);
+        assertEquals(TEXT, output.toString());
+        assertFalse(view.hasRemaining());
+        assertEquals(2 + length, view.limit());
+    }
+
+    @Test
+    public void holdsBackPartialCharacters() {
+        byte[] euro = "\u20AC".getBytes(Utf8StreamDecoder.CHARSET);
+        Utf8StreamDecoder decoder = new Utf8StreamDecoder();
+        StringBuilder output = new StringBuilder();
+
+        decoder.decode(euro, 0, 2, output);
+        assertEquals("", output.toString());
+        assertTrue(decoder.hasPartialCharacter());
+
+        decoder.decode(euro, 2, 1, output);
+        assertEquals("\u20AC", output.toString());
+    }
+
+    @Test
+    public void flushReplacesUnfinishedCharacters() {
+        byte[] euro = "\u20AC".getBytes(Utf8StreamDecoder.CHARSET);
+        Utf8StreamDecoder decoder = new Utf8StreamDecoder();
+        StringBuilder output = new StringBuilder();
+
+        decoder.decode(euro, 0, 2, output);
+        decoder.flush(output);
+        assertEquals("\uFFFD", output.toString());
+        assertFalse(decoder.hasPartialCharacter());
+
+        // the decoder starts over cleanly after a flush
+        output.setLength(0);
+        byte[] longText = new byte[1000];
+        for (int index = 0; index < longText.length; index++) longText[index] = 'x';
+        assertEquals(1000, decoder.decodeMessage(longText, 0, longText.length, output).length());
+    }
+}
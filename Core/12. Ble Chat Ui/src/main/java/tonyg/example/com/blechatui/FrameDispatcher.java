@@ -0,0 +1,102 @@
+package tonyg.example.com.blechatui;
+
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import tonyg.example.com.blechatui.callbacks.FrameDispatcherCallback;
+
+/**
+ * Hands events from Bluetooth threads to the UI thread, once per frame.
+ *
+ * Each kind of event is a bit.  post() sets its bit in a lock-free mask, and asks the
+ * Choreographer for a frame callback if none is pending, so a burst of events costs one
+ * callback instead of a Runnable each, and posting never allocates.  An event posted again
+ * before the frame is coalesced with the first.
+ *
+ * Counts the events posted and coalesced, and the frames dropped: frames that went by
+ * between a frame's vsync and the end of handling its events.
+ *
+ * Create on the UI thread.  post() can be called from any thread.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class FrameDispatcher implements Choreographer.FrameCallback {
+    /** Constants **/
+    public static final long DEFAULT_FRAME_INTERVAL_NANOS = 16666667; // 60 Hz
+
+    private final Choreographer mChoreographer;
+    private final FrameDispatcherCallback mFrameDispatcherCallback;
+    private final AtomicInteger mPendingEvents = new AtomicInteger(0);
+    private final AtomicBoolean mIsFrameScheduled = new AtomicBoolean(false);
+    private volatile long mScheduledAtNanos; // when the first event since the last frame was posted
+    private long mFrameIntervalNanos = DEFAULT_FRAME_INTERVAL_NANOS;
+
+    /**
+     * Create a new FrameDispatcher for the UI thread
+     *
+     * @param frameDispatcherCallback the FrameDispatcherCallback
+     */
+    public FrameDispatcher(FrameDispatcherCallback frameDispatcherCallback) {
+        mFrameDispatcherCallback = frameDispatcherCallback;
+        mChoreographer = Choreographer.getInstance();
+    }
+
+    /**
+     * Set the display's frame interval, for counting dropped frames
+     *
+     * @param refreshRate the display refresh rate, in frames per second
+     */
+    public void setRefreshRate(float refreshRate) {
+        if (refreshRate > 0) {
+            mFrameIntervalNanos = (long) (1000000000L / refreshRate);
+        }
+    }
+
+    /**
+     * Post events to be handled on the next frame
+     *
+     * @param events the events, OR'd together
+     */
+    public void post(int events) {
+        UiMetrics.UI_EVENTS.increment();
+        int pendingEvents;
+        do {
+            pendingEvents = mPendingEvents.get();
+        } while (!mPendingEvents.compareAndSet(pendingEvents, pendingEvents | events));
+        if ((pendingEvents & events) != 0) {
+            UiMetrics.UI_EVENTS_COALESCED.increment();
+        }
+        if (mIsFrameScheduled.compareAndSet(false, true)) {
+            mScheduledAtNanos = System.nanoTime();
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Drop any pending events, for example when the Activity is destroyed
+     */
+    public void cancel() {
+        mChoreographer.removeFrameCallback(this);
+        mPendingEvents.set(0);
+        mIsFrameScheduled.set(false);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        long scheduledAtNanos = mScheduledAtNanos;
+        // clear the flag first, so an event posted while these are handled gets another frame
+        mIsFrameScheduled.set(false);
+        int events = mPendingEvents.getAndSet(0);
+        if (events == 0) return;
+
+        UiMetrics.UI_LATENCY_US.record((System.nanoTime() - scheduledAtNanos) / 1000);
+        mFrameDispatcherCallback.onEvents(events);
+        long numFramesDropped = (System.nanoTime() - frameTimeNanos) / mFrameIntervalNanos;
+        if (numFramesDropped > 0) {
+            UiMetrics.UI_FRAMES_DROPPED.add(numFramesDropped);
+        }
+    }
+}
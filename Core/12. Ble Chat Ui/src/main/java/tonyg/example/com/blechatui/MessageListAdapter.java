@@ -0,0 +1,89 @@
+package tonyg.example.com.blechatui;
+
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import tonyg.example.com.blechatcore.log.ChatHistory;
+
+/**
+ * Shows every message in a ChatLog as a row in a RecyclerView.
+ *
+ * Only the rows on screen are bound, and their text comes from a ChatHistory, which holds
+ * a bounded window of messages and reads older ones back from the log as they scroll into
+ * view.  So showing a new message costs the same however long the conversation has run.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class MessageListAdapter extends RecyclerView.Adapter<MessageListAdapter.ViewHolder> {
+    private ChatHistory mChatHistory;
+    private long mFirstSequence = 0; // the message in the first row
+    private int mNumMessages = 0;
+
+    /**
+     * Show the messages from a ChatHistory, replacing any shown before
+     *
+     * @param chatHistory the ChatHistory
+     */
+    public void setChatHistory(ChatHistory chatHistory) {
+        mChatHistory = chatHistory;
+        mFirstSequence = chatHistory.getFirstSequence();
+        mNumMessages = (int) (chatHistory.getNextSequence() - mFirstSequence);
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Add rows for messages logged since the last update, and remove
+     * rows for messages the log has deleted.  Call on the UI thread
+     *
+     * @return the number of rows added
+     */
+    public int update() {
+        if (mChatHistory == null) return 0;
+        long firstSequence = mChatHistory.getFirstSequence();
+        if (firstSequence > mFirstSequence) {
+            int numRemoved = (int) Math.min(mNumMessages, firstSequence - mFirstSequence);
+            mFirstSequence = firstSequence;
+            mNumMessages -= numRemoved;
+            notifyItemRangeRemoved(0, numRemoved);
+        }
+        int numAdded = (int) (mChatHistory.getNextSequence() - mFirstSequence) - mNumMessages;
+        if (numAdded > 0) {
+            mNumMessages += numAdded;
+            notifyItemRangeInserted(mNumMessages - numAdded, numAdded);
+        }
+        return numAdded;
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.list_item_message, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        String messageText = mChatHistory.get(mFirstSequence + position);
+        holder.mMessageTV.setText(messageText != null ? messageText : "");
+    }
+
+    @Override
+    public int getItemCount() {
+        return mNumMessages;
+    }
+
+    /**
+     * One message row
+     */
+    public static class ViewHolder extends RecyclerView.ViewHolder {
+        private final TextView mMessageTV;
+
+        public ViewHolder(View itemView) {
+            super(itemView);
+            mMessageTV = (TextView) itemView.findViewById(R.id.message_text);
+        }
+    }
+}
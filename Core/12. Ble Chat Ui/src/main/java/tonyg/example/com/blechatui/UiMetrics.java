@@ -0,0 +1,22 @@
+package tonyg.example.com.blechatui;
+
+import tonyg.example.com.blechatcore.metrics.Histogram;
+import tonyg.example.com.blechatcore.metrics.StripedCounter;
+
+/**
+ * The counters and histograms kept by the FrameDispatcher.
+ *
+ * Each app reports them in its own MetricsRegistry, alongside its Bluetooth metrics
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class UiMetrics {
+    /** Counters **/
+    public static final StripedCounter UI_EVENTS = new StripedCounter("ui_events");
+    public static final StripedCounter UI_EVENTS_COALESCED = new StripedCounter("ui_events_coalesced");
+    public static final StripedCounter UI_FRAMES_DROPPED = new StripedCounter("ui_frames_dropped");
+
+    /** Histograms **/
+    public static final Histogram UI_LATENCY_US = new Histogram("ui_latency_us", 24);
+}
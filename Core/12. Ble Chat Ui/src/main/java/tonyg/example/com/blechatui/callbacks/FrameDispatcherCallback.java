@@ -0,0 +1,17 @@
+package tonyg.example.com.blechatui.callbacks;
+
+/**
+ * Relay events from a FrameDispatcher
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public abstract class FrameDispatcherCallback {
+    /**
+     * Handle every event posted since the last frame, on the UI thread.
+     * An event posted more than once is only passed once, so read the latest state
+     *
+     * @param events the events posted, OR'd together
+     */
+    public abstract void onEvents(final int events);
+}
@@ -10,15 +10,26 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.Toolbar;
 import android.util.Log;
 import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+import tonyg.example.com.blechatcore.log.ChatHistory;
+import tonyg.example.com.blechatcore.log.ChatLog;
+import tonyg.example.com.blechatui.FrameDispatcher;
+import tonyg.example.com.blechatui.MessageListAdapter;
+import tonyg.example.com.blechatui.callbacks.FrameDispatcherCallback;
 import tonyg.example.com.examplebleperipheral.ble.EchoServer;
 import tonyg.example.com.examplebleperipheral.ble.callbacks.EchoServerCallback;
-import tonyg.example.com.examplebleperipheral.utilities.DataConverter;
+import tonyg.example.com.examplebleperipheral.utilities.EventTrace;
+import tonyg.example.com.examplebleperipheral.utilities.Metrics;
 
 
 /**
@@ -31,12 +42,23 @@ public class MainActivity extends AppCompatActivity {
     /** Constants **/
     private static final String TAG = MainActivity.class.getSimpleName();
     private static final int REQUEST_ENABLE_BT = 1;
+    // messages a Central is sent when it joins, so it can catch up on the conversation
+    private static final int NUM_REPLAYED_MESSAGES = 50;
+
+    /** UI events, posted from Bluetooth threads and handled once per frame **/
+    private static final int EVENT_CENTRALS_CHANGED = 1;
+    private static final int EVENT_MESSAGE_WRITTEN = 1 << 1;
 
     /** Bluetooth Stuff **/
     private EchoServer mEchoServer;
 
+    /** Chat history, read back from the EchoServer's ChatLog **/
+    private final MessageListAdapter mMessageListAdapter = new MessageListAdapter();
+
     /** UI Stuff **/
-    private TextView mAdvertisingNameTV, mCharacteristicLogTV;
+    private FrameDispatcher mFrameDispatcher;
+    private TextView mAdvertisingNameTV;
+    private RecyclerView mCharacteristicLogRV;
     private Switch mBluetoothOnSwitch,
             mCentralConnectedSwitch;
 
@@ -54,6 +76,9 @@ public class MainActivity extends AppCompatActivity {
 
 
         loadUI();
+
+        mFrameDispatcher = new FrameDispatcher(mFrameDispatcherCallback);
+        mFrameDispatcher.setRefreshRate(getWindowManager().getDefaultDisplay().getRefreshRate());
     }
 
     @Override
@@ -61,6 +86,7 @@ public class MainActivity extends AppCompatActivity {
         super.onPause();
         // stop advertising when the activity pauses
         mEchoServer.stopAdvertising();
+        mEchoServer.close();
     }
 
     @Override
@@ -73,6 +99,23 @@ public class MainActivity extends AppCompatActivity {
     public void onDestroy() {
         super.onDestroy();
         unregisterReceiver(mBleBroadcastReceiver);
+        mFrameDispatcher.cancel();
+    }
+
+    /**
+     * Print the Peripheral metrics with "adb shell dumpsys activity top"
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.print(prefix);
+        writer.println("Metrics:");
+        Metrics.REGISTRY.dump(prefix + "  ", writer);
+        if (EventTrace.ENABLED) {
+            writer.print(prefix);
+            writer.println("Event trace:");
+            EventTrace.dump(prefix + "  ", writer);
+        }
     }
 
 
@@ -81,11 +124,16 @@ public class MainActivity extends AppCompatActivity {
      */
     public void loadUI() {
         mAdvertisingNameTV = (TextView)findViewById(R.id.advertising_name);
-        mCharacteristicLogTV = (TextView)findViewById(R.id.characteristic_log);
+        mCharacteristicLogRV = (RecyclerView)findViewById(R.id.characteristic_log);
         mBluetoothOnSwitch = (Switch)findViewById(R.id.bluetooth_on);
         mCentralConnectedSwitch = (Switch)findViewById(R.id.central_connected);
 
         mAdvertisingNameTV.setText(EchoServer.ADVERTISING_NAME);
+
+        LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        layoutManager.setStackFromEnd(true);
+        mCharacteristicLogRV.setLayoutManager(layoutManager);
+        mCharacteristicLogRV.setAdapter(mMessageListAdapter);
     }
 
     /**
@@ -93,8 +141,17 @@ public class MainActivity extends AppCompatActivity {
      */
     public void initializeBluetooth() {
         // reset connection variables
+        if (mEchoServer != null) {
+            mEchoServer.close();
+        }
         try {
             mEchoServer = new EchoServer(this, mBlePeripheralCallback);
+            mEchoServer.setHistoryReplay(NUM_REPLAYED_MESSAGES);
+            ChatLog chatLog = mEchoServer.getChatLog();
+            if (chatLog != null) {
+                mMessageListAdapter.setChatHistory(new ChatHistory(chatLog, ChatHistory.DEFAULT_CAPACITY));
+                mCharacteristicLogRV.scrollToPosition(Math.max(0, mMessageListAdapter.getItemCount() - 1));
+            }
         } catch (Exception e) {
             Log.e(TAG, "Could not initialize bluetooth");
             Log.e(TAG, e.getMessage());
@@ -132,41 +189,22 @@ public class MainActivity extends AppCompatActivity {
 
 
     /**
-     * Event trigger when Central has connected
-     *
-     * @param bluetoothDevice
-     */
-    public void onBleCentralConnected(final BluetoothDevice bluetoothDevice) {
-        mCentralConnectedSwitch.setChecked(true);
-    }
-
-    /**
-     * Event trigger when Central has disconnected
-     * @param bluetoothDevice
+     * Event trigger when Centrals have connected or disconnected
      */
-    public void onBleCentralDisconnected(final BluetoothDevice bluetoothDevice) {
-        mCentralConnectedSwitch.setChecked(false);
+    public void onBleCentralsChanged() {
+        // other Centrals may still be connected
+        mCentralConnectedSwitch.setChecked(!mEchoServer.getBlePeripheral().getConnectedDevices().isEmpty());
     }
 
     /**
-     * Event trigger when Characteristic has been written to
-     *
-     * @param value the byte value being written
+     * Event trigger when Characteristics have been written to.  The EchoServer has
+     * already logged the messages, so show what is new in the log.
+     * Follow new messages, unless the list has been scrolled back through the history
      */
-    public void onBleMessageWritten(final byte[] value) {
-        mCharacteristicLogTV.append("\n");
-        try {
-            mCharacteristicLogTV.append(new String(value, EchoServer.CHARSET));
-        } catch (Exception e) {
-            Log.e(TAG, "error converting byte array to string");
-        }
-
-        // scroll to bottom of TextView
-        final int scrollAmount = mCharacteristicLogTV.getLayout().getLineTop(mCharacteristicLogTV.getLineCount()) - mCharacteristicLogTV.getHeight();
-        if (scrollAmount > 0) {
-            mCharacteristicLogTV.scrollTo(0, scrollAmount);
-        } else {
-            mCharacteristicLogTV.scrollTo(0, 0);
+    public void onBleMessagesWritten() {
+        boolean isAtBottom = !mCharacteristicLogRV.canScrollVertically(1);
+        if (mMessageListAdapter.update() > 0 && isAtBottom) {
+            mCharacteristicLogRV.scrollToPosition(mMessageListAdapter.getItemCount() - 1);
         }
     }
 
@@ -199,6 +237,21 @@ public class MainActivity extends AppCompatActivity {
         }
     };
 
+    /**
+     * Update the UI for everything that happened since the last frame
+     */
+    private final FrameDispatcherCallback mFrameDispatcherCallback = new FrameDispatcherCallback() {
+        @Override
+        public void onEvents(int events) {
+            if ((events & EVENT_CENTRALS_CHANGED) != 0) {
+                onBleCentralsChanged();
+            }
+            if ((events & EVENT_MESSAGE_WRITTEN) != 0) {
+                onBleMessagesWritten();
+            }
+        }
+    };
+
     /**
      * Respond to changes to the Bluetooth Peripheral state
      */
@@ -206,36 +259,15 @@ public class MainActivity extends AppCompatActivity {
 
         public void onCentralConnected(final BluetoothDevice bluetoothDevice) {
             Log.v(TAG, "Central connected");
-
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    onBleCentralConnected(bluetoothDevice);
-                }
-            });
-
+            mFrameDispatcher.post(EVENT_CENTRALS_CHANGED);
         }
         public void onCentralDisconnected(final BluetoothDevice bluetoothDevice) {
             Log.v(TAG, "Central disconnected");
-
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    onBleCentralDisconnected(bluetoothDevice);
-                }
-            });
-
+            mFrameDispatcher.post(EVENT_CENTRALS_CHANGED);
         }
-        public void onMessageWritten(final byte[] value) {
-            Log.v(TAG, "Characteristic written: "+ DataConverter.bytesToHex(value));
-
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    onBleMessageWritten(value);
-                }
-            });
-
+        public void onMessageWritten(final long sequence) {
+            // the list reads new messages back from the log, so a burst needs one update
+            mFrameDispatcher.post(EVENT_MESSAGE_WRITTEN);
         }
     };
 }
@@ -0,0 +1,225 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import android.bluetooth.le.AdvertiseData;
+import android.os.ParcelUuid;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Packs advertising fields into the 31 byte Advertising Data packet,
+ * spilling whatever doesn't fit into the 31 byte Scan Response.
+ *
+ * Field sizes are counted the same way Android serializes them:
+ * Bluetooth SIG UUIDs are sent in their 16-bit or 32-bit form,
+ * and UUIDs of the same size share one list field.
+ * Anything that fits in neither packet is left out, so advertising
+ * never fails with ADVERTISE_FAILED_DATA_TOO_LARGE.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class AdvertisingPacker {
+    /** Constants **/
+    public static final int MAX_PACKET_LENGTH = 31;
+
+    private static final int FIELD_HEADER_LENGTH = 2; // length byte and type byte
+    private static final int FLAGS_FIELD_LENGTH = 3;
+
+    private static final long BLUETOOTH_BASE_UUID_LSB = 0x800000805F9B34FBL;
+    private static final long BLUETOOTH_BASE_UUID_MSB = 0x0000000000001000L;
+
+    private static final int UUID_16_BIT = 0;
+    private static final int UUID_32_BIT = 1;
+    private static final int UUID_128_BIT = 2;
+    private static final int[] UUID_LENGTHS = { 2, 4, 16 };
+
+    private final Packet mAdvertisePacket;
+    private final Packet mScanResponsePacket;
+    private boolean mHasPrimaryService = false;
+
+    /**
+     * Create a new AdvertisingPacker
+     *
+     * @param isConnectable <b>true</b> if the Peripheral is connectable, in which case Android adds a Flags field
+     */
+    public AdvertisingPacker(boolean isConnectable) {
+        mAdvertisePacket = new Packet(isConnectable ? FLAGS_FIELD_LENGTH : 0);
+        mScanResponsePacket = new Packet(0);
+    }
+
+    /**
+     * Add the primary Service UUID.  It always goes first in the Advertising Data,
+     * so that Centrals scanning with a Service filter can find the Peripheral
+     *
+     * @param uuid the primary Service UUID
+     * @return <b>true</b> if the UUID fit
+     */
+    public boolean addPrimaryServiceUuid(UUID uuid) {
+        mHasPrimaryService = mAdvertisePacket.addServiceUuid(uuid);
+        return mHasPrimaryService;
+    }
+
+    /**
+     * Add Service Data, in the Advertising Data if it fits or the Scan Response otherwise
+     *
+     * @param uuid the Service UUID
+     * @param data the Service Data
+     * @return <b>true</b> if the Service Data fit
+     */
+    public boolean addServiceData(UUID uuid, byte[] data) {
+        return mAdvertisePacket.addServiceData(uuid, data) || mScanResponsePacket.addServiceData(uuid, data);
+    }
+
+    /**
+     * Replace Service Data added earlier with new data of the same length.
+     * The packing stays the same, so only the data changes in the next build
+     *
+     * @param uuid the Service UUID
+     * @param data the new Service Data
+     * @return <b>true</b> if the Service Data was replaced, <b>false</b> if it was left out or is a different length
+     */
+    public boolean replaceServiceData(UUID uuid, byte[] data) {
+        return mAdvertisePacket.replaceServiceData(uuid, data) || mScanResponsePacket.replaceServiceData(uuid, data);
+    }
+
+    /**
+     * Add the device name, in the Advertising Data if it fits or the Scan Response otherwise
+     *
+     * @param nameByteLength the length of the encoded device name
+     * @return <b>true</b> if the name fit
+     */
+    public boolean addDeviceName(int nameByteLength) {
+        return mAdvertisePacket.addDeviceName(nameByteLength) || mScanResponsePacket.addDeviceName(nameByteLength);
+    }
+
+    /**
+     * Add a Service UUID, in the Advertising Data if it fits or the Scan Response otherwise
+     *
+     * @param uuid the Service UUID
+     * @return <b>true</b> if the UUID fit
+     */
+    public boolean addServiceUuid(UUID uuid) {
+        return mAdvertisePacket.addServiceUuid(uuid) || mScanResponsePacket.addServiceUuid(uuid);
+    }
+
+    /**
+     * Check if the primary Service made it into the Advertising Data
+     */
+    public boolean hasPrimaryService() {
+        return mHasPrimaryService;
+    }
+
+    /**
+     * Get the Advertising Data length, in bytes
+     */
+    public int getAdvertiseDataLength() {
+        return mAdvertisePacket.mLength;
+    }
+
+    /**
+     * Get the Scan Response length, in bytes
+     */
+    public int getScanResponseLength() {
+        return mScanResponsePacket.mLength;
+    }
+
+    /**
+     * Build the Advertising Data
+     */
+    public AdvertiseData buildAdvertiseData() {
+        return mAdvertisePacket.mBuilder.build();
+    }
+
+    /**
+     * Build the Scan Response
+     *
+     * @return the Scan Response, or null if everything fit in the Advertising Data
+     */
+    public AdvertiseData buildScanResponse() {
+        if (mScanResponsePacket.mLength == 0) {
+            return null;
+        }
+        return mScanResponsePacket.mBuilder.build();
+    }
+
+    /**
+     * Work out how many bytes a UUID takes in an advertising packet
+     *
+     * @param uuid the UUID
+     * @return one of UUID_16_BIT, UUID_32_BIT, or UUID_128_BIT
+     */
+    private static int getUuidSize(UUID uuid) {
+        if (uuid.getLeastSignificantBits() != BLUETOOTH_BASE_UUID_LSB
+                || (uuid.getMostSignificantBits() & 0xFFFFFFFFL) != BLUETOOTH_BASE_UUID_MSB) {
+            return UUID_128_BIT;
+        }
+        if ((uuid.getMostSignificantBits() & 0xFFFF000000000000L) == 0) {
+            return UUID_16_BIT;
+        }
+        return UUID_32_BIT;
+    }
+
+    /**
+     * One 31 byte advertising packet
+     */
+    private static class Packet {
+        private final AdvertiseData.Builder mBuilder = new AdvertiseData.Builder();
+        private final boolean[] mHasUuidList = new boolean[UUID_LENGTHS.length];
+        private final Map<UUID, Integer> mServiceDataLengths = new HashMap<>();
+        private int mLength;
+
+        Packet(int initialLength) {
+            mLength = initialLength;
+        }
+
+        boolean fits(int fieldLength) {
+            return mLength + fieldLength <= MAX_PACKET_LENGTH;
+        }
+
+        boolean addServiceUuid(UUID uuid) {
+            int uuidSize = getUuidSize(uuid);
+            // UUIDs of the same size share one list field
+            int fieldLength = UUID_LENGTHS[uuidSize] + (mHasUuidList[uuidSize] ? 0 : FIELD_HEADER_LENGTH);
+            if (!fits(fieldLength)) {
+                return false;
+            }
+            mBuilder.addServiceUuid(new ParcelUuid(uuid));
+            mHasUuidList[uuidSize] = true;
+            mLength += fieldLength;
+            return true;
+        }
+
+        boolean addServiceData(UUID uuid, byte[] data) {
+            int fieldLength = FIELD_HEADER_LENGTH + UUID_LENGTHS[getUuidSize(uuid)] + data.length;
+            if (!fits(fieldLength)) {
+                return false;
+            }
+            mBuilder.addServiceData(new ParcelUuid(uuid), data);
+            mServiceDataLengths.put(uuid, data.length);
+            mLength += fieldLength;
+            return true;
+        }
+
+        boolean replaceServiceData(UUID uuid, byte[] data) {
+            Integer length = mServiceDataLengths.get(uuid);
+            if (length == null || length != data.length) {
+                return false;
+            }
+            // the Builder keeps one entry per Service UUID, so this overwrites the old data
+            mBuilder.addServiceData(new ParcelUuid(uuid), data);
+            return true;
+        }
+
+        boolean addDeviceName(int nameByteLength) {
+            int fieldLength = FIELD_HEADER_LENGTH + nameByteLength;
+            if (!fits(fieldLength)) {
+                return false;
+            }
+            mBuilder.setIncludeDeviceName(true);
+            mLength += fieldLength;
+            return true;
+        }
+    }
+}
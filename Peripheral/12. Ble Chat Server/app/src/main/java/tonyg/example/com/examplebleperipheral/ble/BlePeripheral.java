@@ -16,17 +16,27 @@ import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.BatteryManager;
-import android.os.ParcelUuid;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import tonyg.example.com.blechatcore.codec.GattValueWriter;
 import tonyg.example.com.examplebleperipheral.ble.callbacks.BlePeripheralCallback;
-import tonyg.example.com.examplebleperipheral.utilities.DataConverter;
+import tonyg.example.com.examplebleperipheral.utilities.EventTrace;
+import tonyg.example.com.examplebleperipheral.utilities.Metrics;
 
 import static android.content.Context.BATTERY_SERVICE;
 
@@ -42,6 +52,7 @@ public class BlePeripheral {
     private static final String TAG = BlePeripheral.class.getSimpleName();
 
     private static final int BATTERY_STATUS_CHECK_TIME_MS = 5*60*1000; // 5 minutes
+    private static final int SERVER_STATS_UPDATE_TIME_MS = 1000; // 1 second
 
     /** Peripheral and GATT Profile **/
     private String mPeripheralAdvertisingName;
@@ -58,7 +69,28 @@ public class BlePeripheral {
 
     public static final UUID BATTERY_LEVEL_CHARACTERISTIC_UUID = UUID.fromString("00002a19-0000-1000-8000-00805f9b34fb");
 
-    public static final String CHARSET = "ASCII";
+    // Optional Server Stats diagnostics Service
+    public static final UUID SERVER_STATS_SERVICE_UUID = UUID.fromString("a7d30001-5c2e-4f3b-9d6e-0b6f5e2c1a40");
+    public static final UUID SERVER_STATS_CHARACTERISTIC_UUID = UUID.fromString("a7d30002-5c2e-4f3b-9d6e-0b6f5e2c1a40");
+
+    // Server Stats Characteristic layout, little-endian:
+    // [0] uint8 connected centrals
+    // [1-2] uint16 messages per second
+    // [3-6] uint32 bytes per second
+    // [7-8] uint16 notification queue depth
+    // [9-12] uint32 dropped packets
+    public static final int SERVER_STATS_CHARACTERISTIC_LENGTH = 13;
+
+    // Server load Service Data layout, advertised so Centrals can pick the least loaded server:
+    // [0] uint8 connected centrals
+    // [1] uint8 connection capacity
+    // [2] uint8 load score, 0 (idle) to 255 (full)
+    public static final int LOAD_SERVICE_DATA_LENGTH = 3;
+    private static final int MAX_LOAD_SCORE = 255;
+    private static final int LOAD_SCORE_PER_PENDING_NOTIFICATION = 8;
+    public static final int DEFAULT_MAX_CONNECTIONS = 1;
+
+    public static final String CHARSET = "UTF-8";
     public static final int MAX_ADVERTISING_NAME_BYTE_LENGTH = 20;
 
     /** Advertising settings **/
@@ -76,6 +108,21 @@ public class BlePeripheral {
     // - ADVERTISE_TX_POWER_ULTRA_LOW
     int mTransmissionPower = AdvertiseSettings.ADVERTISE_TX_POWER_HIGH;
 
+    // keep advertising until this many Centrals are connected
+    private int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+
+    // always advertise this Service UUID first, so that it is visible to filtered scans
+    private UUID mPrimaryServiceUuid;
+
+    // advertise the server load as Service Data under this Service UUID, or null to skip it
+    private UUID mLoadServiceDataUuid;
+
+    // Advertising Settings and Data are only rebuilt when something they depend on changes.
+    // A change in load only swaps the load bytes into the cached packing
+    private AdvertiseSettings mAdvertiseSettings;
+    private AdvertisingPacker mAdvertisingPacker;
+    private AdvertiseData mAdvertiseData, mScanResponse;
+    private int mAdvertisedLoad; // the packed server load the cached AdvertiseData was built with
 
 
     /** Callback Handlers **/
@@ -86,15 +133,46 @@ public class BlePeripheral {
     private BluetoothLeAdvertiser mBluetoothAdvertiser;
 
     private BluetoothGattServer mGattServer;
-    private BluetoothGattService mDeviceInformationService, mBatteryLevelService;
+    private BluetoothGattService mDeviceInformationService, mBatteryLevelService, mServerStatsService;
     private BluetoothGattCharacteristic mDeviceNameCharacteristic,
             mModelNumberCharacteristic,
             mSerialNumberCharacteristic,
-            mBatteryLevelCharactersitic;
+            mBatteryLevelCharactersitic,
+            mServerStatsCharacteristic;
+    private final Set<BluetoothDevice> mConnectedDevices = new CopyOnWriteArraySet<BluetoothDevice>();
+    // the Centrals that enabled notifications, by Characteristic UUID, then Bluetooth address
+    private final ConcurrentHashMap<UUID, Set<String>> mSubscribers = new ConcurrentHashMap<>();
+
+    // the GATT Server drops a Service added before the last one is done, so they are added one at a time
+    private final ArrayDeque<BluetoothGattService> mPendingServices = new ArrayDeque<>();
+    private boolean mIsAddingService = false;
+
+    // updates the battery level and the Server Stats
+    private Timer mTimer;
 
     private Context mContext;
     private String mModelNumber = "";
     private String mSerialNumber = "";
+    private boolean mIsServerStatsEnabled = false;
+
+    /** Characteristic values, encoded in place **/
+    private final byte[] mBatteryLevelValue = new byte[1];
+    private final GattValueWriter mBatteryLevelWriter = new GattValueWriter();
+    private final GattValueWriter mServerStatsWriter = new GattValueWriter();
+
+    /** Server Stats, encoded into a scratch array and published as a copy, since reads may come in at any time **/
+    private final byte[] mServerStatsValue = new byte[SERVER_STATS_CHARACTERISTIC_LENGTH];
+    private final byte[] mLastServerStatsValue = new byte[SERVER_STATS_CHARACTERISTIC_LENGTH];
+    private long mLastNumMessages, mLastNumBytes;
+
+    /** Flow control stuff **/
+    private final AtomicInteger mNumPendingNotifications = new AtomicInteger();
+    // notifications waiting for each Central, by Bluetooth address
+    private final ConcurrentHashMap<String, NotificationQueue> mNotificationQueues = new ConcurrentHashMap<>();
+
+    /** Fast-ack stuff **/
+    private HandlerThread mWriteThread;
+    private volatile Handler mWriteHandler; // handles writes after they are answered, or null to handle them first
 
 
     /**
@@ -177,6 +255,23 @@ public class BlePeripheral {
         mSerialNumber = serialNumber;
     }
 
+    /**
+     * Enable or disable the Server Stats diagnostics Service.
+     * Must be called before setupDevice()
+     *
+     * @param isEnabled <b>true</b> to host the Server Stats Service
+     */
+    public void setServerStatsEnabled(boolean isEnabled) {
+        mIsServerStatsEnabled = isEnabled;
+    }
+
+    /**
+     * Get the Centrals currently connected to this Peripheral
+     */
+    public Set<BluetoothDevice> getConnectedDevices() {
+        return mConnectedDevices;
+    }
+
     /**
      * Get the actual battery level
      */
@@ -228,23 +323,166 @@ public class BlePeripheral {
         mSerialNumberCharacteristic.setValue(mSerialNumber);
 
         // add Services to Peripheral
-        mGattServer.addService(mDeviceInformationService);
-        mGattServer.addService(mBatteryLevelService);
+        queueService(mDeviceInformationService);
+        queueService(mBatteryLevelService);
 
         // update the battery level every BATTERY_STATUS_CHECK_TIME_MS milliseconds
         TimerTask updateBatteryTask = new TimerTask() {
             @Override
             public void run() {
-                mBatteryLevelCharactersitic.setValue(getBatteryLevel(), BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-                for (BluetoothDevice device : mGattServer.getConnectedDevices()) {
-                    mGattServer.notifyCharacteristicChanged(device, mBatteryLevelCharactersitic, true);
-                }
+                mBatteryLevelWriter.wrap(mBatteryLevelValue).putUnsignedSaturated(getBatteryLevel(), 1);
+                mBatteryLevelCharactersitic.setValue(mBatteryLevelValue);
+                notifySubscribers(mBatteryLevelCharactersitic, mBatteryLevelValue, true);
             }
         };
-        Timer randomStringTimer = new Timer();
+        mTimer = new Timer();
         // schedule the battery update and run it once immediately
-        randomStringTimer.schedule(updateBatteryTask, 0, BATTERY_STATUS_CHECK_TIME_MS);
+        mTimer.schedule(updateBatteryTask, 0, BATTERY_STATUS_CHECK_TIME_MS);
+
+        if (mIsServerStatsEnabled) {
+            setupServerStatsService();
+
+            // update the server stats every SERVER_STATS_UPDATE_TIME_MS milliseconds
+            TimerTask updateServerStatsTask = new TimerTask() {
+                @Override
+                public void run() {
+                    updateServerStats(SERVER_STATS_UPDATE_TIME_MS);
+                }
+            };
+            mTimer.schedule(updateServerStatsTask, SERVER_STATS_UPDATE_TIME_MS, SERVER_STATS_UPDATE_TIME_MS);
+        }
+
+    }
+
+    /**
+     * Set up the Server Stats Service, which lets any Central poll or subscribe to the server load
+     */
+    private void setupServerStatsService() {
+        mServerStatsService = new BluetoothGattService(SERVER_STATS_SERVICE_UUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+
+        mServerStatsCharacteristic = new BluetoothGattCharacteristic(
+                SERVER_STATS_CHARACTERISTIC_UUID,
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PERMISSION_READ);
+
+        // add Notification support to Characteristic
+        BluetoothGattDescriptor notifyDescriptor = new BluetoothGattDescriptor(BlePeripheral.NOTIFY_DESCRIPTOR_UUID, BluetoothGattDescriptor.PERMISSION_WRITE | BluetoothGattDescriptor.PERMISSION_READ);
+        mServerStatsCharacteristic.addDescriptor(notifyDescriptor);
+
+        mServerStatsService.addCharacteristic(mServerStatsCharacteristic);
+        mServerStatsCharacteristic.setValue(new byte[SERVER_STATS_CHARACTERISTIC_LENGTH]);
+
+        mLastNumMessages = Metrics.WRITES.sum();
+        mLastNumBytes = Metrics.BYTES_IN.sum() + Metrics.BYTES_OUT.sum();
+
+        queueService(mServerStatsService);
+    }
+
+    /**
+     * Recalculate the Server Stats and notify subscribed Centrals if they changed
+     *
+     * @param intervalMs the time since the last update
+     */
+    private void updateServerStats(int intervalMs) {
+        long numMessages = Metrics.WRITES.sum();
+        long numBytes = Metrics.BYTES_IN.sum() + Metrics.BYTES_OUT.sum();
+        long messagesPerSecond = (numMessages - mLastNumMessages) * 1000 / intervalMs;
+        long bytesPerSecond = (numBytes - mLastNumBytes) * 1000 / intervalMs;
+        mLastNumMessages = numMessages;
+        mLastNumBytes = numBytes;
+
+        mServerStatsWriter.wrap(mServerStatsValue)
+                .putUnsignedSaturated(mConnectedDevices.size(), 1)
+                .putUnsignedSaturated(messagesPerSecond, 2)
+                .putUnsignedSaturated(bytesPerSecond, 4)
+                .putUnsignedSaturated(mNumPendingNotifications.get(), 2)
+                .putUnsignedSaturated(Metrics.NOTIFICATION_FAILURES.sum(), 4);
+
+        // only spend airtime on a notification if something changed
+        if (Arrays.equals(mServerStatsValue, mLastServerStatsValue)) {
+            return;
+        }
+        System.arraycopy(mServerStatsValue, 0, mLastServerStatsValue, 0, SERVER_STATS_CHARACTERISTIC_LENGTH);
+
+        byte[] value = Arrays.copyOf(mServerStatsValue, SERVER_STATS_CHARACTERISTIC_LENGTH);
+        synchronized (mServerStatsCharacteristic) {
+            mServerStatsCharacteristic.setValue(value);
+        }
+        notifySubscribers(mServerStatsCharacteristic, value, false);
+    }
+
+    /**
+     * Notify the connected Centrals that enabled notifications on a Characteristic
+     *
+     * @param characteristic the Characteristic that changed
+     * @param value the value to send
+     * @param confirm <b>true</b> to send an indication, <b>false</b> for a notification
+     */
+    private void notifySubscribers(BluetoothGattCharacteristic characteristic, byte[] value, boolean confirm) {
+        Set<String> subscribers = mSubscribers.get(characteristic.getUuid());
+        if (subscribers == null || subscribers.isEmpty()) return;
+        for (BluetoothDevice device : mConnectedDevices) {
+            if (subscribers.contains(device.getAddress())) {
+                notifyCharacteristicChanged(device, characteristic, value, confirm);
+            }
+        }
+    }
+
+    /**
+     * Remember whether a Central wants notifications from a Characteristic
+     *
+     * @param device the Central
+     * @param characteristic the Characteristic
+     * @param isSubscribed <b>true</b> if the Central enabled notifications or indications
+     */
+    private void setSubscribed(BluetoothDevice device, BluetoothGattCharacteristic characteristic, boolean isSubscribed) {
+        Set<String> subscribers = mSubscribers.get(characteristic.getUuid());
+        if (subscribers == null) {
+            Set<String> newSubscribers = new CopyOnWriteArraySet<String>();
+            subscribers = mSubscribers.putIfAbsent(characteristic.getUuid(), newSubscribers);
+            if (subscribers == null) {
+                subscribers = newSubscribers;
+            }
+        }
+        if (isSubscribed) {
+            subscribers.add(device.getAddress());
+        } else {
+            subscribers.remove(device.getAddress());
+        }
+    }
 
+    /**
+     * Add a Service now, or once the Service being added is done
+     *
+     * @param service the Service to add
+     */
+    private void queueService(BluetoothGattService service) {
+        synchronized (mPendingServices) {
+            if (mIsAddingService) {
+                mPendingServices.add(service);
+                return;
+            }
+            mIsAddingService = mGattServer.addService(service);
+            if (!mIsAddingService) {
+                Log.e(TAG, "Could not add Service " + service.getUuid());
+            }
+        }
+    }
+
+    /**
+     * Add the next waiting Service, once the GATT Server is done with the last one
+     */
+    private void addNextService() {
+        synchronized (mPendingServices) {
+            mIsAddingService = false;
+            while (!mIsAddingService && !mPendingServices.isEmpty()) {
+                BluetoothGattService service = mPendingServices.poll();
+                mIsAddingService = mGattServer.addService(service);
+                if (!mIsAddingService) {
+                    Log.e(TAG, "Could not add Service " + service.getUuid());
+                }
+            }
+        }
     }
 
     /**
@@ -253,6 +491,9 @@ public class BlePeripheral {
      * @param peripheralAdvertisingName
      */
     public void setPeripheralAdvertisingName(String peripheralAdvertisingName) throws Exception {
+        if (!peripheralAdvertisingName.equals(mPeripheralAdvertisingName)) {
+            invalidateAdvertisingData();
+        }
         mPeripheralAdvertisingName = peripheralAdvertisingName;
         mDeviceNameCharacteristic.setValue(mPeripheralAdvertisingName);
         int advertisingNameByteLength = mPeripheralAdvertisingName.getBytes(CHARSET).length;
@@ -273,6 +514,7 @@ public class BlePeripheral {
      */
     public void setTransmissionPower(int transmissionPower) {
         mTransmissionPower = transmissionPower;
+        mAdvertiseSettings = null;
     }
 
     /**
@@ -280,38 +522,358 @@ public class BlePeripheral {
      */
     public void setAdvertisingMode(int advertisingMode) {
         mAdvertisingMode = advertisingMode;
+        mAdvertiseSettings = null;
     }
 
     /**
-     * Add a Service to the GATT Profile
+     * Set how many Centrals may connect at once.
+     * The Peripheral keeps advertising until this many are connected
+     *
+     * @param maxConnections the connection capacity, from 1 to 255
+     */
+    public void setMaxConnections(int maxConnections) {
+        mMaxConnections = Math.max(1, Math.min(255, maxConnections));
+        invalidateAdvertisingData();
+    }
+
+    /**
+     * Get how many Centrals may connect at once
+     */
+    public int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    /**
+     * Set the primary Service.  It is always advertised, ahead of the device name
+     * and any other Services, so that Centrals scanning for it can find this Peripheral
+     *
+     * @param serviceUuid the primary Service UUID
+     */
+    public void setPrimaryServiceUuid(UUID serviceUuid) {
+        mPrimaryServiceUuid = serviceUuid;
+        invalidateAdvertisingData();
+    }
+
+    /**
+     * Advertise the server load as Service Data, so that scanning Centrals can
+     * spread themselves across several Peripherals
+     *
+     * @param serviceUuid the Service the load is advertised under, or null to stop advertising the load
+     */
+    public void setLoadServiceDataUuid(UUID serviceUuid) {
+        mLoadServiceDataUuid = serviceUuid;
+        invalidateAdvertisingData();
+    }
+
+    /**
+     * Score how busy the Peripheral is, from 0 (idle) to 255 (full).
+     * Connections use up most of the score; a backed up notification queue adds to it
+     *
+     * @return the load score
+     */
+    public int getLoadScore() {
+        int numConnections = mConnectedDevices.size();
+        if (numConnections >= mMaxConnections) {
+            return MAX_LOAD_SCORE;
+        }
+        int loadScore = numConnections * MAX_LOAD_SCORE / mMaxConnections
+                + mNumPendingNotifications.get() * LOAD_SCORE_PER_PENDING_NOTIFICATION;
+        return Math.min(MAX_LOAD_SCORE - 1, loadScore);
+    }
+
+    /**
+     * Add a Service to the GATT Profile.  Services are added one at a time, in order
      *
      * @param service the Service to add
      */
     public void addService(BluetoothGattService service) {
-        mGattServer.addService(service);
+        queueService(service);
+        invalidateAdvertisingData();
     }
 
     /**
-     * Build the Advertising Data, including the transmission power, advertising name, and Services
+     * Send a value to a Central as a notification or indication of a Characteristic.
+     *
+     * Android sends one notification at a time to each Central, and onNotificationSent
+     * doesn't say which Characteristic it was for, so every notification to a Central goes
+     * through one queue.  Each BlePeripheralCallback.onNotificationSent is for the notification
+     * at the head of the queue.  The value is only copied if it has to wait its turn
      *
-     * @return AdvertiseData
+     * @param device the Central to notify
+     * @param characteristic the Characteristic that changed
+     * @param value the value to send
+     * @param confirm <b>true</b> to send an indication, <b>false</b> for a notification
+     * @return <b>true</b> if the notification was sent or queued.  onNotificationSent follows either way.
+     *     <b>false</b> if it was refused, or the Central has disconnected
      */
-    private AdvertiseData buildAdvertisingData() {
-        AdvertiseData.Builder advertiseBuilder = new AdvertiseData.Builder();
+    public boolean notifyCharacteristicChanged(BluetoothDevice device, BluetoothGattCharacteristic characteristic, byte[] value, boolean confirm) {
+        NotificationQueue notificationQueue = mNotificationQueues.get(device.getAddress());
+        if (notificationQueue == null) {
+            NotificationQueue newNotificationQueue = new NotificationQueue();
+            notificationQueue = mNotificationQueues.putIfAbsent(device.getAddress(), newNotificationQueue);
+            if (notificationQueue == null) {
+                notificationQueue = newNotificationQueue;
+            }
+            // a write handled after its Central disconnected must not leave a queue behind.
+            // A disconnect after this check closes the queue instead
+            if (!mConnectedDevices.contains(device)) {
+                mNotificationQueues.remove(device.getAddress(), newNotificationQueue);
+                return false;
+            }
+        }
+        synchronized (notificationQueue) {
+            if (notificationQueue.mIsClosed) {
+                return false;
+            }
+            if (notificationQueue.mInFlightCharacteristic != null) {
+                notificationQueue.mPending.add(new PendingNotification(characteristic, Arrays.copyOf(value, value.length), confirm));
+            } else if (!sendNotification(device, notificationQueue, characteristic, value, confirm)) {
+                return false;
+            }
+            Metrics.NOTIFICATION_QUEUE_DEPTH.record(mNumPendingNotifications.incrementAndGet());
+            return true;
+        }
+    }
 
-        // set advertising name
-        if (mPeripheralAdvertisingName != null) {
-            advertiseBuilder.setIncludeDeviceName(true);
+    /**
+     * Hand a notification to the GATT Server.  Must be called with the queue locked
+     *
+     * @return <b>true</b> if the notification is on its way
+     */
+    private boolean sendNotification(BluetoothDevice device, NotificationQueue notificationQueue, BluetoothGattCharacteristic characteristic, byte[] value, boolean confirm) {
+        boolean isQueued;
+        // every Central shares the Characteristic, so set its value and send it in one go
+        synchronized (characteristic) {
+            characteristic.setValue(value);
+            isQueued = mGattServer.notifyCharacteristicChanged(device, characteristic, confirm);
+        }
+        if (EventTrace.ENABLED) EventTrace.record(EventTrace.NOTIFICATION_QUEUED, value.length);
+        if (isQueued) {
+            Metrics.NOTIFICATIONS.increment();
+            Metrics.BYTES_OUT.add(value.length);
+            notificationQueue.mInFlightCharacteristic = characteristic;
+        } else {
+            Metrics.NOTIFICATION_FAILURES.increment();
+        }
+        return isQueued;
+    }
+
+    /**
+     * Match a completed notification to the one in flight, and send the next one waiting.
+     * The BlePeripheralCallback hears of each outside the queue's lock, since it may notify again
+     *
+     * @param device the Central the notification went to
+     * @param status the notification's status
+     */
+    private void onNotificationCompleted(BluetoothDevice device, int status) {
+        NotificationQueue notificationQueue = mNotificationQueues.get(device.getAddress());
+        if (notificationQueue == null) return;
+        BluetoothGattCharacteristic sentCharacteristic;
+        List<BluetoothGattCharacteristic> failedCharacteristics = null;
+        synchronized (notificationQueue) {
+            sentCharacteristic = notificationQueue.mInFlightCharacteristic;
+            if (sentCharacteristic == null) return;
+            notificationQueue.mInFlightCharacteristic = null;
+            decrementPendingNotifications(1);
+            while (!notificationQueue.mPending.isEmpty()) {
+                PendingNotification next = notificationQueue.mPending.poll();
+                if (sendNotification(device, notificationQueue, next.mCharacteristic, next.mValue, next.mConfirm)) break;
+                // refused, so it will never complete
+                decrementPendingNotifications(1);
+                if (failedCharacteristics == null) {
+                    failedCharacteristics = new ArrayList<>();
+                }
+                failedCharacteristics.add(next.mCharacteristic);
+            }
+        }
+        mBlePeripheralCallback.onNotificationSent(device, sentCharacteristic, status);
+        if (failedCharacteristics != null) {
+            for (BluetoothGattCharacteristic failedCharacteristic : failedCharacteristics) {
+                mBlePeripheralCallback.onNotificationSent(device, failedCharacteristic, BluetoothGatt.GATT_FAILURE);
+            }
+        }
+    }
+
+    /**
+     * Forget the notifications waiting for a Central that disconnected.  Writes from it may
+     * still be waiting on the write thread, so the queue is closed to anything they echo
+     *
+     * @param device the Central
+     */
+    private void clearNotificationQueue(BluetoothDevice device) {
+        NotificationQueue notificationQueue = mNotificationQueues.remove(device.getAddress());
+        if (notificationQueue == null) return;
+        synchronized (notificationQueue) {
+            int numDropped = notificationQueue.mPending.size() + (notificationQueue.mInFlightCharacteristic != null ? 1 : 0);
+            notificationQueue.mPending.clear();
+            notificationQueue.mInFlightCharacteristic = null;
+            notificationQueue.mIsClosed = true;
+            decrementPendingNotifications(numDropped);
+        }
+    }
+
+    private void decrementPendingNotifications(int numNotifications) {
+        if (mNumPendingNotifications.addAndGet(-numNotifications) < 0) {
+            mNumPendingNotifications.set(0);
+        }
+    }
+
+    /**
+     * Get the number of notifications waiting to be sent
+     */
+    public int getNumPendingNotifications() {
+        return mNumPendingNotifications.get();
+    }
+
+    /**
+     * Answer each Characteristic write as soon as it arrives, and pass it to the
+     * BlePeripheralCallback afterwards on a thread of its own, so the Central can
+     * send its next write while this one is handled.  Connects and disconnects
+     * are passed on the same thread, so they stay in order with the writes
+     *
+     * @param isEnabled <b>true</b> to handle writes after answering them
+     */
+    public synchronized void setFastAckEnabled(boolean isEnabled) {
+        if (isEnabled && mWriteThread == null) {
+            mWriteThread = new HandlerThread(TAG + " writes");
+            mWriteThread.start();
+            mWriteHandler = new Handler(mWriteThread.getLooper());
+        } else if (!isEnabled && mWriteThread != null) {
+            // writes already queued are still handled
+            mWriteHandler = null;
+            mWriteThread.quitSafely();
+            mWriteThread = null;
+        }
+    }
+
+    /**
+     * Stop handling writes in the background, stop the battery and Server Stats updates,
+     * and close the GATT Server, which disconnects every Central.  Make a new BlePeripheral to start again
+     */
+    public void close() {
+        setFastAckEnabled(false);
+        if (mTimer != null) {
+            mTimer.cancel();
+            mTimer = null;
+        }
+        if (mGattServer != null) {
+            mGattServer.close();
+        }
+        // the GATT Server reports no disconnects once it is closed
+        for (BluetoothDevice device : mConnectedDevices) {
+            mConnectedDevices.remove(device);
+            clearNotificationQueue(device);
+        }
+    }
+
+    /**
+     * Run a callback on the write thread in fast-ack mode, so it keeps its place among the writes,
+     * or right away otherwise
+     *
+     * @param runnable the callback
+     */
+    private void dispatch(Runnable runnable) {
+        Handler writeHandler = mWriteHandler;
+        if (writeHandler != null) {
+            writeHandler.post(runnable);
+        } else {
+            runnable.run();
+        }
+    }
+
+    /**
+     * Force the Advertising Data to be rebuilt the next time advertising starts
+     */
+    private synchronized void invalidateAdvertisingData() {
+        mAdvertisingPacker = null;
+        mAdvertiseData = null;
+    }
+
+    /**
+     * Pack the advertised server load into an int, so it can be compared cheaply
+     *
+     * @return connections, capacity, and load score, one byte each
+     */
+    private int getPackedLoad() {
+        if (mLoadServiceDataUuid == null) return 0;
+        return (Math.min(255, mConnectedDevices.size()) << 16) | (mMaxConnections << 8) | getLoadScore();
+    }
+
+    /**
+     * Unpack the server load into the Service Data that advertises it
+     *
+     * @param packedLoad the server load, from getPackedLoad()
+     * @return connections, capacity, and load score, one byte each
+     */
+    private static byte[] getLoadServiceData(int packedLoad) {
+        byte[] loadServiceData = new byte[LOAD_SERVICE_DATA_LENGTH];
+        loadServiceData[0] = (byte) (packedLoad >>> 16);
+        loadServiceData[1] = (byte) (packedLoad >>> 8);
+        loadServiceData[2] = (byte) packedLoad;
+        return loadServiceData;
+    }
+
+    /**
+     * Give the Bluetooth Adapter the advertising name, if it doesn't have it already.
+     * The name is advertised from the adapter, and something else may have renamed it since the last check
+     */
+    private void refreshAdapterName() {
+        if (mPeripheralAdvertisingName == null) return;
+        // renaming the adapter is slow, so only do it when the name is wrong
+        if (!mPeripheralAdvertisingName.equals(mBluetoothAdapter.getName())) {
             mBluetoothAdapter.setName(mPeripheralAdvertisingName);
         }
+    }
+
+    /**
+     * Build the Advertising Data and Scan Response, including the advertising name, Services, and server load.
+     *
+     * Fields are packed in order of importance: the primary Service, the server load,
+     * the advertising name, then the other Services.  Whatever doesn't fit in the
+     * Advertising Data goes in the Scan Response, and whatever doesn't fit there is left out
+     *
+     * @param packedLoad the server load to advertise, from getPackedLoad()
+     * @return the packed Advertising Data and Scan Response
+     */
+    private AdvertisingPacker buildAdvertisingData(int packedLoad) {
+        AdvertisingPacker advertisingPacker = new AdvertisingPacker(mGattServer != null);
+
+        // the primary Service always goes first, so that filtered scans can find this Peripheral
+        if (mPrimaryServiceUuid != null) {
+            advertisingPacker.addPrimaryServiceUuid(mPrimaryServiceUuid);
+        }
+
+        // add the server load
+        if (mLoadServiceDataUuid != null) {
+            if (!advertisingPacker.addServiceData(mLoadServiceDataUuid, getLoadServiceData(packedLoad))) {
+                Log.w(TAG, "No room to advertise the server load");
+            }
+        }
+
+        // add the advertising name.  refreshAdapterName() makes sure it is the adapter's
+        if (mPeripheralAdvertisingName != null) {
+            try {
+                if (!advertisingPacker.addDeviceName(mPeripheralAdvertisingName.getBytes(CHARSET).length)) {
+                    Log.w(TAG, "No room to advertise the name");
+                }
+            } catch (UnsupportedEncodingException e) {
+                Log.e(TAG, "Could not encode the advertising name");
+            }
+        }
 
-        // add Services to Advertising Data
+        // add the other Services.
+        // The diagnostics Service isn't something to scan for, so leave it out to save space
         List<BluetoothGattService> services = mGattServer.getServices();
         for (BluetoothGattService service: services) {
-            advertiseBuilder.addServiceUuid(new ParcelUuid(service.getUuid()));
+            UUID serviceUuid = service.getUuid();
+            if (!serviceUuid.equals(mPrimaryServiceUuid) && !serviceUuid.equals(SERVER_STATS_SERVICE_UUID)) {
+                if (!advertisingPacker.addServiceUuid(serviceUuid)) {
+                    Log.w(TAG, "No room to advertise Service " + serviceUuid);
+                }
+            }
         }
 
-        return advertiseBuilder.build();
+        return advertisingPacker;
 
     }
 
@@ -340,12 +902,37 @@ public class BlePeripheral {
      *
      * @throws Exception Exception thrown if Bluetooth Peripheral mode is not supported
      */
-    public void startAdvertising() {
-        AdvertiseSettings advertiseSettings = buildAdvertiseSettings();
-        AdvertiseData advertiseData = buildAdvertisingData();
+    public synchronized void startAdvertising() {
+        // reuse the Advertising Settings and Data from last time unless something changed
+        if (mAdvertiseSettings == null) {
+            mAdvertiseSettings = buildAdvertiseSettings();
+        }
+        refreshAdapterName();
+        int packedLoad = getPackedLoad();
+        if (mAdvertisingPacker != null && packedLoad != mAdvertisedLoad) {
+            // the load bytes are a fixed length, so they fit where the old ones were
+            mAdvertisingPacker.replaceServiceData(mLoadServiceDataUuid, getLoadServiceData(packedLoad));
+            mAdvertiseData = mAdvertisingPacker.buildAdvertiseData();
+            mScanResponse = mAdvertisingPacker.buildScanResponse();
+            mAdvertisedLoad = packedLoad;
+        } else if (mAdvertisingPacker == null) {
+            AdvertisingPacker advertisingPacker = buildAdvertisingData(packedLoad);
+
+            // don't bother advertising if Centrals filtering on the primary Service couldn't find us
+            if (mPrimaryServiceUuid != null && !advertisingPacker.hasPrimaryService()) {
+                Log.e(TAG, "Primary Service does not fit in the Advertising Data");
+                mBlePeripheralCallback.onAdvertisingFailed(AdvertiseCallback.ADVERTISE_FAILED_DATA_TOO_LARGE);
+                return;
+            }
+
+            mAdvertisingPacker = advertisingPacker;
+            mAdvertiseData = advertisingPacker.buildAdvertiseData();
+            mScanResponse = advertisingPacker.buildScanResponse();
+            mAdvertisedLoad = packedLoad;
+        }
 
         // begin advertising
-        mBluetoothAdvertiser.startAdvertising( advertiseSettings, advertiseData, mAdvertiseCallback );
+        mBluetoothAdvertiser.startAdvertising( mAdvertiseSettings, mAdvertiseData, mScanResponse, mAdvertiseCallback );
 
     }
 
@@ -423,18 +1010,50 @@ public class BlePeripheral {
 
     private final BluetoothGattServerCallback mGattServerCallback = new BluetoothGattServerCallback() {
         @Override
-        public void onConnectionStateChange(BluetoothDevice device, final int status, int newState) {
+        public void onConnectionStateChange(final BluetoothDevice device, final int status, int newState) {
             super.onConnectionStateChange(device, status, newState);
             Log.v(TAG, "Connected");
 
+            // a Central can drop off with an error status, so always stop counting it
+            if (newState == BluetoothGatt.STATE_DISCONNECTED) {
+                // removed before the queue is cleared, so no new queue can be made for it afterwards
+                mConnectedDevices.remove(device);
+                clearNotificationQueue(device);
+                for (Set<String> subscribers : mSubscribers.values()) {
+                    subscribers.remove(device.getAddress());
+                }
+            }
+
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 if (newState == BluetoothGatt.STATE_CONNECTED) {
-                    mBlePeripheralCallback.onCentralConnected(device);
+                    if (EventTrace.ENABLED) EventTrace.record(EventTrace.CENTRAL_CONNECTED, status);
+                    mConnectedDevices.add(device);
+                    dispatch(new Runnable() {
+                        @Override
+                        public void run() {
+                            mBlePeripheralCallback.onCentralConnected(device);
+                        }
+                    });
                     stopAdvertising();
 
-
+                    // keep advertising, with the new load, while there is room for more Centrals
+                    if (mConnectedDevices.size() < mMaxConnections) {
+                        try {
+                            startAdvertising();
+                        } catch (Exception e) {
+                            Log.e(TAG, "error starting advertising");
+                        }
+                    }
                 } else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
-                    mBlePeripheralCallback.onCentralDisconnected(device);
+                    if (EventTrace.ENABLED) EventTrace.record(EventTrace.CENTRAL_DISCONNECTED, status);
+                    dispatch(new Runnable() {
+                        @Override
+                        public void run() {
+                            mBlePeripheralCallback.onCentralDisconnected(device);
+                        }
+                    });
+                    // restart advertising so that the advertised load is up to date
+                    stopAdvertising();
                     try {
                         startAdvertising();
                     } catch (Exception e) {
@@ -445,45 +1064,82 @@ public class BlePeripheral {
 
         }
 
+        @Override
+        public void onServiceAdded(int status, BluetoothGattService service) {
+            super.onServiceAdded(status, service);
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.e(TAG, "Could not add Service " + service.getUuid() + ", status " + status);
+            }
+            // Services are added asynchronously, so the advertised Service list may be out of date
+            invalidateAdvertisingData();
+            addNextService();
+        }
+
         @Override
         public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset,
                                                 BluetoothGattCharacteristic characteristic) {
             super.onCharacteristicReadRequest(device, requestId, offset, characteristic);
-            Log.d(TAG, "Device tried to read characteristic: " + characteristic.getUuid());
-            Log.d(TAG, "Value: " + Arrays.toString(characteristic.getValue()));
+            if (EventTrace.ENABLED) EventTrace.record(EventTrace.READ_REQUEST, offset);
+            // the Server Stats are swapped in whole under the Characteristic's lock, so a read never sees half an update
+            byte[] value;
+            synchronized (characteristic) {
+                value = characteristic.getValue();
+            }
             if (offset != 0) {
-                mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset, characteristic.getValue());
+                mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset, value);
                 return;
             }
-            mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS,
-                    offset, characteristic.getValue());
+            mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, value);
         }
 
         @Override
         public void onNotificationSent(BluetoothDevice device, int status) {
             super.onNotificationSent(device, status);
-            Log.v(TAG, "Notification sent. Status: " + status);
+            if (EventTrace.ENABLED) EventTrace.record(EventTrace.NOTIFICATION_SENT, status);
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Metrics.NOTIFICATION_FAILURES.increment();
+            }
+            onNotificationCompleted(device, status);
         }
 
         @Override
-        public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId,
-                                                 BluetoothGattCharacteristic characteristic, boolean preparedWrite, boolean responseNeeded,
-                                                 int offset, byte[] value) {
+        public void onCharacteristicWriteRequest(final BluetoothDevice device, int requestId,
+                                                 final BluetoothGattCharacteristic characteristic, boolean preparedWrite, boolean responseNeeded,
+                                                 int offset, final byte[] value) {
             super.onCharacteristicWriteRequest(device, requestId, characteristic, preparedWrite,
                     responseNeeded, offset, value);
-            Log.v(TAG, "Characteristic Write request: " + Arrays.toString(value));
-
-            mBlePeripheralCallback.onCharacteristicWritten(device, characteristic, value);
-
-            if (isCharacteristicWritableWithResponse(characteristic)) {
-                characteristic.setValue(value);
-                mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
+            if (EventTrace.ENABLED) EventTrace.record(EventTrace.WRITE_REQUEST, value.length);
+            Metrics.WRITES.increment();
+            Metrics.BYTES_IN.add(value.length);
+
+            // answer first, so the Central isn't kept waiting while the write is handled.
+            // A write without response, or a signed write, asks for none
+            if (responseNeeded) {
+                if (!mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, preparedWrite ? value : null)) {
+                    // the Central will see this write time out, even though it is handled
+                    Metrics.WRITE_FAILURES.increment();
+                }
             }
 
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    onCharacteristicWritten(device, characteristic, value);
+                }
+            });
+        }
+
+        /**
+         * Pass a write on, once it has been answered
+         */
+        private void onCharacteristicWritten(BluetoothDevice device, BluetoothGattCharacteristic characteristic, byte[] value) {
+            mBlePeripheralCallback.onCharacteristicWritten(device, characteristic, value);
 
             if (isCharacteristicNotifiable(characteristic)) {
                 boolean isNotifiedOfSend = false;
-                mGattServer.notifyCharacteristicChanged(device, characteristic, isNotifiedOfSend);
+                notifyCharacteristicChanged(device, characteristic, value, isNotifiedOfSend);
+            } else {
+                characteristic.setValue(value);
             }
         }
 
@@ -493,7 +1149,7 @@ public class BlePeripheral {
                                              BluetoothGattDescriptor descriptor, boolean preparedWrite, boolean responseNeeded,
                                              int offset,
                                              byte[] value) {
-            Log.v(TAG, "Descriptor Write Request " + descriptor.getUuid() + " " + Arrays.toString(value));
+            if (EventTrace.ENABLED) EventTrace.record(EventTrace.DESCRIPTOR_WRITE_REQUEST, value.length);
             super.onDescriptorWriteRequest(device, requestId, descriptor, preparedWrite, responseNeeded,
                     offset, value);
 
@@ -507,9 +1163,12 @@ public class BlePeripheral {
 
                 // was this a subscription or an unsubscription?
                 if (descriptor.getUuid().equals(NOTIFY_DESCRIPTOR_UUID)) {
-                    if (value == BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE) {
+                    if (Arrays.equals(value, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE)
+                            || Arrays.equals(value, BluetoothGattDescriptor.ENABLE_INDICATION_VALUE)) {
+                        setSubscribed(device, characteristic, true);
                         mBlePeripheralCallback.onCharacteristicSubscribedTo(characteristic);
-                    } else if (value == BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE) {
+                    } else if (Arrays.equals(value, BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE)) {
+                        setSubscribed(device, characteristic, false);
                         mBlePeripheralCallback.onCharacteristicUnsubscribedFrom(characteristic);
                     }
                     // send a confirmation if necessary
@@ -527,6 +1186,31 @@ public class BlePeripheral {
     };
 
 
+    /**
+     * The notifications for one Central: the one in flight, and the ones waiting behind it
+     */
+    private static class NotificationQueue {
+        final ArrayDeque<PendingNotification> mPending = new ArrayDeque<>();
+        BluetoothGattCharacteristic mInFlightCharacteristic; // null when nothing is in flight
+        boolean mIsClosed = false; // the Central disconnected
+    }
+
+    /**
+     * A notification waiting its turn, with its own copy of the value
+     */
+    private static class PendingNotification {
+        final BluetoothGattCharacteristic mCharacteristic;
+        final byte[] mValue;
+        final boolean mConfirm;
+
+        PendingNotification(BluetoothGattCharacteristic characteristic, byte[] value, boolean confirm) {
+            mCharacteristic = characteristic;
+            mValue = value;
+            mConfirm = confirm;
+        }
+    }
+
+
     public AdvertiseCallback mAdvertiseCallback = new AdvertiseCallback() {
 
         @Override
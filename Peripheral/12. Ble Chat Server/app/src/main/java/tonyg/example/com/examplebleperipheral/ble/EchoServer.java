@@ -1,17 +1,31 @@
 package tonyg.example.com.examplebleperipheral.ble;
 
 import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.UUID;
-
+import java.util.concurrent.ConcurrentHashMap;
+
+import tonyg.example.com.blechatcore.EchoSession;
+import tonyg.example.com.blechatcore.Scheduler;
+import tonyg.example.com.blechatcore.callbacks.EchoSessionCallback;
+import tonyg.example.com.blechatcore.log.ChatLog;
+import tonyg.example.com.blechatcore.transport.PacketArrays;
+import tonyg.example.com.blechatcore.transport.ReliableLink;
+import tonyg.example.com.blechatcore.transport.Transport;
 import tonyg.example.com.examplebleperipheral.ble.callbacks.BlePeripheralCallback;
 import tonyg.example.com.examplebleperipheral.ble.callbacks.EchoServerCallback;
+import tonyg.example.com.examplebleperipheral.utilities.EventTrace;
+import tonyg.example.com.examplebleperipheral.utilities.Metrics;
 
 
 /**
@@ -24,13 +38,14 @@ public class EchoServer {
     /** Constants **/
     private static final String TAG = EchoServer.class.getSimpleName();
 
-    public static final String CHARSET = "ASCII";
+    public static final String CHARSET = "UTF-8";
 
     private static final String MODEL_NUMBER = "1AB2";
     private static final String SERIAL_NUMBER = "1234";
 
     /** Peripheral and GATT Profile **/
     public static final String ADVERTISING_NAME =  "EchoServer";
+    public static final int MAX_CONNECTIONS = 4;
 
     public static final UUID SERVICE_UUID = UUID.fromString("0000180c-0000-1000-8000-00805f9b34fb");
     public static final UUID READ_CHARACTERISTIC_UUID = UUID.fromString("00002a56-0000-1000-8000-00805f9b34fb");
@@ -40,6 +55,12 @@ public class EchoServer {
     private static final int READ_CHARACTERISTIC_LENGTH = 20;
     private static final int WRITE_CHARACTERISTIC_LENGTH = 20;
 
+    // bytes of echoed messages that can be queued for each Central
+    private static final int ECHO_QUEUE_CAPACITY = 32768;
+
+    public static final int DEFAULT_SESSION_TIMEOUT_MS = 120000;
+
+    private static final String CHAT_LOG_DIRECTORY = "chatlog";
 
 
     /** Callback Handlers **/
@@ -50,7 +71,19 @@ public class EchoServer {
     private BluetoothGattService mService;
     private BluetoothGattCharacteristic mReadCharacteristic, mWriteCharacteristic;
 
+    /** Echo stuff **/
+    // one EchoSession per connected Central, by Bluetooth address
+    private final ConcurrentHashMap<String, EchoSession> mEchoSessions = new ConcurrentHashMap<>();
+    // sessions of disconnected Centrals, by session id, until they resume or time out
+    private final ConcurrentHashMap<Integer, EchoSession> mHeldEchoSessions = new ConcurrentHashMap<>();
+    private int mSessionTimeoutMs = DEFAULT_SESSION_TIMEOUT_MS;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final PacketArrays mPacketArrays = new PacketArrays(READ_CHARACTERISTIC_LENGTH);
 
+    /** Chat history **/
+    private ChatLog mChatLog;
+    private int mNumReplayedMessages = 0;
+    private long mReplayFromSequence = -1;
 
 
     /**
@@ -65,6 +98,13 @@ public class EchoServer {
 
         mBlePeripheral = new BlePeripheral(context, mBlePeripheralCallback);
 
+        // keep every message, so the history survives a restart.  Echoing carries on without it
+        try {
+            mChatLog = new ChatLog(new File(context.getFilesDir(), CHAT_LOG_DIRECTORY), ChatLog.DEFAULT_SEGMENT_LENGTH, ChatLog.DEFAULT_MAX_SEGMENTS);
+        } catch (Exception e) {
+            Log.d(TAG, "Could not open the chat log: " + e.getMessage());
+        }
+
         setupDevice();
     }
 
@@ -75,6 +115,10 @@ public class EchoServer {
     private void setupDevice() throws Exception {
         mBlePeripheral.setModelNumber(MODEL_NUMBER);
         mBlePeripheral.setSerialNumber(SERIAL_NUMBER);
+        mBlePeripheral.setServerStatsEnabled(true);
+        mBlePeripheral.setMaxConnections(MAX_CONNECTIONS);
+        // the echo goes back by notification, so the Central needn't wait for it before writing again
+        mBlePeripheral.setFastAckEnabled(true);
 
         mBlePeripheral.setupDevice();
 
@@ -100,6 +144,11 @@ public class EchoServer {
 
 
         mBlePeripheral.addService(mService);
+
+        // advertise the Echo Service ahead of anything else, along with the load,
+        // so Centrals can spread out across several Echo Servers
+        mBlePeripheral.setPrimaryServiceUuid(SERVICE_UUID);
+        mBlePeripheral.setLoadServiceDataUuid(SERVICE_UUID);
     }
 
 
@@ -124,6 +173,54 @@ public class EchoServer {
         mBlePeripheral.stopAdvertising();
     }
 
+    /**
+     * Close the GATT Server, stop handling writes, and sync and close the chat log.
+     * Only one EchoServer at a time may have the chat log open, or the GATT Server up
+     */
+    public void close() {
+        mBlePeripheral.close();
+        if (mChatLog != null) {
+            mChatLog.close();
+        }
+    }
+
+    /**
+     * Replay the most recent messages to each Central that connects, so it sees what was said before it joined
+     *
+     * @param numMessages the number of messages to replay.  0 turns replay off
+     */
+    public void setHistoryReplay(int numMessages) {
+        mNumReplayedMessages = Math.max(0, numMessages);
+        mReplayFromSequence = -1;
+    }
+
+    /**
+     * Replay every message since a sequence number to each Central that connects
+     *
+     * @param fromSequence the first message to replay, as numbered by the ChatLog.  -1 turns replay off
+     */
+    public void setHistoryReplayFrom(long fromSequence) {
+        mReplayFromSequence = fromSequence;
+        mNumReplayedMessages = 0;
+    }
+
+    /**
+     * Get the log of every message received, or null if it couldn't be opened
+     */
+    public ChatLog getChatLog() {
+        return mChatLog;
+    }
+
+    /**
+     * Set how long a disconnected Central's session is held.  A Central that
+     * reconnects within this time carries on where the transfer left off
+     *
+     * @param sessionTimeoutMs the session timeout, in milliseconds
+     */
+    public void setSessionTimeout(int sessionTimeoutMs) {
+        mSessionTimeoutMs = sessionTimeoutMs;
+    }
+
     /**
      * Get the BlePeripheral
      */
@@ -131,6 +228,142 @@ public class EchoServer {
         return mBlePeripheral;
     }
 
+    /**
+     * Get the EchoSession for a Central, creating it if necessary
+     *
+     * @param bluetoothDevice the Central
+     */
+    private EchoSession getEchoSession(BluetoothDevice bluetoothDevice) {
+        EchoSession echoSession = mEchoSessions.get(bluetoothDevice.getAddress());
+        if (echoSession == null) {
+            EchoSession newEchoSession = new EchoSession(
+                    new NotificationTransport(bluetoothDevice),
+                    ECHO_QUEUE_CAPACITY,
+                    mHandlerScheduler,
+                    mEchoSessionCallback);
+            // answered when the Central says hello
+            newEchoSession.getMessageChannel().setCompressionEnabled(true);
+            long replayFromSequence = getReplayFromSequence();
+            if (replayFromSequence >= 0) {
+                newEchoSession.replayHistory(mChatLog, replayFromSequence);
+            }
+            echoSession = mEchoSessions.putIfAbsent(bluetoothDevice.getAddress(), newEchoSession);
+            if (echoSession == null) {
+                echoSession = newEchoSession;
+            }
+        }
+        return echoSession;
+    }
+
+    /**
+     * Get the first message to replay to a Central that connects
+     *
+     * @return the sequence number, or -1 if there is nothing to replay
+     */
+    private long getReplayFromSequence() {
+        if (mChatLog == null) return -1;
+        if (mReplayFromSequence >= 0) return mReplayFromSequence;
+        if (mNumReplayedMessages == 0) return -1;
+        return Math.max(0, mChatLog.getNextSequence() - mNumReplayedMessages);
+    }
+
+    /**
+     * Move a held session to a Central that asked to resume it
+     *
+     * @param bluetoothDevice the Central
+     * @param sessionId the session the Central asked for
+     */
+    private void resumeEchoSession(BluetoothDevice bluetoothDevice, int sessionId) {
+        EchoSession echoSession = mHeldEchoSessions.remove(sessionId);
+        if (echoSession == null) {
+            // timed out, or already resumed; the Central's current session answers
+            return;
+        }
+        echoSession.setTransport(new NotificationTransport(bluetoothDevice));
+        EchoSession previousEchoSession = mEchoSessions.put(bluetoothDevice.getAddress(), echoSession);
+        if (previousEchoSession != null && previousEchoSession != echoSession) {
+            previousEchoSession.close();
+        }
+    }
+
+    /**
+     * Hold a disconnected Central's session until it resumes or times out
+     *
+     * @param echoSession the EchoSession
+     */
+    private void holdEchoSession(final EchoSession echoSession) {
+        final int sessionId = echoSession.getSessionId();
+        mHeldEchoSessions.put(sessionId, echoSession);
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (mHeldEchoSessions.remove(sessionId, echoSession)) {
+                    echoSession.close();
+                }
+            }
+        }, mSessionTimeoutMs);
+    }
+
+    /**
+     * Runs the EchoSessions' retransmit and ack timers on the main thread
+     */
+    private final Scheduler mHandlerScheduler = new Scheduler() {
+        @Override
+        public void schedule(long delayMicros, Runnable runnable) {
+            mHandler.postDelayed(runnable, (delayMicros + 999) / 1000);
+        }
+
+        @Override
+        public void cancel(Runnable runnable) {
+            mHandler.removeCallbacks(runnable);
+        }
+    };
+
+    /**
+     * Sends echoed packets to one Central as indications on the read Characteristic
+     */
+    private class NotificationTransport implements Transport {
+        private final BluetoothDevice mBluetoothDevice;
+
+        NotificationTransport(BluetoothDevice bluetoothDevice) {
+            mBluetoothDevice = bluetoothDevice;
+        }
+
+        @Override
+        public int getMaxPacketLength() {
+            return READ_CHARACTERISTIC_LENGTH;
+        }
+
+        @Override
+        public boolean sendPacket(byte[] packet, int length) {
+            // the copy is only good until the next one, which the BlePeripheral is done with by then
+            synchronized (mPacketArrays) {
+                return mBlePeripheral.notifyCharacteristicChanged(mBluetoothDevice, mReadCharacteristic, mPacketArrays.copyOf(packet, length), true);
+            }
+        }
+    }
+
+    private final EchoSessionCallback mEchoSessionCallback = new EchoSessionCallback() {
+        @Override
+        public void onMessageReceived(byte[] message, int offset, int length) {
+            if (EventTrace.ENABLED) EventTrace.record(EventTrace.MESSAGE_ECHOED, length);
+            long sequence = -1;
+            if (mChatLog != null) {
+                try {
+                    sequence = mChatLog.append(message, offset, length, System.currentTimeMillis());
+                } catch (Exception e) {
+                    Log.d(TAG, "Could not log message: " + e.getMessage());
+                }
+            }
+            mEchoServerCallback.onMessageWritten(sequence);
+        }
+
+        @Override
+        public void onMessageDropped(int length) {
+            Metrics.ECHOES_DROPPED.increment();
+        }
+    };
+
 
     private BlePeripheralCallback mBlePeripheralCallback = new BlePeripheralCallback() {
         @Override
@@ -150,22 +383,46 @@ public class EchoServer {
 
         @Override
         public void onCentralConnected(BluetoothDevice bluetoothDevice) {
+            getEchoSession(bluetoothDevice);
             mEchoServerCallback.onCentralConnected(bluetoothDevice);
         }
 
         @Override
         public void onCentralDisconnected(BluetoothDevice bluetoothDevice) {
+            EchoSession echoSession = mEchoSessions.remove(bluetoothDevice.getAddress());
+            if (echoSession != null) {
+                if (echoSession.onDisconnected()) {
+                    holdEchoSession(echoSession);
+                } else {
+                    echoSession.close();
+                }
+            }
             mEchoServerCallback.onCentralDisconnected(bluetoothDevice);
         }
 
         @Override
         public void onCharacteristicWritten(BluetoothDevice connectedDevice, BluetoothGattCharacteristic characteristic, byte[] value) {
-            // copy value to the read Characteristic
-            mReadCharacteristic.setValue(value);
-            Log.v(TAG, "setting readCharacteristic: "+ Arrays.toString(value));
-            // send a notification
-            mBlePeripheral.getGattServer().notifyCharacteristicChanged(connectedDevice, mReadCharacteristic, true);
-            mEchoServerCallback.onMessageWritten(value);
+            // a reconnecting Central names the session it wants back
+            int resumeSessionId = ReliableLink.getResumeSessionId(value, 0, value.length);
+            if (resumeSessionId > 0) {
+                resumeEchoSession(connectedDevice, resumeSessionId);
+            }
+            // reassemble the message, and echo it back once it is complete
+            try {
+                getEchoSession(connectedDevice).onPacketReceived(value, 0, value.length);
+            } catch (Exception e) {
+                Log.d(TAG, "Dropping malformed message: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void onNotificationSent(BluetoothDevice connectedDevice, BluetoothGattCharacteristic characteristic, int status) {
+            // battery and stats notifications go through the same queue, but aren't the echo's business
+            if (characteristic != mReadCharacteristic) return;
+            EchoSession echoSession = mEchoSessions.get(connectedDevice.getAddress());
+            if (echoSession != null) {
+                echoSession.onPacketSent(status == BluetoothGatt.GATT_SUCCESS);
+            }
         }
 
         @Override
@@ -280,7 +280,7 @@ public class EchoServerOld {
             Log.v(TAG, "Characteristic Write request: " + Arrays.toString(value));
 
 
-            mEchoServerCallback.onMessageWritten(value);
+            mEchoServerCallback.onMessageWritten(-1);
 
             if (isCharacteristicWritableWithResponse(characteristic)) {
                 characteristic.setValue(value);
@@ -49,6 +49,15 @@ public abstract class BlePeripheralCallback {
      */
     public abstract void onCharacteristicWritten(final BluetoothDevice connectedDevice, final BluetoothGattCharacteristic characteristic, final byte[] value);
 
+    /**
+     * Notification or indication sent to a Central
+     *
+     * @param connectedDevice the Central the notification was sent to
+     * @param characteristic the Characteristic the notification was for
+     * @param status BluetoothGatt.GATT_SUCCESS if the notification was sent
+     */
+    public abstract void onNotificationSent(final BluetoothDevice connectedDevice, final BluetoothGattCharacteristic characteristic, final int status);
+
     /**
      * Characteristic subscribed to
      *
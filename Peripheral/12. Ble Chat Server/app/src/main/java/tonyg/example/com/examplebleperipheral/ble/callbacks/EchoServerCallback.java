@@ -25,10 +25,10 @@ public abstract class EchoServerCallback {
     public abstract void onCentralDisconnected(final BluetoothDevice bluetoothDevice);
 
     /**
-     * Characteristic written to
+     * A message was written and echoed.  Read it back from the chat log if it's needed
      *
-     * @param value the byte value that was written
+     * @param sequence the message's sequence number in the chat log, or -1 if it wasn't logged
      */
-    public abstract void onMessageWritten(final byte[] value);
+    public abstract void onMessageWritten(final long sequence);
 
 }
@@ -0,0 +1,69 @@
+package tonyg.example.com.examplebleperipheral.utilities;
+
+import java.io.PrintWriter;
+
+import tonyg.example.com.blechatcore.metrics.EventRecorder;
+import tonyg.example.com.examplebleperipheral.BuildConfig;
+
+/**
+ * Records GATT events into an EventRecorder ring buffer
+ * instead of building log Strings on the hot path.
+ *
+ * Recording never allocates.  Wrap calls in "if (EventTrace.ENABLED)" so that
+ * release builds compile the tracing out completely.
+ *
+ * Dump the buffer with "adb shell dumpsys activity top"
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class EventTrace {
+    /** Constants **/
+    public static final boolean ENABLED = BuildConfig.EVENT_TRACE_ENABLED;
+
+    private static final int CAPACITY = 1024; // number of events kept. Must be a power of two
+
+    /** Event ids **/
+    public static final int CENTRAL_CONNECTED = 1;
+    public static final int CENTRAL_DISCONNECTED = 2;
+    public static final int READ_REQUEST = 3;
+    public static final int WRITE_REQUEST = 4;
+    public static final int DESCRIPTOR_WRITE_REQUEST = 5;
+    public static final int NOTIFICATION_QUEUED = 6;
+    public static final int NOTIFICATION_SENT = 7;
+    public static final int MESSAGE_ECHOED = 8;
+
+    private static final String[] EVENT_NAMES = {
+            "unknown",
+            "central_connected",
+            "central_disconnected",
+            "read_request",
+            "write_request",
+            "descriptor_write_request",
+            "notification_queued",
+            "notification_sent",
+            "message_echoed"
+    };
+
+    private static final EventRecorder sEventRecorder = new EventRecorder(EVENT_NAMES, CAPACITY);
+
+    /**
+     * Record an event
+     *
+     * @param eventId one of the event ids defined in this class
+     * @param length the payload length, or a status code for events without a payload
+     */
+    public static void record(int eventId, int length) {
+        sEventRecorder.record(eventId, length);
+    }
+
+    /**
+     * Dump the recorded events, oldest first
+     *
+     * @param prefix the indentation for each line
+     * @param writer where to write the events
+     */
+    public static void dump(String prefix, PrintWriter writer) {
+        sEventRecorder.dump(prefix, writer);
+    }
+}
@@ -0,0 +1,48 @@
+package tonyg.example.com.examplebleperipheral.utilities;
+
+import tonyg.example.com.blechatcore.metrics.Histogram;
+import tonyg.example.com.blechatcore.metrics.MetricsRegistry;
+import tonyg.example.com.blechatcore.metrics.StripedCounter;
+import tonyg.example.com.blechatui.UiMetrics;
+
+/**
+ * The counters and histograms kept by the Peripheral.
+ *
+ * All the metrics are created up front, so updating them from a GATT callback
+ * never allocates.  Take a snapshot from the UI with REGISTRY.snapshot(),
+ * or over adb with "adb shell dumpsys activity top"
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-19
+ */
+public class Metrics {
+    /** Counters **/
+    public static final StripedCounter BYTES_IN = new StripedCounter("bytes_in");
+    public static final StripedCounter BYTES_OUT = new StripedCounter("bytes_out");
+    public static final StripedCounter WRITES = new StripedCounter("writes");
+    public static final StripedCounter NOTIFICATIONS = new StripedCounter("notifications");
+    public static final StripedCounter WRITE_FAILURES = new StripedCounter("write_failures");
+    public static final StripedCounter NOTIFICATION_FAILURES = new StripedCounter("notification_failures");
+    public static final StripedCounter ECHOES_DROPPED = new StripedCounter("echoes_dropped");
+
+    /** Histograms **/
+    public static final Histogram NOTIFICATION_QUEUE_DEPTH = new Histogram("notification_queue_depth", 16);
+
+    public static final MetricsRegistry REGISTRY = new MetricsRegistry(
+            new StripedCounter[] {
+                    BYTES_IN,
+                    BYTES_OUT,
+                    WRITES,
+                    NOTIFICATIONS,
+                    WRITE_FAILURES,
+                    NOTIFICATION_FAILURES,
+                    ECHOES_DROPPED,
+                    UiMetrics.UI_EVENTS,
+                    UiMetrics.UI_EVENTS_COALESCED,
+                    UiMetrics.UI_FRAMES_DROPPED
+            },
+            new Histogram[] {
+                    NOTIFICATION_QUEUE_DEPTH,
+                    UiMetrics.UI_LATENCY_US
+            });
+}